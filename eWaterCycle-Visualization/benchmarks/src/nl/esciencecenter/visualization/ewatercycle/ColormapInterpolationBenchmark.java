@@ -0,0 +1,55 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Interpolating the colors of a colormap file to the number of entries the
+ * kernels use, as done for every colormap at startup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ColormapInterpolationBenchmark {
+    /** The number of colors in the colormap file. */
+    @Param({ "16", "256" })
+    public int colors;
+
+    /** The number of entries to interpolate to. */
+    @Param({ "500", "4096" })
+    public int finalSize;
+
+    private ArrayList<Color> colorList;
+
+    @Setup(Level.Trial)
+    public void createColors() {
+        Random random = new Random(42);
+        colorList = new ArrayList<Color>();
+        for (int i = 0; i < colors; i++) {
+            colorList.add(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 255));
+        }
+    }
+
+    @Benchmark
+    public int[] initColorMapToSetSize() {
+        return JOCLColormapper.initColorMapToSetSize(finalSize, colorList);
+    }
+}
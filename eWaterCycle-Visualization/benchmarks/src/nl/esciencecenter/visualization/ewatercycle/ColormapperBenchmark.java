@@ -0,0 +1,117 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import nl.esciencecenter.neon.swing.ColormapInterpreter.Dimensions;
+import nl.esciencecenter.visualization.ewatercycle.data.MappedNetCDFSliceReader;
+import nl.esciencecenter.visualization.ewatercycle.data.SyntheticNetCDF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the CPU and OpenCL colormappers on a memory-mapped timestep of a
+ * synthetic dataset, one image at a time and with many images in flight. The
+ * opencl runs fail on machines without an OpenCL device, pass
+ * <code>-p mapper=cpu</code> there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ColormapperBenchmark {
+    private final static int IMAGES_IN_FLIGHT = 16;
+
+    @Param({ SyntheticNetCDF.GRID_HALF_DEGREE, SyntheticNetCDF.GRID_TENTH_DEGREE, SyntheticNetCDF.GRID_FIVE_ARCMIN })
+    public String grid;
+
+    @Param({ "cpu", "opencl" })
+    public String mapper;
+
+    @Param({ "false", "true" })
+    public boolean logScale;
+
+    private File file;
+    private MappedNetCDFSliceReader reader;
+    private FloatBuffer data;
+
+    private Colormapper colormapper;
+    private String colormapName;
+    private Dimensions dims;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = SyntheticNetCDF.createTempFile(grid, 1);
+        reader = MappedNetCDFSliceReader.open(file);
+        data = reader.getSlice(SyntheticNetCDF.VARIABLE, 0);
+
+        int width = SyntheticNetCDF.getWidth(grid);
+        int height = SyntheticNetCDF.getHeight(grid);
+        if (mapper.compareTo("opencl") == 0) {
+            if (!JOCLColormapper.isAvailable()) {
+                throw new IllegalStateException("No OpenCL device available");
+            }
+            colormapper = new JOCLColormapper(width, height);
+        } else {
+            colormapper = new CPUColormapper(width, height);
+        }
+
+        colormapName = JOCLColormapper.getColormapNames()[0];
+        dims = new Dimensions(100f, 900f);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        reader.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int[] makeImage() {
+        return colormapper.makeImage(colormapName, dims, data, SyntheticNetCDF.FILL_VALUE, logScale);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES_IN_FLIGHT)
+    public void makeImageAsync() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(IMAGES_IN_FLIGHT);
+        final Throwable[] failure = new Throwable[1];
+        for (int i = 0; i < IMAGES_IN_FLIGHT; i++) {
+            colormapper.makeImageAsync(colormapName, dims, data, SyntheticNetCDF.FILL_VALUE, logScale,
+                    new Colormapper.ImageCallback() {
+                        @Override
+                        public void imageReady(int[] pixels) {
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void imageFailed(Throwable cause) {
+                            failure[0] = cause;
+                            done.countDown();
+                        }
+                    });
+        }
+        done.await();
+        if (failure[0] != null) {
+            throw new IllegalStateException("Unable to make an image", failure[0]);
+        }
+    }
+}
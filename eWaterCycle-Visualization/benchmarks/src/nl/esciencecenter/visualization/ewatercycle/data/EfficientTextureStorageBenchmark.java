@@ -0,0 +1,110 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.esciencecenter.visualization.ewatercycle.JOCLColormapper;
+import nl.esciencecenter.visualization.ewatercycle.Texture2D;
+import nl.esciencecenter.visualization.ewatercycle.WaterCycleSettings;
+import nl.esciencecenter.visualization.ewatercycle.data.EfficientTextureStorage.TextureCombo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The render threads asking the texture storage for their images while the
+ * player keeps requesting new frames, which in turn are built by the dataset
+ * manager and handed to the storage from its worker threads.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EfficientTextureStorageBenchmark {
+    @Param({ SyntheticNetCDF.GRID_HALF_DEGREE })
+    public String grid;
+
+    @Param({ "16" })
+    public int timesteps;
+
+    private File file;
+    private DatasetManager manager;
+    private EfficientTextureStorage storage;
+    private SurfaceTextureDescription[] descriptions;
+    private int screens;
+    private int nextRequest;
+
+    /** The screen a render thread draws, every thread cycles through them. */
+    @State(Scope.Thread)
+    public static class RenderThread {
+        private int screen;
+    }
+
+    @Setup(Level.Trial)
+    public void createManager() throws IOException {
+        file = SyntheticNetCDF.createTempFile(grid, timesteps);
+        manager = new DatasetManager(new File[] { file });
+        storage = manager.getEfficientTextureStorage();
+
+        WaterCycleSettings settings = WaterCycleSettings.getInstance();
+        screens = settings.getNumScreensRows() * settings.getNumScreensCols();
+
+        String colorMap = JOCLColormapper.getColormapNames()[0];
+        descriptions = new SurfaceTextureDescription[timesteps];
+        for (int i = 0; i < timesteps; i++) {
+            descriptions[i] = new SurfaceTextureDescription(i, 0, SyntheticNetCDF.VARIABLE, colorMap, false, false,
+                    false, 0f, 1000f, false);
+        }
+
+        for (int screen = 0; screen < screens; screen++) {
+            storage.requestNewConfiguration(screen, descriptions[0]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownManager() {
+        manager.shutdown();
+        file.delete();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public TextureCombo getImages(RenderThread thread) {
+        thread.screen = (thread.screen + 1) % screens;
+        return storage.getImages(thread.screen);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public List<Texture2D> requestNewConfiguration() {
+        nextRequest++;
+        return storage.requestNewConfiguration(nextRequest % screens, descriptions[nextRequest % timesteps]);
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public TextureCombo getImagesAlone(RenderThread thread) {
+        thread.screen = (thread.screen + 1) % screens;
+        return storage.getImages(thread.screen);
+    }
+}
@@ -0,0 +1,125 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading timesteps from, and scanning the bounds of, synthetic NetCDF files
+ * of increasing resolution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NetCDFReaderBenchmark {
+    @Param({ SyntheticNetCDF.GRID_HALF_DEGREE, SyntheticNetCDF.GRID_TENTH_DEGREE, SyntheticNetCDF.GRID_FIVE_ARCMIN })
+    public String grid;
+
+    @Param({ "8" })
+    public int timesteps;
+
+    private File file;
+    private NetCDFReader reader;
+    private int time;
+
+    /**
+     * A reader that has never seen its file before, so
+     * {@link NetCDFReader#requestStatistics(String, StatisticsListener)} has
+     * to scan all timesteps.
+     */
+    @State(Scope.Thread)
+    public static class UnscannedReader {
+        private NetCDFReader reader;
+
+        @Setup(Level.Invocation)
+        public void open(NetCDFReaderBenchmark benchmark) throws IOException {
+            // A new modification time gives a new fingerprint, so the
+            // statistics cache misses.
+            benchmark.file.setLastModified(benchmark.file.lastModified() + 1000);
+
+            reader = new NetCDFReader(TimeAggregation.of(benchmark.file, 1));
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            reader.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = SyntheticNetCDF.createTempFile(grid, timesteps);
+        reader = new NetCDFReader(TimeAggregation.of(file, 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        reader.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public float[] getData() {
+        time = (time + 1) % timesteps;
+        return reader.getData(SyntheticNetCDF.VARIABLE, time);
+    }
+
+    /**
+     * The view itself is free, so every value is read to include the cost of
+     * paging in and byte-swapping the data.
+     */
+    @Benchmark
+    public float getDataBuffer() {
+        time = (time + 1) % timesteps;
+        FloatBuffer data = reader.getDataBuffer(SyntheticNetCDF.VARIABLE, time);
+
+        float sum = 0f;
+        for (int i = data.position(); i < data.limit(); i++) {
+            sum += data.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * From the request to the end of the scan, which runs in the background.
+     */
+    @Benchmark
+    public VariableStatistics requestStatistics(UnscannedReader unscanned) throws InterruptedException {
+        final VariableStatistics[] result = new VariableStatistics[1];
+        final CountDownLatch done = new CountDownLatch(1);
+
+        unscanned.reader.requestStatistics(SyntheticNetCDF.VARIABLE, new StatisticsListener() {
+            @Override
+            public void scanProgress(NetCDFReader reader, int timestepsDone, int timestepsTotal) {
+            }
+
+            @Override
+            public void statisticsDetermined(String variableName, VariableStatistics statistics) {
+                result[0] = statistics;
+                done.countDown();
+            }
+        });
+
+        done.await();
+        return result[0];
+    }
+}
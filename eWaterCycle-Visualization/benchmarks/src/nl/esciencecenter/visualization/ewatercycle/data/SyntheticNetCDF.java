@@ -0,0 +1,217 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes 64-bit offset (CDF-2) NetCDF files shaped like the model output the
+ * visualization is fed: a global lat/lon grid with a record (time) dimension,
+ * one float variable with units and a fill value, and lat, lon and time
+ * coordinate variables. The field is smooth, varies over time, has some
+ * noise and about 30% missing values, so it exercises the same code paths as
+ * real data.
+ */
+public class SyntheticNetCDF {
+    /** The name of the data variable in the generated files. */
+    public static final String VARIABLE = "syntheticDischarge";
+    public static final float FILL_VALUE = 1e20f;
+
+    /** Grid sizes used by the benchmarks, as "lon x lat". */
+    public static final String GRID_HALF_DEGREE = "720x360";
+    public static final String GRID_TENTH_DEGREE = "3600x1800";
+    public static final String GRID_FIVE_ARCMIN = "4320x2160";
+
+    private static final int NC_DIMENSION = 0x0A;
+    private static final int NC_VARIABLE = 0x0B;
+    private static final int NC_ATTRIBUTE = 0x0C;
+    private static final int NC_CHAR = 2;
+    private static final int NC_FLOAT = 5;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private SyntheticNetCDF() {
+    }
+
+    public static int getWidth(String grid) {
+        return Integer.parseInt(grid.split("x")[0]);
+    }
+
+    public static int getHeight(String grid) {
+        return Integer.parseInt(grid.split("x")[1]);
+    }
+
+    /**
+     * Write a temporary file, deleted when the JVM exits.
+     *
+     * @param grid
+     *            The grid size, as "lon x lat", for instance "720x360".
+     * @param timesteps
+     *            The number of records to write.
+     * @return The file.
+     * @throws IOException
+     *             If the file could not be written.
+     */
+    public static File createTempFile(String grid, int timesteps) throws IOException {
+        File file = File.createTempFile("synthetic-" + grid + "-", ".nc");
+        file.deleteOnExit();
+        write(file, getWidth(grid), getHeight(grid), timesteps);
+        return file;
+    }
+
+    public static void write(File file, int width, int height, int timesteps) throws IOException {
+        int sliceBytes = width * height * 4;
+
+        // The header is written twice, first to learn its size and with that
+        // the offsets of the data.
+        ByteBuffer header = makeHeader(width, height, timesteps, 0);
+        header = makeHeader(width, height, timesteps, header.remaining());
+
+        long latBegin = header.remaining();
+        long lonBegin = latBegin + height * 4;
+        long recordsBegin = lonBegin + width * 4;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            raf.setLength(recordsBegin + (long) timesteps * (4 + sliceBytes));
+
+            write(channel, header, 0);
+
+            ByteBuffer lat = ByteBuffer.allocate(height * 4);
+            for (int y = 0; y < height; y++) {
+                lat.putFloat(-90f + (y + 0.5f) * 180f / height);
+            }
+            lat.flip();
+            write(channel, lat, latBegin);
+
+            ByteBuffer lon = ByteBuffer.allocate(width * 4);
+            for (int x = 0; x < width; x++) {
+                lon.putFloat(-180f + (x + 0.5f) * 360f / width);
+            }
+            lon.flip();
+            write(channel, lon, lonBegin);
+
+            // Separable terms keep generating the big grids cheap.
+            float[] rowTerm = new float[height];
+            for (int y = 0; y < height; y++) {
+                rowTerm[y] = (float) Math.cos(Math.PI * (y - height / 2.0) / height);
+            }
+            float[] columnTerm = new float[width];
+            for (int x = 0; x < width; x++) {
+                columnTerm[x] = (float) Math.sin(4.0 * Math.PI * x / width);
+            }
+
+            ByteBuffer record = ByteBuffer.allocateDirect(4 + sliceBytes).order(ByteOrder.BIG_ENDIAN);
+            for (int t = 0; t < timesteps; t++) {
+                record.clear();
+                record.putFloat(t);
+
+                float phase = (float) Math.sin(t * 0.1);
+                int noise = 0x9E3779B9 * (t + 1);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        noise = noise * 1664525 + 1013904223;
+                        if (isLand(x, y, width, height)) {
+                            record.putFloat(FILL_VALUE);
+                        } else {
+                            float value = 500f * rowTerm[y] * (1f + columnTerm[x] * phase) + 500f
+                                    + (noise >>> 24) * 0.5f;
+                            record.putFloat(value);
+                        }
+                    }
+                }
+                record.flip();
+                write(channel, record, recordsBegin + (long) t * (4 + sliceBytes));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** A few blocky continents, so fill values come in large areas. */
+    private static boolean isLand(int x, int y, int width, int height) {
+        int cellX = x * 8 / width;
+        int cellY = y * 4 / height;
+        return ((cellX * 3 + cellY * 5) % 7) < 2;
+    }
+
+    private static ByteBuffer makeHeader(int width, int height, int timesteps, int headerSize) {
+        ByteBuffer header = ByteBuffer.allocate(4096).order(ByteOrder.BIG_ENDIAN);
+        header.put(new byte[] { 'C', 'D', 'F', 2 });
+        header.putInt(timesteps);
+
+        // Dimensions: time (record), lat, lon
+        header.putInt(NC_DIMENSION);
+        header.putInt(3);
+        putName(header, "time");
+        header.putInt(0);
+        putName(header, "lat");
+        header.putInt(height);
+        putName(header, "lon");
+        header.putInt(width);
+
+        // No global attributes
+        header.putInt(0);
+        header.putInt(0);
+
+        long latBegin = headerSize;
+        long lonBegin = latBegin + height * 4;
+        long recordsBegin = lonBegin + width * 4;
+
+        header.putInt(NC_VARIABLE);
+        header.putInt(4);
+        putVariable(header, "lat", new int[] { 1 }, "degrees_north", false, height * 4, latBegin);
+        putVariable(header, "lon", new int[] { 2 }, "degrees_east", false, width * 4, lonBegin);
+        putVariable(header, "time", new int[] { 0 }, "days since 2000-01-01", false, 4, recordsBegin);
+        putVariable(header, VARIABLE, new int[] { 0, 1, 2 }, "m3.s-1", true, width * height * 4, recordsBegin + 4);
+
+        header.flip();
+        return header;
+    }
+
+    private static void putVariable(ByteBuffer header, String name, int[] dimIds, String units, boolean withFill,
+            int vsize, long begin) {
+        putName(header, name);
+        header.putInt(dimIds.length);
+        for (int dimId : dimIds) {
+            header.putInt(dimId);
+        }
+
+        header.putInt(NC_ATTRIBUTE);
+        header.putInt(withFill ? 2 : 1);
+        putName(header, "units");
+        header.putInt(NC_CHAR);
+        putName(header, units);
+        if (withFill) {
+            putName(header, "_FillValue");
+            header.putInt(NC_FLOAT);
+            header.putInt(1);
+            header.putFloat(FILL_VALUE);
+        }
+
+        header.putInt(NC_FLOAT);
+        header.putInt(vsize);
+        header.putLong(begin);
+    }
+
+    /** Names and character attributes: length, then the bytes padded to 4. */
+    private static void putName(ByteBuffer header, String name) {
+        byte[] bytes = name.getBytes(ASCII);
+        header.putInt(bytes.length);
+        header.put(bytes);
+        for (int i = bytes.length; i % 4 != 0; i++) {
+            header.put((byte) 0);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
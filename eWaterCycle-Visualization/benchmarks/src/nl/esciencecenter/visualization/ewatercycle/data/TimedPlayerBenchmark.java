@@ -0,0 +1,39 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.esciencecenter.neon.math.Float3Vector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The camera path interpolation done for every keyframe transition of a
+ * movie.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TimedPlayerBenchmark {
+    @Param({ "60", "600" })
+    public int steps;
+
+    private final Float3Vector startLocation = new Float3Vector(-30f, 45f, -4f);
+    private final Float3Vector endLocation = new Float3Vector(60f, -120f, -2f);
+
+    @Benchmark
+    public Float3Vector[] degreesBezierCurve() {
+        return TimedPlayer.degreesBezierCurve(steps, startLocation, endLocation);
+    }
+}
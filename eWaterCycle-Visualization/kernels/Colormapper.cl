@@ -18,7 +18,7 @@ __kernel void mapColors(
     int dataIndex = iy * sizeX + ix;
     float inputValue = data[dataIndex];
         
-    int outputIndex = (iy*sizeX)+(sizeX-ix);
+    int outputIndex = (iy*sizeX)+(sizeX-1-ix);
     
     if (inputValue == fillValue) {
     	output[outputIndex] = fillColor;
@@ -31,7 +31,7 @@ __kernel void mapColors(
     } else {    
 	    float diff = maxValue - minValue;
 	    float alpha = (inputValue - minValue)/diff;
-	    int colorIndex = (int)(alpha * colorMapSize);
+	    int colorIndex = min((int)(alpha * colorMapSize), (int)colorMapSize-1);
 	    output[outputIndex] = colorMap[colorIndex];
     }
 }
\ No newline at end of file
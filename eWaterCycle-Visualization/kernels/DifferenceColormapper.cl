@@ -0,0 +1,44 @@
+
+__kernel void mapDifference(
+	__global float *control,
+	__global float *experiment,
+    __global uint *output,
+    __global uint *colorMap,
+    unsigned int sizeX, 
+    unsigned int sizeY,
+    float controlFillValue,
+    float experimentFillValue,
+    float minValue, 
+    float maxValue,
+    unsigned int fillColor,
+    unsigned int colorMapSize
+    )
+{
+    unsigned int ix = get_global_id(0);
+    unsigned int iy = get_global_id(1);
+    
+    int dataIndex = iy * sizeX + ix;
+    float controlValue = control[dataIndex];
+    float experimentValue = experiment[dataIndex];
+        
+    int outputIndex = (iy*sizeX)+(sizeX-1-ix);
+    
+    if (controlValue == controlFillValue || experimentValue == experimentFillValue) {
+    	output[outputIndex] = fillColor;
+    	return;
+    }
+    
+    float inputValue = experimentValue - controlValue;
+    if (inputValue < minValue){
+	    int colorIndex = 0;
+	    output[outputIndex] = colorMap[colorIndex];
+    } else if (inputValue > maxValue){
+	    int colorIndex = colorMapSize-1;
+	    output[outputIndex] = colorMap[colorIndex];
+    } else {    
+	    float diff = maxValue - minValue;
+	    float alpha = (inputValue - minValue)/diff;
+	    int colorIndex = min((int)(alpha * colorMapSize), (int)colorMapSize-1);
+	    output[outputIndex] = colorMap[colorIndex];
+    }
+}
\ No newline at end of file
@@ -0,0 +1,2 @@
+#!/bin/bash
+java -cp "dist/*:dist/lib/*" nl.esciencecenter.visualization.ewatercycle.HeadlessRenderer "$@"
@@ -0,0 +1,53 @@
+#version 150
+
+in vec2 tCoord;
+flat in int surfaceLayer;
+flat in int screen;
+
+// The data, with NaN for missing values, and a colormap for every screen.
+uniform sampler2DArray texture_map;
+uniform sampler2DArray colormaps;
+
+uniform float minValues[16];
+uniform float maxValues[16];
+uniform bool logScales[16];
+
+// The part of the globe covered by the image of every screen: the first
+// texture coordinates and the size.
+uniform vec4 regions[16];
+
+out vec4 fragColor;
+
+// Maps the data the same way the colormappers do.
+void main() {
+	vec4 region = regions[screen];
+	vec2 coord = clamp(vec2(fract(tCoord.s - region.s), tCoord.t - region.t) / region.pq, 0.0, 1.0);
+
+	float value = texture(texture_map, vec3(coord, float(surfaceLayer))).r;
+	int colorMapSize = textureSize(colormaps, 0).x;
+
+	float minValue = minValues[screen];
+	float maxValue = maxValues[screen];
+
+	if (isnan(value)) {
+		fragColor = vec4(0.0, 0.0, 0.0, 1.0);
+		return;
+	}
+
+	int colorIndex;
+	if (value < minValue) {
+		colorIndex = 0;
+	} else if (value > maxValue) {
+		colorIndex = colorMapSize - 1;
+	} else {
+		float scaledMin = logScales[screen] ? log(minValue + 1.0) : minValue;
+		float scaledMax = logScales[screen] ? log(maxValue + 1.0) : maxValue;
+		float scaledValue = logScales[screen] ? log(value + 1.0) : value;
+		// A constant variable or a collapsed range would divide by zero.
+		float diff = max(scaledMax - scaledMin, 1e-30);
+		float alpha = (scaledValue - scaledMin) / diff;
+		colorIndex = min(int(alpha * float(colorMapSize)), colorMapSize - 1);
+	}
+
+	fragColor = vec4(texelFetch(colormaps, ivec3(colorIndex, 0, screen), 0).rgb, 1.0);
+}
@@ -0,0 +1,58 @@
+#version 150
+
+uniform sampler2DArray textTex;
+uniform sampler2DArray legendTex;
+uniform sampler2DArray dataTex;
+uniform sampler2D atmosphereTex;
+
+uniform int scrWidth;
+uniform int scrHeight;
+uniform int divs_x;
+uniform int divs_y;
+uniform int selection;
+
+out vec4 fragColor;
+
+void main() {
+	float width = float(scrWidth);
+	float height = float(scrHeight);
+	
+	vec2 coord = vec2(gl_FragCoord.x/width, gl_FragCoord.y/height);
+	
+	// Find the screen this fragment belongs to, counted from the bottom left,
+	// and the coordinates within that screen.
+	float layer;
+	vec2 tCoord;
+	if (selection == 0) {
+		vec2 grid = coord * vec2(float(divs_x), float(divs_y));
+		vec2 cell = min(floor(grid), vec2(float(divs_x - 1), float(divs_y - 1)));
+		
+		layer = cell.y * float(divs_x) + cell.x;
+		tCoord = grid - cell;
+	} else {
+		layer = float(selection - 1);
+		tCoord = coord;
+	}
+	
+	vec4 cText 		 = vec4(texture(textTex, 	vec3(tCoord, layer)).rgb, 1.0);
+	vec4 cLegend 	 = vec4(texture(legendTex, 	vec3(tCoord, layer)).rgb, 1.0);
+	vec4 cData 		 = vec4(texture(dataTex, 	vec3(tCoord, layer)).rgb, 1.0);
+	vec4 cAtmosphere = vec4(texture(atmosphereTex, 	tCoord).rgb, 1.0);
+	
+	vec4 color;
+	if (length(cText.rgb) > 0) {
+		color = cText;
+		
+		if (length(cData.rgb) > 0.2) { 
+			color = 1.0 - cText;	
+		}
+	} else if (length(cLegend.rgb) > 0) {
+		color = cLegend;
+	} else if (length(cData.rgb) > 0) {
+		color = cData;
+	} else {
+		color = cAtmosphere;
+	}	
+	
+	fragColor = vec4(color.rgb, 1.0);
+}
@@ -0,0 +1,24 @@
+#version 150
+
+in vec2 tCoord;
+flat in int surfaceLayer;
+flat in int screen;
+
+uniform sampler2DArray texture_map;
+
+// The part of the globe covered by the image of every screen: the first
+// texture coordinates and the size.
+uniform vec4 regions[16];
+
+out vec4 fragColor;
+
+void main() {
+    vec4 region = regions[screen];
+    vec2 coord = clamp(vec2(fract(tCoord.s - region.s), tCoord.t - region.t) / region.pq, 0.0, 1.0);
+
+    // The gradients of the unwrapped coordinates, so the mipmap level does
+    // not jump where fract does.
+    vec2 dx = dFdx(tCoord) / region.pq;
+    vec2 dy = dFdy(tCoord) / region.pq;
+    fragColor = vec4(textureGrad(texture_map, vec3(coord, float(surfaceLayer)), dx, dy).rgb, 1.0);
+} 
@@ -0,0 +1,26 @@
+#version 150
+
+layout(triangles) in;
+layout(triangle_strip, max_vertices = 3) out;
+
+in vec2 vCoord[];
+flat in int vLayer[];
+flat in int vSurfaceLayer[];
+
+out vec2 tCoord;
+flat out int surfaceLayer;
+flat out int screen;
+
+// Sends every triangle to the framebuffer layer of its instance.
+void main()
+{
+	for (int i = 0; i < 3; i++) {
+		gl_Layer = vLayer[0];
+		surfaceLayer = vSurfaceLayer[0];
+		screen = vLayer[0];
+		tCoord = vCoord[i];
+		gl_Position = gl_in[i].gl_Position;
+		EmitVertex();
+	}
+	EndPrimitive();
+}
@@ -0,0 +1,278 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+import nl.esciencecenter.neon.swing.ColormapInterpreter.Dimensions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A colormapper that runs the colormapping kernels on the CPU, for machines
+ * without an OpenCL device. The image is split into blocks of rows that are
+ * mapped in parallel, no memory is allocated besides the image itself. The
+ * asynchronous calls block while as many images are underway as there are
+ * threads.
+ */
+public class CPUColormapper implements Colormapper {
+    private final static Logger logger = LoggerFactory.getLogger(CPUColormapper.class);
+
+    /** Below this number of rows, splitting costs more than it saves. */
+    private final static int ROWS_PER_TASK = 16;
+
+    /** The color for missing data, see the fillColor kernel argument. */
+    private final static int FILL_COLOR = 0 << 24 | 0 << 16 | 0 << 8 | 0 << 0;
+
+    private final int width;
+    private final int height;
+
+    private final ForkJoinPool pool;
+    /**
+     * One permit for every image that may be underway at once, so that the
+     * images and the data they are made from do not pile up while the
+     * threads are busy.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * Maps a block of rows, the equivalent of the global work items of the
+     * OpenCL kernels for those rows. With experiment data, the difference of
+     * the two datasets is mapped instead.
+     */
+    private static class MapRows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FloatBuffer data;
+        private final FloatBuffer experiment;
+        private final int[] output;
+        private final int[] colorMap;
+        private final int width;
+        private final int firstRow;
+        private final int endRow;
+        private final float fillValue;
+        private final float experimentFillValue;
+        private final float minValue;
+        private final float maxValue;
+        private final boolean logScale;
+
+        public MapRows(FloatBuffer data, FloatBuffer experiment, int[] output, int[] colorMap, int width,
+                int firstRow, int endRow, float fillValue, float experimentFillValue, float minValue,
+                float maxValue, boolean logScale) {
+            this.data = data;
+            this.experiment = experiment;
+            this.output = output;
+            this.colorMap = colorMap;
+            this.width = width;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            this.fillValue = fillValue;
+            this.experimentFillValue = experimentFillValue;
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+            this.logScale = logScale;
+        }
+
+        private MapRows rows(int first, int end) {
+            return new MapRows(data, experiment, output, colorMap, width, first, end, fillValue,
+                    experimentFillValue, minValue, maxValue, logScale);
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow > ROWS_PER_TASK) {
+                int middle = (firstRow + endRow) >>> 1;
+                invokeAll(rows(firstRow, middle), rows(middle, endRow));
+            } else if (experiment != null) {
+                mapDifferenceRows();
+            } else {
+                mapRows();
+            }
+        }
+
+        private void mapRows() {
+            final int colorMapSize = colorMap.length;
+            final int dataOffset = data.position();
+
+            // The log kernel maps log(x + 1) linearly
+            final float scaledMin = logScale ? (float) Math.log(minValue + 1.0) : minValue;
+            final float scaledMax = logScale ? (float) Math.log(maxValue + 1.0) : maxValue;
+            final float diff = scaledMax - scaledMin;
+
+            for (int iy = firstRow; iy < endRow; iy++) {
+                int dataIndex = dataOffset + iy * width;
+                int outputIndex = iy * width + width - 1;
+
+                for (int ix = 0; ix < width; ix++, dataIndex++, outputIndex--) {
+                    float inputValue = data.get(dataIndex);
+
+                    if (inputValue == fillValue) {
+                        output[outputIndex] = FILL_COLOR;
+                    } else if (inputValue < minValue) {
+                        output[outputIndex] = colorMap[0];
+                    } else if (inputValue > maxValue) {
+                        output[outputIndex] = colorMap[colorMapSize - 1];
+                    } else {
+                        float scaledValue = logScale ? (float) Math.log(inputValue + 1.0) : inputValue;
+                        float alpha = (scaledValue - scaledMin) / diff;
+                        int colorIndex = (int) (alpha * colorMapSize);
+                        output[outputIndex] = colorMap[Math.min(colorIndex, colorMapSize - 1)];
+                    }
+                }
+            }
+        }
+
+        /**
+         * The equivalent of the difference kernel, both datasets are read
+         * side by side and only the difference of every pair of values is
+         * mapped.
+         */
+        private void mapDifferenceRows() {
+            final int colorMapSize = colorMap.length;
+            final int dataOffset = data.position();
+            final int experimentOffset = experiment.position();
+            final float diff = maxValue - minValue;
+
+            for (int iy = firstRow; iy < endRow; iy++) {
+                int dataIndex = dataOffset + iy * width;
+                int experimentIndex = experimentOffset + iy * width;
+                int outputIndex = iy * width + width - 1;
+
+                for (int ix = 0; ix < width; ix++, dataIndex++, experimentIndex++, outputIndex--) {
+                    float controlValue = data.get(dataIndex);
+                    float experimentValue = experiment.get(experimentIndex);
+
+                    if (controlValue == fillValue || experimentValue == experimentFillValue) {
+                        output[outputIndex] = FILL_COLOR;
+                        continue;
+                    }
+
+                    float inputValue = experimentValue - controlValue;
+                    if (inputValue < minValue) {
+                        output[outputIndex] = colorMap[0];
+                    } else if (inputValue > maxValue) {
+                        output[outputIndex] = colorMap[colorMapSize - 1];
+                    } else {
+                        float alpha = (inputValue - minValue) / diff;
+                        int colorIndex = (int) (alpha * colorMapSize);
+                        output[outputIndex] = colorMap[Math.min(colorIndex, colorMapSize - 1)];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the CPUColormapper with the given width and height, using all
+     * available processors.
+     */
+    public CPUColormapper(int width, int height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    public CPUColormapper(int width, int height, int parallelism) {
+        this.width = width;
+        this.height = height;
+        this.pool = new ForkJoinPool(parallelism);
+        this.inFlight = new Semaphore(parallelism);
+
+        logger.debug("CPUColormapper set to " + height + "x" + width + " on " + parallelism + " threads");
+    }
+
+    @Override
+    public int[] makeImage(String colormapName, Dimensions dim, float[] data, float fillValue, boolean logScale) {
+        return makeImage(colormapName, dim, FloatBuffer.wrap(data), fillValue, logScale);
+    }
+
+    @Override
+    public int[] makeImage(String colormapName, Dimensions dim, FloatBuffer data, float fillValue, boolean logScale) {
+        int[] pixels = new int[width * height];
+        pool.invoke(createTask(requireColorMap(colormapName), dim, data, null, pixels, fillValue, 0f, logScale));
+        return pixels;
+    }
+
+    @Override
+    public void makeImageAsync(String colormapName, Dimensions dim, FloatBuffer data, float fillValue,
+            boolean logScale, final ImageCallback callback) {
+        int[] colorMap;
+        try {
+            colorMap = requireColorMap(colormapName);
+        } catch (IllegalArgumentException e) {
+            callback.imageFailed(e);
+            return;
+        }
+
+        inFlight.acquireUninterruptibly();
+        final int[] pixels = new int[width * height];
+        execute(createTask(colorMap, dim, data, null, pixels, fillValue, 0f, logScale), pixels, callback);
+    }
+
+    @Override
+    public void makeDifferenceImageAsync(String colormapName, Dimensions dim, FloatBuffer control,
+            FloatBuffer experiment, float controlFillValue, float experimentFillValue, ImageCallback callback) {
+        int[] colorMap;
+        try {
+            colorMap = requireColorMap(colormapName);
+        } catch (IllegalArgumentException e) {
+            callback.imageFailed(e);
+            return;
+        }
+
+        inFlight.acquireUninterruptibly();
+        final int[] pixels = new int[width * height];
+        execute(createTask(colorMap, dim, control, experiment, pixels, controlFillValue, experimentFillValue,
+                false), pixels, callback);
+    }
+
+    /**
+     * Maps an image in the background, holding a permit of
+     * {@link #inFlight} until it is handed to the callback. If mapping fails,
+     * the callback hears of that instead.
+     */
+    private void execute(final MapRows task, final int[] pixels, final ImageCallback callback) {
+        pool.execute(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                try {
+                    try {
+                        task.invoke();
+                    } catch (RuntimeException e) {
+                        callback.imageFailed(e);
+                        return;
+                    }
+                    callback.imageReady(pixels);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             If there is no colormap by that name.
+     */
+    private static int[] requireColorMap(String colormapName) {
+        int[] colorMap = JOCLColormapper.getColorMap(colormapName);
+        if (colorMap == null) {
+            throw new IllegalArgumentException("Non-existing colormap selected: " + colormapName);
+        }
+        return colorMap;
+    }
+
+    private MapRows createTask(int[] colorMap, Dimensions dim, FloatBuffer data, FloatBuffer experiment,
+            int[] pixels, float fillValue, float experimentFillValue, boolean logScale) {
+        return new MapRows(data.duplicate(), experiment == null ? null : experiment.duplicate(), pixels, colorMap,
+                width, 0, height, fillValue, experimentFillValue, dim.getMin(), dim.getMax(), logScale);
+    }
+
+    @Override
+    public ByteBuffer getColormapForLegendTexture(String colormapName) {
+        return JOCLColormapper.getLegendByteBuffer(colormapName);
+    }
+}
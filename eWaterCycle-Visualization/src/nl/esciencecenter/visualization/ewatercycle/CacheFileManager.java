@@ -1,175 +1,226 @@
 package nl.esciencecenter.visualization.ewatercycle;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import nl.esciencecenter.visualization.ewatercycle.data.VariableStatistics;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Persistent store for the statistics of the variables of the datasets that
+ * have been opened before, and the colormap chosen per variable. The store is
+ * read into memory once, lookups do not touch the disk. Statistics are kept
+ * per dataset fingerprint, so they are only reused for the exact same file.
+ * Every update rewrites the whole (small) file to a temporary file first, and
+ * then moves it into place, so an interrupted write never leaves a corrupt
+ * store behind.
+ */
 public class CacheFileManager {
     private final static Logger logger = LoggerFactory.getLogger(CacheFileManager.class);
+
+    private static final int MAGIC = 0x45574353; // "EWCS"
+    private static final int VERSION = 1;
+
     private final File cacheFile;
 
+    private final Map<DatasetFingerprint, Map<String, VariableStatistics>> statistics;
+    private final Map<String, String> colormaps;
+
     public CacheFileManager(String path) {
         logger.debug("User dir: " + System.getProperty("user.dir"));
         logger.debug("Cache Used dir: " + path);
-        cacheFile = new File(path + File.separator + ".visualizationCache");
-    }
+        cacheFile = new File(path + File.separator + ".visualizationCache.bin");
 
-    public synchronized float readMin(String variableName) {
-        float result = Float.NaN;
+        statistics = new HashMap<DatasetFingerprint, Map<String, VariableStatistics>>();
+        colormaps = new HashMap<String, String>();
 
-        // Check if we have made a cacheFileManager file earlier
         if (cacheFile.exists()) {
-            BufferedReader in;
-            String str;
-
-            try {
-                in = new BufferedReader(new FileReader(cacheFile));
-                while ((str = in.readLine()) != null) {
-                    if (str.contains(variableName) && str.contains("min")) {
-                        String[] substrings = str.split(" ");
-                        result = Float.parseFloat(substrings[2]);
-                    }
-                }
-                in.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            load();
+        } else {
+            importLegacyColormaps(new File(path + File.separator + ".visualizationCache"));
         }
-
-        return result;
     }
 
-    public synchronized void writeMin(String variableName, float value) {
-        if (!cacheFile.exists()) {
-            cacheFile.getParentFile().mkdirs();
-            try {
-                cacheFile.createNewFile();
-            } catch (IOException e) {
+    public synchronized VariableStatistics readStatistics(DatasetFingerprint dataset, String variableName) {
+        Map<String, VariableStatistics> datasetStatistics = statistics.get(dataset);
+        if (datasetStatistics == null) {
+            return null;
+        }
+        return datasetStatistics.get(variableName);
+    }
 
-                e.printStackTrace();
+    /**
+     * Store the statistics of a number of variables of a dataset, replacing
+     * any earlier statistics for those variables, and write the store to disk.
+     *
+     * @param dataset
+     *            The fingerprint of the dataset file.
+     * @param variableStatistics
+     *            The statistics per variable name.
+     */
+    public synchronized void writeStatistics(DatasetFingerprint dataset,
+            Map<String, VariableStatistics> variableStatistics) {
+        // Older versions of the same file are of no use anymore.
+        Iterator<DatasetFingerprint> known = statistics.keySet().iterator();
+        while (known.hasNext()) {
+            DatasetFingerprint fingerprint = known.next();
+            if (fingerprint.getPath().compareTo(dataset.getPath()) == 0 && !fingerprint.equals(dataset)) {
+                known.remove();
             }
         }
 
-        try {
-            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(cacheFile, true)));
-            out.println(variableName + " min " + value);
-
-            out.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        Map<String, VariableStatistics> datasetStatistics = statistics.get(dataset);
+        if (datasetStatistics == null) {
+            datasetStatistics = new HashMap<String, VariableStatistics>();
+            statistics.put(dataset, datasetStatistics);
         }
+        datasetStatistics.putAll(variableStatistics);
+
+        save();
     }
 
-    public synchronized float readMax(String variableName) {
-        float result = Float.NaN;
+    public synchronized String readColormap(String variableName) {
+        String result = colormaps.get(variableName);
+        return result == null ? "" : result;
+    }
 
-        // Check if we have made a cacheFileManager file earlier
-        if (cacheFile.exists()) {
-            BufferedReader in;
-            String str;
+    public synchronized void writeColormap(String variableName, String value) {
+        if (value.compareTo(readColormap(variableName)) != 0) {
+            colormaps.put(variableName, value);
+            save();
+        }
+    }
 
+    private void load() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
             try {
-                in = new BufferedReader(new FileReader(cacheFile));
-                while ((str = in.readLine()) != null) {
-                    if (str.contains(variableName) && str.contains("max")) {
-                        String[] substrings = str.split(" ");
-                        result = Float.parseFloat(substrings[2]);
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    logger.debug("Ignoring cache file of unknown format: " + cacheFile);
+                    return;
+                }
+
+                int numColormaps = in.readInt();
+                for (int i = 0; i < numColormaps; i++) {
+                    colormaps.put(in.readUTF(), in.readUTF());
+                }
+
+                int numDatasets = in.readInt();
+                for (int i = 0; i < numDatasets; i++) {
+                    DatasetFingerprint dataset = DatasetFingerprint.readFrom(in);
+                    Map<String, VariableStatistics> datasetStatistics = new HashMap<String, VariableStatistics>();
+
+                    int numVariables = in.readInt();
+                    for (int j = 0; j < numVariables; j++) {
+                        datasetStatistics.put(in.readUTF(), VariableStatistics.readFrom(in));
                     }
+                    statistics.put(dataset, datasetStatistics);
                 }
+            } finally {
                 in.close();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+        } catch (IOException e) {
+            logger.error("Unable to read cache file " + cacheFile + ", starting with an empty cache.", e);
+            statistics.clear();
+            colormaps.clear();
         }
-
-        return result;
     }
 
-    public synchronized void writeMax(String variableName, float value) {
-        if (!cacheFile.exists()) {
+    private void save() {
+        Path target = cacheFile.toPath();
+        Path temp = null;
+        try {
+            cacheFile.getAbsoluteFile().getParentFile().mkdirs();
+            temp = Files.createTempFile(cacheFile.getAbsoluteFile().getParentFile().toPath(), cacheFile.getName(),
+                    ".tmp");
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
             try {
-                cacheFile.getParentFile().mkdirs();
-                cacheFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
 
-        try {
-            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(cacheFile, true)));
-            out.println(variableName + " max " + value);
+                out.writeInt(colormaps.size());
+                for (Entry<String, String> entry : colormaps.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+
+                out.writeInt(statistics.size());
+                for (Entry<DatasetFingerprint, Map<String, VariableStatistics>> dataset : statistics.entrySet()) {
+                    dataset.getKey().writeTo(out);
 
-            out.close();
+                    out.writeInt(dataset.getValue().size());
+                    for (Entry<String, VariableStatistics> variable : dataset.getValue().entrySet()) {
+                        out.writeUTF(variable.getKey());
+                        variable.getValue().writeTo(out);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("Unable to write cache file " + cacheFile, e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
         }
     }
 
-    public synchronized String readColormap(String variableName) {
-        String result = "";
-
-        // Check if we have made a cacheFileManager file earlier
-        if (cacheFile.exists()) {
-            BufferedReader in;
-            String str;
+    /**
+     * The old text cache stored its bounds without knowing which file they
+     * came from, so only the colormap choices are worth keeping.
+     */
+    private void importLegacyColormaps(File legacyFile) {
+        if (!legacyFile.exists()) {
+            return;
+        }
 
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(legacyFile));
             try {
-                in = new BufferedReader(new FileReader(cacheFile));
+                String str;
                 while ((str = in.readLine()) != null) {
-                    if (str.contains(variableName) && str.contains("colormap")) {
-                        String[] substrings = str.split(" ");
-                        result = substrings[2];
+                    String[] substrings = str.split(" ");
+                    if (substrings.length == 3 && substrings[1].compareTo("colormap") == 0) {
+                        colormaps.put(substrings[0], substrings[2]);
                     }
                 }
+            } finally {
                 in.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        return result;
-    }
-
-    public synchronized void writeColormap(String variableName, String value) {
-        try {
-            if (!cacheFile.exists()) {
-                cacheFile.getParentFile().mkdirs();
-                cacheFile.createNewFile();
             }
-
-            // if (readColormap(variableName).compareTo("") != 0) {
-            // BufferedReader in;
-            // String str;
-            //
-            // PrintWriter out = new PrintWriter(new BufferedWriter(new
-            // FileWriter(cacheFile, false)));
-            //
-            // in = new BufferedReader(new FileReader(cacheFile));
-            // while ((str = in.readLine()) != null) {
-            // String toBeWritten = str;
-            // if (str.contains(variableName) && str.contains("colormap")) {
-            // String[] substrings = str.split(" ");
-            // toBeWritten = substrings[0] + " colormap " + value;
-            // }
-            // out.println(toBeWritten);
-            // }
-            // in.close();
-            //
-            // out.close();
-            // } else {
-            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(cacheFile, true)));
-            out.println(variableName + " colormap " + value);
-            out.close();
-            // }
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        if (!colormaps.isEmpty()) {
+            save();
+        }
     }
 }
@@ -0,0 +1,103 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import nl.esciencecenter.neon.swing.ColormapInterpreter.Dimensions;
+
+/**
+ * Turns a single timestep of a variable into an image, by mapping every value
+ * onto a colormap. Implementations must allow several threads to create
+ * images at the same time.
+ */
+public interface Colormapper {
+    /**
+     * Receives the result of
+     * {@link Colormapper#makeImageAsync(String, Dimensions, FloatBuffer, float, boolean, ImageCallback)}
+     * .
+     */
+    interface ImageCallback {
+        /**
+         * Called from a thread of the colormapper once the image is done.
+         *
+         * @param pixels
+         *            The colormapped image.
+         */
+        void imageReady(int[] pixels);
+
+        /**
+         * Called instead of {@link #imageReady(int[])} if the image could not
+         * be made, from a thread of the colormapper or from the thread that
+         * asked for the image.
+         *
+         * @param cause
+         *            The reason the image could not be made.
+         */
+        void imageFailed(Throwable cause);
+    }
+
+    /**
+     * Create an image and wait for it.
+     */
+    int[] makeImage(String colormapName, Dimensions dim, float[] data, float fillValue, boolean logScale);
+
+    /**
+     * Create an image straight from a (possibly memory-mapped) buffer and wait
+     * for it.
+     */
+    int[] makeImage(String colormapName, Dimensions dim, FloatBuffer data, float fillValue, boolean logScale);
+
+    /**
+     * Start creating an image and return before it is done. The data must stay
+     * valid until the callback has been called. May block while the
+     * colormapper is saturated.
+     *
+     * @param colormapName
+     *            The name of the colormap to apply.
+     * @param dim
+     *            The bounds to map onto the colormap.
+     * @param data
+     *            The data, read from its current position up to its limit.
+     * @param fillValue
+     *            The value that marks missing data.
+     * @param logScale
+     *            Whether to map on a logarithmic scale.
+     * @param callback
+     *            Receives the image once it is done.
+     */
+    void makeImageAsync(String colormapName, Dimensions dim, FloatBuffer data, float fillValue, boolean logScale,
+            ImageCallback callback);
+
+    /**
+     * Start creating an image of the difference between two datasets, the
+     * experiment minus the control, and return before it is done. The
+     * difference is computed while mapping, without storing it in between.
+     * Where either dataset misses data, so does the image. The data must stay
+     * valid until the callback has been called. May block while the
+     * colormapper is saturated.
+     *
+     * @param colormapName
+     *            The name of the colormap to apply.
+     * @param dim
+     *            The bounds of the difference to map onto the colormap.
+     * @param control
+     *            The data of the control dataset, read from its current
+     *            position up to its limit.
+     * @param experiment
+     *            The data of the experiment dataset, laid out like the
+     *            control data.
+     * @param controlFillValue
+     *            The value that marks missing data in the control dataset.
+     * @param experimentFillValue
+     *            The value that marks missing data in the experiment dataset.
+     * @param callback
+     *            Receives the image once it is done.
+     */
+    void makeDifferenceImageAsync(String colormapName, Dimensions dim, FloatBuffer control, FloatBuffer experiment,
+            float controlFillValue, float experimentFillValue, ImageCallback callback);
+
+    /**
+     * Getter for the legend texture of a colormap.
+     */
+    ByteBuffer getColormapForLegendTexture(String colormapName);
+}
@@ -0,0 +1,79 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifies a single version of a dataset file by its location, size and
+ * modification time, so that anything derived from its contents can be
+ * reused as long as the file has not been replaced or changed.
+ */
+public class DatasetFingerprint {
+    private final String path;
+    private final long size;
+    private final long lastModified;
+
+    public DatasetFingerprint(String path, long size, long lastModified) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public static DatasetFingerprint of(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return new DatasetFingerprint(path, file.length(), file.lastModified());
+    }
+
+    public static DatasetFingerprint readFrom(DataInput in) throws IOException {
+        return new DatasetFingerprint(in.readUTF(), in.readLong(), in.readLong());
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(path);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = path.hashCode();
+        hash = 31 * hash + (int) (size ^ (size >>> 32));
+        hash = 31 * hash + (int) (lastModified ^ (lastModified >>> 32));
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object thatObject) {
+        if (this == thatObject)
+            return true;
+        if (!(thatObject instanceof DatasetFingerprint))
+            return false;
+
+        DatasetFingerprint that = (DatasetFingerprint) thatObject;
+        return path.compareTo(that.path) == 0 && size == that.size && lastModified == that.lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return path + " (" + size + " bytes, modified " + lastModified + ")";
+    }
+}
@@ -0,0 +1,46 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Destination of screenshots and movie frames taken by the
+ * {@link ScreenshotRing}. Frames are encoded on several threads at once, and
+ * written one at a time, in the order in which they were taken.
+ */
+public interface FrameSink {
+    /**
+     * Encodes a frame, may be called from several threads at once.
+     * 
+     * @param image
+     *            The frame.
+     * @return The encoded frame.
+     * @throws IOException
+     *             If the frame could not be encoded.
+     */
+    byte[] encode(BufferedImage image) throws IOException;
+
+    /**
+     * Writes an encoded frame.
+     * 
+     * @param name
+     *            The path of the frame, without extension.
+     * @param encoded
+     *            The frame as returned by {@link #encode(BufferedImage)}.
+     * @param width
+     *            The width of the frame.
+     * @param height
+     *            The height of the frame.
+     * @throws IOException
+     *             If the frame could not be written.
+     */
+    void write(String name, byte[] encoded, int width, int height) throws IOException;
+
+    /**
+     * Finishes the output, called after the last frame has been written.
+     * 
+     * @throws IOException
+     *             If the output could not be finished.
+     */
+    void close() throws IOException;
+}
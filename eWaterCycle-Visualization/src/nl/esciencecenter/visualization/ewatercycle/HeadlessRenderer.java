@@ -0,0 +1,318 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLException;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+import javax.swing.JFormattedTextField;
+import javax.swing.plaf.basic.BasicSliderUI;
+
+import nl.esciencecenter.neon.math.Float3Vector;
+import nl.esciencecenter.neon.swing.CustomJSlider;
+import nl.esciencecenter.visualization.ewatercycle.data.MovieSchedule;
+import nl.esciencecenter.visualization.ewatercycle.data.MovieSchedule.Orientation;
+import nl.esciencecenter.visualization.ewatercycle.data.TimedPlayer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders frames of a dataset without a window or Swing interface. The
+ * {@link WaterCycleWindow} is driven against an offscreen drawable (a
+ * framebuffer object or pbuffer, whichever the driver offers) and every image
+ * is written through its {@link ScreenshotRing} to a {@link FrameSink},
+ * numbered like the frames of the movie mode, so that several renderers can
+ * each write a shard of the same movie (see {@link MovieFarm}). On machines
+ * without a display, run it under a virtual X server such as Xvfb, with
+ * <code>LIBGL_ALWAYS_SOFTWARE=1</code> to use Mesa's software renderer where
+ * there is no GPU.
+ */
+public class HeadlessRenderer {
+    private final static WaterCycleSettings settings = WaterCycleSettings.getInstance();
+    private final static Logger logger = LoggerFactory.getLogger(HeadlessRenderer.class);
+
+    private final static long POLL_INTERVAL = 10;
+
+    private final WaterCycleWindow window;
+    private final TimedPlayer timer;
+    private final GLOffscreenAutoDrawable drawable;
+
+    public HeadlessRenderer(File[] files, int width, int height) throws GLException {
+        timer = new TimedPlayer(new CustomJSlider(new BasicSliderUI(null)), new JFormattedTextField());
+        timer.init(files);
+
+        window = new WaterCycleWindow(WaterCycleInputHandler.getInstance());
+        window.setTimer(timer);
+
+        final GLProfile glp = GLProfile.get(GLProfile.GL3);
+        final GLCapabilities caps = new GLCapabilities(glp);
+        caps.setOnscreen(false);
+        caps.setDoubleBuffered(false);
+
+        drawable = GLDrawableFactory.getFactory(glp).createOffscreenAutoDrawable(null, caps, null, width, height,
+                null);
+        drawable.addGLEventListener(window);
+    }
+
+    public TimedPlayer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Shows the timestep with the given index and draws until all screens
+     * display it.
+     *
+     * @param index
+     *            The index of the timestep in the dataset.
+     * @throws InterruptedException
+     *             If interrupted while waiting for the textures.
+     */
+    public void setFrame(int index) throws InterruptedException {
+        waitForTextures();
+        timer.setFrame(index, true);
+        waitForTextures();
+    }
+
+    private void waitForTextures() throws InterruptedException {
+        drawable.display();
+        while (settings.isRequestedNewConfiguration()) {
+            Thread.sleep(POLL_INTERVAL);
+            drawable.display();
+        }
+    }
+
+    /**
+     * Draws the current timestep from the given camera position and writes
+     * the image to the screenshot directory.
+     *
+     * @param rotation
+     *            The rotation of the globe, in degrees.
+     * @param viewDist
+     *            The distance of the camera to the globe.
+     * @param sink
+     *            The sink to write the image to.
+     * @param fileName
+     *            The name of the image, without extension.
+     * @throws InterruptedException
+     *             If interrupted while waiting for the textures.
+     */
+    public void renderImage(Float3Vector rotation, float viewDist, FrameSink sink, String fileName)
+            throws InterruptedException {
+        window.getInputHandler().setRotation(rotation);
+        window.getInputHandler().setViewDist(viewDist);
+
+        // Another view of a large grid may call for images of another part of
+        // its pyramid.
+        waitForTextures();
+
+        timer.requestScreenshot(fileName, sink);
+        drawable.display();
+    }
+
+    /**
+     * Closes a sink once all images written to it have been written.
+     *
+     * @param sink
+     *            The sink to close.
+     */
+    public void finishSink(FrameSink sink) {
+        timer.finishSink(sink);
+        drawable.display();
+    }
+
+    public void destroy() {
+        drawable.destroy();
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: HeadlessRenderer [options] file.nc [file.nc ...]");
+        System.err.println("  --size WIDTHxHEIGHT           size of the images");
+        System.err.println("  --screens ROWSxCOLUMNS        number of screens in every image");
+        System.err.println("  --variables VAR[,VAR...]      variable shown on each screen");
+        System.err.println("  --frames FIRST:LAST           range of timestep indices, inclusive");
+        System.err.println("  --shots N                     images per timestep");
+        System.err.println("  --camera X,Y,DIST[:X,Y,DIST]  rotation and view distance at the first");
+        System.err.println("                                and, optionally, the last image");
+        System.err.println("  --keyframe FRAME,X,Y,DIST     camera at the timestep with the given frame");
+        System.err.println("                                number, repeat for every key frame; replaces");
+        System.err.println("                                --frames and --camera");
+        System.err.println("  --shard INDEX/COUNT           render only this part of the images");
+        System.err.println("  --sink avi|png                write Motion JPEG AVI files or PNG images");
+        System.err.println("                                (default: MOVIE_FORMAT from the settings)");
+        System.err.println("  --output DIRECTORY            directory to write the images to");
+        System.exit(1);
+    }
+
+    private static Orientation parseKeyFrame(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            usage("Invalid key frame: " + value);
+        }
+        return new Orientation(Integer.parseInt(parts[0]), new Float3Vector(Float.parseFloat(parts[1]),
+                Float.parseFloat(parts[2]), 0f), Float.parseFloat(parts[3]));
+    }
+
+    private static float[] parseCamera(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 3) {
+            usage("Invalid camera position: " + value);
+        }
+        return new float[] { Float.parseFloat(parts[0]), Float.parseFloat(parts[1]), Float.parseFloat(parts[2]) };
+    }
+
+    public static void main(String[] arguments) {
+        int width = settings.getDefaultScreenWidth();
+        int height = settings.getDefaultScreenHeight();
+        int firstFrame = 0, lastFrame = -1;
+        int shotsPerStep = settings.getNumberOfScreenshotsPerTimeStep();
+        String[] variables = null;
+        float[] startCamera = { settings.getInitialRotationX(), settings.getInitialRotationY(),
+                settings.getInitialZoom() };
+        float[] endCamera = null;
+        ArrayList<Orientation> keyFrames = new ArrayList<Orientation>();
+        int shard = 0, shards = 1;
+        String format = settings.getMovieFormat();
+        ArrayList<File> files = new ArrayList<File>();
+
+        try {
+            for (int i = 0; i < arguments.length; i++) {
+                String argument = arguments[i];
+                if (argument.startsWith("--") && i + 1 >= arguments.length) {
+                    usage("Missing value for " + argument);
+                }
+
+                if (argument.compareTo("--size") == 0) {
+                    String[] size = arguments[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                } else if (argument.compareTo("--screens") == 0) {
+                    String[] screens = arguments[++i].split("x");
+                    settings.setNumberOfScreens(Integer.parseInt(screens[0]), Integer.parseInt(screens[1]));
+                } else if (argument.compareTo("--variables") == 0) {
+                    variables = arguments[++i].split(",");
+                } else if (argument.compareTo("--frames") == 0) {
+                    String[] range = arguments[++i].split(":");
+                    firstFrame = Integer.parseInt(range[0]);
+                    lastFrame = Integer.parseInt(range[1]);
+                } else if (argument.compareTo("--shots") == 0) {
+                    shotsPerStep = Integer.parseInt(arguments[++i]);
+                } else if (argument.compareTo("--camera") == 0) {
+                    String[] positions = arguments[++i].split(":");
+                    startCamera = parseCamera(positions[0]);
+                    if (positions.length > 1) {
+                        endCamera = parseCamera(positions[1]);
+                    }
+                } else if (argument.compareTo("--keyframe") == 0) {
+                    keyFrames.add(parseKeyFrame(arguments[++i]));
+                } else if (argument.compareTo("--shard") == 0) {
+                    String[] part = arguments[++i].split("/");
+                    shard = Integer.parseInt(part[0]);
+                    shards = Integer.parseInt(part[1]);
+                    if (shards < 1 || shard < 0 || shard >= shards) {
+                        usage("Invalid shard: " + arguments[i]);
+                    }
+                } else if (argument.compareTo("--sink") == 0) {
+                    format = arguments[++i];
+                    if (format.compareTo("avi") != 0 && format.compareTo("png") != 0) {
+                        usage("Unknown sink: " + format);
+                    }
+                } else if (argument.compareTo("--output") == 0) {
+                    String directory = arguments[++i];
+                    new File(directory).mkdirs();
+                    settings.setScreenshotPath(directory + File.separator);
+                } else if (argument.startsWith("--")) {
+                    usage("Unknown option: " + argument);
+                } else {
+                    files.add(new File(argument));
+                }
+            }
+        } catch (final NumberFormatException e) {
+            usage("Invalid number: " + e.getMessage());
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            usage("Invalid option value.");
+        }
+
+        if (files.isEmpty()) {
+            usage("No dataset given.");
+        }
+        if (endCamera == null) {
+            endCamera = startCamera;
+        }
+        settings.setNumberOfScreenshotsPerTimeStep(shotsPerStep);
+        settings.setMovieFormat(format);
+
+        HeadlessRenderer renderer = null;
+        try {
+            renderer = new HeadlessRenderer(files.toArray(new File[files.size()]), width, height);
+            TimedPlayer timer = renderer.getTimer();
+
+            ArrayList<String> screenVariables = new ArrayList<String>();
+            if (variables == null) {
+                screenVariables.addAll(timer.getVariables());
+            } else {
+                for (String variable : variables) {
+                    if (!timer.getVariables().contains(variable)) {
+                        usage("Unknown variable: " + variable);
+                    }
+                    screenVariables.add(variable);
+                }
+            }
+            int screens = settings.getNumScreensRows() * settings.getNumScreensCols();
+            for (int i = 0; i < Math.min(screens, screenVariables.size()); i++) {
+                timer.requestStatistics(screenVariables.get(i));
+            }
+            settings.initDefaultVariables(screenVariables);
+
+            if (keyFrames.isEmpty()) {
+                if (lastFrame < 0 || lastFrame >= timer.getNumFrames()) {
+                    lastFrame = timer.getNumFrames() - 1;
+                }
+
+                keyFrames.add(new Orientation(timer.getFrameNumberOfIndex(firstFrame), new Float3Vector(
+                        startCamera[0], startCamera[1], 0f), startCamera[2]));
+                keyFrames.add(new Orientation(timer.getFrameNumberOfIndex(lastFrame), new Float3Vector(endCamera[0],
+                        endCamera[1], 0f), endCamera[2]));
+            }
+
+            // Every renderer computes the same schedule and takes its own
+            // part of it.
+            MovieSchedule schedule = new MovieSchedule(keyFrames, timer.getFrameNumbers(), shotsPerStep);
+            List<Integer> movieFrameNumbers = schedule.getShard(shard, shards);
+            FrameSink sink = timer.createMovieSink();
+
+            int currentFrameNumber = -1;
+            for (int movieFrameNumber : movieFrameNumbers) {
+                int frameNumber = schedule.getFrameNumber(movieFrameNumber);
+                if (frameNumber != currentFrameNumber) {
+                    renderer.setFrame(timer.getIndexOfFrameNumber(frameNumber));
+                    currentFrameNumber = frameNumber;
+                }
+
+                String fileName = String.format("%06d", movieFrameNumber);
+                logger.info("Writing image: " + fileName);
+
+                Orientation o = schedule.getOrientation(movieFrameNumber);
+                renderer.renderImage(new Float3Vector(o.getRotation()), o.getViewDist(), sink, fileName);
+            }
+            renderer.finishSink(sink);
+        } catch (final GLException e) {
+            System.err.println("Unable to create an offscreen OpenGL 3 context: " + e.getMessage());
+            System.exit(1);
+        } catch (final InterruptedException e) {
+            System.err.println("Interrupted while rendering.");
+            System.exit(1);
+        } finally {
+            if (renderer != null) {
+                renderer.destroy();
+            }
+        }
+
+        System.exit(0);
+    }
+}
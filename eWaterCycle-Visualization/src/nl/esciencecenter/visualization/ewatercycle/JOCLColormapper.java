@@ -1,10 +1,12 @@
 package nl.esciencecenter.visualization.ewatercycle;
 
+import static org.jocl.CL.CL_COMPLETE;
 import static org.jocl.CL.CL_CONTEXT_PLATFORM;
 import static org.jocl.CL.CL_DEVICE_TYPE_ALL;
-import static org.jocl.CL.CL_MEM_READ_WRITE;
+import static org.jocl.CL.CL_FALSE;
+import static org.jocl.CL.CL_MEM_COPY_HOST_PTR;
+import static org.jocl.CL.CL_MEM_READ_ONLY;
 import static org.jocl.CL.CL_MEM_WRITE_ONLY;
-import static org.jocl.CL.CL_TRUE;
 import static org.jocl.CL.clBuildProgram;
 import static org.jocl.CL.clCreateBuffer;
 import static org.jocl.CL.clCreateCommandQueue;
@@ -14,8 +16,12 @@ import static org.jocl.CL.clCreateProgramWithSource;
 import static org.jocl.CL.clEnqueueNDRangeKernel;
 import static org.jocl.CL.clEnqueueReadBuffer;
 import static org.jocl.CL.clEnqueueWriteBuffer;
+import static org.jocl.CL.clFinish;
+import static org.jocl.CL.clFlush;
 import static org.jocl.CL.clGetDeviceIDs;
 import static org.jocl.CL.clGetPlatformIDs;
+import static org.jocl.CL.clReleaseEvent;
+import static org.jocl.CL.clSetEventCallback;
 import static org.jocl.CL.clSetKernelArg;
 
 import java.awt.Color;
@@ -30,10 +36,19 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.ImageIcon;
 import javax.swing.JComboBox;
@@ -43,12 +58,15 @@ import nl.esciencecenter.neon.swing.ImageComboBoxRenderer;
 import nl.esciencecenter.neon.swing.SimpleImageIcon;
 
 import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.EventCallbackFunction;
 import org.jocl.Pointer;
 import org.jocl.Sizeof;
 import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
 import org.jocl.cl_context_properties;
 import org.jocl.cl_device_id;
+import org.jocl.cl_event;
 import org.jocl.cl_kernel;
 import org.jocl.cl_mem;
 import org.jocl.cl_platform_id;
@@ -59,9 +77,13 @@ import org.slf4j.LoggerFactory;
 import com.jogamp.common.nio.Buffers;
 
 /**
- * A class that uses a simple OpenCL kernel to compute a colormapped image
+ * A class that uses a simple OpenCL kernel to compute a colormapped image.
+ * Images are mapped in a pipeline: every request claims one of a small number
+ * of buffer sets, each with its own command queue, so the upload, kernel and
+ * download of one image overlap with those of the others. The colormaps are
+ * uploaded to the device once and stay resident.
  */
-public class JOCLColormapper {
+public class JOCLColormapper implements Colormapper {
     private final static Logger logger = LoggerFactory.getLogger(JOCLColormapper.class);
 
     /**
@@ -89,6 +111,47 @@ public class JOCLColormapper {
         }
     }
 
+    /**
+     * Everything a single image needs on its way through the device. A set is
+     * owned by one request from the moment it is taken from the free queue
+     * until its result has been copied out.
+     */
+    private static class BufferSet {
+        private final cl_command_queue commandQueue;
+        private final cl_kernel kernel;
+        private final cl_kernel logKernel;
+        private final cl_kernel differenceKernel;
+        private final cl_mem dataMem;
+        private final cl_mem experimentMem;
+        private final cl_mem outputMem;
+        private final FloatBuffer hostData;
+        private final FloatBuffer hostExperiment;
+        private final IntBuffer hostOutput;
+
+        public BufferSet(cl_context context, cl_device_id device, cl_program program, cl_program logProgram,
+                cl_program differenceProgram, int pixels) {
+            commandQueue = clCreateCommandQueue(context, device, 0, null);
+            kernel = clCreateKernel(program, "mapColors", null);
+            logKernel = clCreateKernel(logProgram, "mapColors", null);
+            differenceKernel = clCreateKernel(differenceProgram, "mapDifference", null);
+            dataMem = clCreateBuffer(context, CL_MEM_READ_ONLY, pixels * Sizeof.cl_float, null, null);
+            experimentMem = clCreateBuffer(context, CL_MEM_READ_ONLY, pixels * Sizeof.cl_float, null, null);
+            outputMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY, pixels * Sizeof.cl_uint, null, null);
+            hostData = ByteBuffer.allocateDirect(pixels * Sizeof.cl_float).order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            hostExperiment = ByteBuffer.allocateDirect(pixels * Sizeof.cl_float).order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            hostOutput = ByteBuffer.allocateDirect(pixels * Sizeof.cl_uint).order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+        }
+    }
+
+    /** The number of images that can be in flight at the same time. */
+    private final static int BUFFER_SETS = 4;
+
+    /** The color for missing data, see the fillColor kernel argument. */
+    private final static int FILL_COLOR = 0 << 24 | 0 << 16 | 0 << 8 | 0 << 0;
+
     /** Storage for the colormaps. */
     private static Map<String, int[]> colorMaps;
 
@@ -108,32 +171,29 @@ public class JOCLColormapper {
     private cl_context context;
 
     /**
-     * The OpenCL command queue
+     * The buffer sets that are not in use, taking one blocks until an image in
+     * flight has completed.
      */
-    private cl_command_queue commandQueue;
+    private BlockingQueue<BufferSet> freeBufferSets;
 
     /**
-     * The OpenCL kernel which will actually compute the Colormap and store the
-     * pixel data in a CL memory object
+     * OpenCL memory objects which store the color maps, encoded as integers
+     * combining the RGB components of the colors, by colormap name.
      */
-    private cl_kernel kernel;
-    private cl_kernel logKernel;
+    private final Map<String, cl_mem> colorMapMems = new HashMap<String, cl_mem>();
 
     /**
-     * The OpenCL memory object which stores the pixel data
+     * Copies finished images out of their buffer set and hands them to the
+     * callbacks, keeping that work off the OpenCL driver's threads.
      */
-    private cl_mem outputMem;
-
-    /**
-     * The OpenCL memory object which stores the raw data
-     */
-    private cl_mem dataMem;
-
-    /**
-     * An OpenCL memory object which stores a nifty color map, encoded as
-     * integers combining the RGB components of the colors.
-     */
-    private cl_mem colorMapMem;
+    private final ExecutorService completionExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "JOCLColormapper completion");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     static {
         // Create and fill the memory object containing the color maps
@@ -162,25 +222,21 @@ public class JOCLColormapper {
     private final static int COLORMAP_FINAL_ENTRIES = 500;
 
     /**
-     * Initialize OpenCL: Create the context, the command queue and the kernel.
+     * Initialize OpenCL: Create the context, and the command queues, kernels
+     * and buffers of every buffer set.
      */
     private void initCL(int width, int height) {
-        final int platformIndex = 0;
         final long deviceType = CL_DEVICE_TYPE_ALL;
         final int deviceIndex = 0;
 
         // Enable exceptions and subsequently omit error checks in this sample
         CL.setExceptionsEnabled(true);
 
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
         // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
+        cl_platform_id platform = findPlatform();
+        if (platform == null) {
+            throw new CLException("No OpenCL device available");
+        }
 
         // Initialize the context properties
         cl_context_properties contextProperties = new cl_context_properties();
@@ -199,9 +255,6 @@ public class JOCLColormapper {
         // Create a context for the selected device
         context = clCreateContext(contextProperties, 1, new cl_device_id[] { device }, null, null, null);
 
-        // Create a command-queue for the selected device
-        commandQueue = clCreateCommandQueue(context, device, 0, null);
-
         // Program Setup
         String source = readFile("kernels/Colormapper.cl");
 
@@ -211,14 +264,72 @@ public class JOCLColormapper {
         // Build the program
         clBuildProgram(cpProgram, 0, null, "-cl-mad-enable", null, null);
 
-        // Create the kernel
-        kernel = clCreateKernel(cpProgram, "mapColors", null);
-
         // Same Program Setup for Logarithmic scale colormapper
         source = readFile("kernels/LogColormapper.cl");
-        cpProgram = clCreateProgramWithSource(context, 1, new String[] { source }, null, null);
-        clBuildProgram(cpProgram, 0, null, "-cl-mad-enable", null, null);
-        logKernel = clCreateKernel(cpProgram, "mapColors", null);
+        cl_program logProgram = clCreateProgramWithSource(context, 1, new String[] { source }, null, null);
+        clBuildProgram(logProgram, 0, null, "-cl-mad-enable", null, null);
+
+        // And for the differences between two datasets
+        source = readFile("kernels/DifferenceColormapper.cl");
+        cl_program differenceProgram = clCreateProgramWithSource(context, 1, new String[] { source }, null, null);
+        clBuildProgram(differenceProgram, 0, null, "-cl-mad-enable", null, null);
+
+        // Create the buffer sets, each with its own queue and kernels, since
+        // kernel arguments are shared by everyone using the same kernel
+        freeBufferSets = new ArrayBlockingQueue<BufferSet>(BUFFER_SETS);
+        for (int i = 0; i < BUFFER_SETS; i++) {
+            freeBufferSets.add(new BufferSet(context, device, cpProgram, logProgram, differenceProgram,
+                    width * height));
+        }
+    }
+
+    /**
+     * Find the first platform that has at least one device.
+     *
+     * @return The platform, or null if there is none.
+     */
+    private static cl_platform_id findPlatform() {
+        CL.setExceptionsEnabled(true);
+
+        int numPlatformsArray[] = new int[1];
+        clGetPlatformIDs(0, null, numPlatformsArray);
+        int numPlatforms = numPlatformsArray[0];
+        if (numPlatforms == 0) {
+            return null;
+        }
+
+        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
+        clGetPlatformIDs(platforms.length, platforms, null);
+
+        for (cl_platform_id platform : platforms) {
+            try {
+                int numDevicesArray[] = new int[1];
+                clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, 0, null, numDevicesArray);
+                if (numDevicesArray[0] > 0) {
+                    return platform;
+                }
+            } catch (CLException e) {
+                // CL_DEVICE_NOT_FOUND, try the next platform
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check whether OpenCL can be used on this machine at all.
+     *
+     * @return true if the OpenCL library loads and there is a platform with at
+     *         least one device.
+     */
+    public static boolean isAvailable() {
+        try {
+            return findPlatform() != null;
+        } catch (CLException e) {
+            logger.debug("OpenCL platform query failed", e);
+        } catch (UnsatisfiedLinkError e) {
+            logger.debug("OpenCL library could not be loaded", e);
+        }
+        return false;
     }
 
     /**
@@ -373,7 +484,7 @@ public class JOCLColormapper {
      * @param colors
      *            The colors for the map
      */
-    private static int[] initColorMapToSetSize(int finalSize, ArrayList<Color> colors) {
+    static int[] initColorMapToSetSize(int finalSize, ArrayList<Color> colors) {
         int[] colorMap = new int[finalSize];
         int cmEntries = colors.size();
 
@@ -514,70 +625,299 @@ public class JOCLColormapper {
         return colorMap;
     }
 
+    /**
+     * Getter for the entries of a colormap, shared with the other colormapper
+     * implementations.
+     */
+    static int[] getColorMap(String colormapName) {
+        return colorMaps.get(colormapName);
+    }
+
+    static ByteBuffer getLegendByteBuffer(String colormapName) {
+        return legendByteBuffers.get(colormapName);
+    }
+
     /**
      * Execute the kernel function and return the resulting pixel data in an
      * array
      */
-    public synchronized int[] makeImage(String colormapName, Dimensions dim, float[] data, float fillValue,
-            boolean logScale) {
-        // select colormap and write to GPU
+    @Override
+    public int[] makeImage(String colormapName, Dimensions dim, float[] data, float fillValue, boolean logScale) {
+        return makeImage(colormapName, dim, FloatBuffer.wrap(data), fillValue, logScale);
+    }
+
+    /**
+     * Create an image straight from a (possibly memory-mapped) buffer, and wait
+     * for it. Several threads may do so at the same time, their images are
+     * pipelined.
+     */
+    @Override
+    public int[] makeImage(String colormapName, Dimensions dim, FloatBuffer data, float fillValue, boolean logScale) {
+        final int[][] result = new int[1][];
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+
+        makeImageAsync(colormapName, dim, data, fillValue, logScale, new ImageCallback() {
+            @Override
+            public void imageReady(int[] pixels) {
+                result[0] = pixels;
+                done.countDown();
+            }
+
+            @Override
+            public void imageFailed(Throwable cause) {
+                failure[0] = cause;
+                done.countDown();
+            }
+        });
+
+        boolean interrupted = false;
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure[0] instanceof RuntimeException) {
+            throw (RuntimeException) failure[0];
+        } else if (failure[0] != null) {
+            throw new IllegalStateException("Unable to make the image", failure[0]);
+        }
+        return result[0];
+    }
+
+    /**
+     * Start creating an image and return as soon as the work has been queued
+     * on the device. The data is copied before this method returns, so the
+     * buffer may be reused right away. Blocks only if all buffer sets are in
+     * use. Failures, including an unknown colormap, are reported to the
+     * callback.
+     */
+    @Override
+    public void makeImageAsync(String colormapName, Dimensions dim, FloatBuffer data, float fillValue,
+            boolean logScale, final ImageCallback callback) {
         int[] colorMap = colorMaps.get(colormapName);
         if (colorMap == null) {
-            System.out.println("Non-existing colormap selected: " + colormapName);
+            callback.imageFailed(new IllegalArgumentException("Non-existing colormap selected: " + colormapName));
+            return;
         }
-        if (colorMapMem == null) {
-            colorMapMem = clCreateBuffer(context, CL_MEM_READ_WRITE, colorMap.length * Sizeof.cl_uint, null, null);
+
+        final BufferSet set = takeBufferSet();
+        try {
+            cl_mem colorMapMem = getColorMapMem(colormapName, colorMap);
+
+            set.hostData.clear();
+            set.hostData.put(data.duplicate());
+            set.hostData.flip();
+
+            cl_kernel currentKernel = set.kernel;
+            if (logScale) {
+                currentKernel = set.logKernel;
+            }
+
+            // load uniforms
+            clSetKernelArg(currentKernel, 0, Sizeof.cl_mem, Pointer.to(set.dataMem));
+            clSetKernelArg(currentKernel, 1, Sizeof.cl_mem, Pointer.to(set.outputMem));
+            clSetKernelArg(currentKernel, 2, Sizeof.cl_mem, Pointer.to(colorMapMem));
+            clSetKernelArg(currentKernel, 3, Sizeof.cl_uint, Pointer.to(new int[] { width }));
+            clSetKernelArg(currentKernel, 4, Sizeof.cl_uint, Pointer.to(new int[] { height }));
+            clSetKernelArg(currentKernel, 5, Sizeof.cl_float, Pointer.to(new float[] { fillValue }));
+            clSetKernelArg(currentKernel, 6, Sizeof.cl_float, Pointer.to(new float[] { dim.getMin() }));
+            clSetKernelArg(currentKernel, 7, Sizeof.cl_float, Pointer.to(new float[] { dim.getMax() }));
+            clSetKernelArg(currentKernel, 8, Sizeof.cl_uint, Pointer.to(new int[] { FILL_COLOR }));
+            clSetKernelArg(currentKernel, 9, Sizeof.cl_uint, Pointer.to(new int[] { colorMap.length }));
+
+            enqueue(set, currentKernel, false, callback);
+        } catch (RuntimeException e) {
+            freeBufferSets.add(set);
+            callback.imageFailed(e);
         }
-        clEnqueueWriteBuffer(commandQueue, colorMapMem, CL_TRUE, 0, colorMap.length * Sizeof.cl_uint,
-                Pointer.to(colorMap), 0, null, null);
+    }
 
-        // write data to GPU
-        if (dataMem == null) {
-            dataMem = clCreateBuffer(context, CL_MEM_READ_WRITE, width * height * Sizeof.cl_float, null, null);
+    /**
+     * Start creating an image of the difference between two datasets. Both
+     * are uploaded as they are and subtracted by the kernel, so the difference
+     * never exists outside of its registers. The data is copied before this
+     * method returns, so the buffers may be reused right away. Blocks only if
+     * all buffer sets are in use. Failures, including an unknown colormap, are
+     * reported to the callback.
+     */
+    @Override
+    public void makeDifferenceImageAsync(String colormapName, Dimensions dim, FloatBuffer control,
+            FloatBuffer experiment, float controlFillValue, float experimentFillValue, ImageCallback callback) {
+        int[] colorMap = colorMaps.get(colormapName);
+        if (colorMap == null) {
+            callback.imageFailed(new IllegalArgumentException("Non-existing colormap selected: " + colormapName));
+            return;
         }
-        clEnqueueWriteBuffer(commandQueue, dataMem, CL_TRUE, 0, width * height * Sizeof.cl_float, Pointer.to(data), 0,
-                null, null);
 
-        // Define the output buffer
-        if (outputMem == null) {
-            outputMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY, width * height * Sizeof.cl_uint, null, null);
+        final BufferSet set = takeBufferSet();
+        try {
+            cl_mem colorMapMem = getColorMapMem(colormapName, colorMap);
+
+            set.hostData.clear();
+            set.hostData.put(control.duplicate());
+            set.hostData.flip();
+            set.hostExperiment.clear();
+            set.hostExperiment.put(experiment.duplicate());
+            set.hostExperiment.flip();
+
+            cl_kernel currentKernel = set.differenceKernel;
+
+            // load uniforms
+            clSetKernelArg(currentKernel, 0, Sizeof.cl_mem, Pointer.to(set.dataMem));
+            clSetKernelArg(currentKernel, 1, Sizeof.cl_mem, Pointer.to(set.experimentMem));
+            clSetKernelArg(currentKernel, 2, Sizeof.cl_mem, Pointer.to(set.outputMem));
+            clSetKernelArg(currentKernel, 3, Sizeof.cl_mem, Pointer.to(colorMapMem));
+            clSetKernelArg(currentKernel, 4, Sizeof.cl_uint, Pointer.to(new int[] { width }));
+            clSetKernelArg(currentKernel, 5, Sizeof.cl_uint, Pointer.to(new int[] { height }));
+            clSetKernelArg(currentKernel, 6, Sizeof.cl_float, Pointer.to(new float[] { controlFillValue }));
+            clSetKernelArg(currentKernel, 7, Sizeof.cl_float, Pointer.to(new float[] { experimentFillValue }));
+            clSetKernelArg(currentKernel, 8, Sizeof.cl_float, Pointer.to(new float[] { dim.getMin() }));
+            clSetKernelArg(currentKernel, 9, Sizeof.cl_float, Pointer.to(new float[] { dim.getMax() }));
+            clSetKernelArg(currentKernel, 10, Sizeof.cl_uint, Pointer.to(new int[] { FILL_COLOR }));
+            clSetKernelArg(currentKernel, 11, Sizeof.cl_uint, Pointer.to(new int[] { colorMap.length }));
+
+            enqueue(set, currentKernel, true, callback);
+        } catch (RuntimeException e) {
+            freeBufferSets.add(set);
+            callback.imageFailed(e);
         }
+    }
 
+    /**
+     * Upload the data of a buffer set, run the kernel and download the image
+     * without blocking, each step waiting for the one before it. The callback
+     * is called once the image is on the host, or once one of the steps
+     * failed. If enqueueing itself fails, whatever was enqueued is waited for
+     * and the exception is thrown, without calling the callback.
+     */
+    private void enqueue(final BufferSet set, cl_kernel currentKernel, boolean withExperiment,
+            final ImageCallback callback) {
         // Set work size
         long globalWorkSize[] = new long[2];
         globalWorkSize[0] = width;
         globalWorkSize[1] = height;
 
-        cl_kernel currentKernel = kernel;
-        if (logScale) {
-            currentKernel = logKernel;
+        final cl_event writeEvent = new cl_event();
+        final cl_event experimentWriteEvent = withExperiment ? new cl_event() : null;
+        final cl_event kernelEvent = new cl_event();
+        final cl_event readEvent = new cl_event();
+
+        try {
+            clEnqueueWriteBuffer(set.commandQueue, set.dataMem, CL_FALSE, 0, width * height * Sizeof.cl_float,
+                    Pointer.to(set.hostData), 0, null, writeEvent);
+            cl_event[] writeEvents = new cl_event[] { writeEvent };
+            if (withExperiment) {
+                clEnqueueWriteBuffer(set.commandQueue, set.experimentMem, CL_FALSE, 0, width * height
+                        * Sizeof.cl_float, Pointer.to(set.hostExperiment), 0, null, experimentWriteEvent);
+                writeEvents = new cl_event[] { writeEvent, experimentWriteEvent };
+            }
+            clEnqueueNDRangeKernel(set.commandQueue, currentKernel, 2, null, globalWorkSize, null,
+                    writeEvents.length, writeEvents, kernelEvent);
+            clEnqueueReadBuffer(set.commandQueue, set.outputMem, CL_FALSE, 0, width * height * Sizeof.cl_uint,
+                    Pointer.to(set.hostOutput), 1, new cl_event[] { kernelEvent }, readEvent);
+            clFlush(set.commandQueue);
+
+            // Registered last, so the callback is never called for an image
+            // that failed here.
+            clSetEventCallback(readEvent, CL_COMPLETE, new EventCallbackFunction() {
+                @Override
+                public void function(cl_event event, final int commandExecCallbackType, Object userData) {
+                    completionExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // The status is negative if the read, or a step
+                            // it waited for, failed.
+                            int pixels[] = null;
+                            if (commandExecCallbackType == CL_COMPLETE) {
+                                pixels = new int[width * height];
+                                set.hostOutput.clear();
+                                set.hostOutput.get(pixels);
+                            }
+
+                            releaseEvents(writeEvent, experimentWriteEvent, kernelEvent, readEvent);
+                            freeBufferSets.add(set);
+
+                            if (pixels != null) {
+                                callback.imageReady(pixels);
+                            } else {
+                                callback.imageFailed(new CLException("Colormapping failed: "
+                                        + CL.stringFor_errorCode(commandExecCallbackType), commandExecCallbackType));
+                            }
+                        }
+                    });
+                }
+            }, null);
+        } catch (RuntimeException e) {
+            // Let whatever was enqueued finish before the buffers are used
+            // for another image.
+            try {
+                clFinish(set.commandQueue);
+            } catch (CLException e1) {
+                logger.error("Unable to finish the commands of a failed image", e1);
+            }
+            releaseEvents(writeEvent, experimentWriteEvent, kernelEvent, readEvent);
+            throw e;
+        }
+    }
+
+    /**
+     * Release the events of an image, skipping the ones that were never
+     * enqueued.
+     */
+    private static void releaseEvents(cl_event... events) {
+        for (cl_event event : events) {
+            if (event != null) {
+                try {
+                    clReleaseEvent(event);
+                } catch (CLException e) {
+                    // Not enqueued, so there is nothing to release.
+                }
+            }
+        }
+    }
+
+    private BufferSet takeBufferSet() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return freeBufferSets.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
+    }
 
-        // load uniforms
-        clSetKernelArg(currentKernel, 0, Sizeof.cl_mem, Pointer.to(dataMem));
-        clSetKernelArg(currentKernel, 1, Sizeof.cl_mem, Pointer.to(outputMem));
-        clSetKernelArg(currentKernel, 2, Sizeof.cl_mem, Pointer.to(colorMapMem));
-        clSetKernelArg(currentKernel, 3, Sizeof.cl_uint, Pointer.to(new int[] { width }));
-        clSetKernelArg(currentKernel, 4, Sizeof.cl_uint, Pointer.to(new int[] { height }));
-        clSetKernelArg(currentKernel, 5, Sizeof.cl_float, Pointer.to(new float[] { fillValue }));
-        clSetKernelArg(currentKernel, 6, Sizeof.cl_float, Pointer.to(new float[] { dim.getMin() }));
-        clSetKernelArg(currentKernel, 7, Sizeof.cl_float, Pointer.to(new float[] { dim.getMax() }));
-        clSetKernelArg(currentKernel, 8, Sizeof.cl_uint, Pointer.to(new int[] { 0 << 24 | 0 << 16 | 0 << 8 | 0 << 0 }));
-        clSetKernelArg(currentKernel, 9, Sizeof.cl_uint, Pointer.to(new int[] { colorMap.length }));
-
-        // and execute the currentKernel
-        clEnqueueNDRangeKernel(commandQueue, currentKernel, 2, null, globalWorkSize, null, 0, null, null);
-
-        // Read the output pixel data into the array
-        int pixels[] = new int[width * height];
-        clEnqueueReadBuffer(commandQueue, outputMem, CL_TRUE, 0, width * height * Sizeof.cl_uint, Pointer.to(pixels),
-                0, null, null);
-
-        return pixels;
+    /**
+     * Get the device copy of a colormap, uploading it the first time it is
+     * used.
+     */
+    private cl_mem getColorMapMem(String colormapName, int[] colorMap) {
+        synchronized (colorMapMems) {
+            cl_mem result = colorMapMems.get(colormapName);
+            if (result == null) {
+                result = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, colorMap.length
+                        * Sizeof.cl_uint, Pointer.to(colorMap), null);
+                colorMapMems.put(colormapName, result);
+            }
+            return result;
+        }
     }
 
+    @Override
     public ByteBuffer getColormapForLegendTexture(String colormapName) {
-        return legendByteBuffers.get(colormapName);
+        return getLegendByteBuffer(colormapName);
     }
 
     /**
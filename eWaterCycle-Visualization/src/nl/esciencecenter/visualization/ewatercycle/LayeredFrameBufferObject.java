@@ -0,0 +1,152 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.nio.IntBuffer;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.exceptions.UninitializedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A framebuffer object that renders into the layers of a
+ * {@link Texture2DArray}, one layer per screen. Bound as a whole, a geometry
+ * shader chooses the layer of every primitive with <code>gl_Layer</code>, so
+ * all screens are drawn in a single (instanced) call. A single layer can be
+ * bound as well, for things that are drawn per screen.
+ */
+public class LayeredFrameBufferObject {
+    private final static Logger logger = LoggerFactory.getLogger(LayeredFrameBufferObject.class);
+
+    private static final int ALL_LAYERS = -1;
+
+    private final Texture2DArray colorTexture;
+    private final Texture2DArray depthTexture;
+    private IntBuffer fboPointer;
+    private int attachedLayer = ALL_LAYERS;
+    private boolean initialized = false;
+
+    /**
+     * Do not forget to call {@link #init(GL3)} before use.
+     *
+     * @param width
+     *            The width of every layer.
+     * @param height
+     *            The height of every layer.
+     * @param layers
+     *            The number of layers.
+     * @param glMultitexUnit
+     *            The OpenGL-internal MultitexUnit (GL.GL_TEXTUREX) the color
+     *            layers are sampled from.
+     * @param withDepth
+     *            Whether the layers need a depth buffer.
+     */
+    public LayeredFrameBufferObject(int width, int height, int layers, int glMultitexUnit, boolean withDepth) {
+        colorTexture = new Texture2DArray(glMultitexUnit, width, height, layers, GL3.GL_RGBA8, 1);
+        if (withDepth) {
+            depthTexture = new Texture2DArray(glMultitexUnit, width, height, layers, GL3.GL_DEPTH_COMPONENT24, 1);
+        } else {
+            depthTexture = null;
+        }
+    }
+
+    public void init(GL3 gl) {
+        if (!initialized) {
+            if (depthTexture != null) {
+                depthTexture.init(gl);
+            }
+            // Initialized last, so the color layers are left bound to the
+            // multitexture unit.
+            colorTexture.init(gl);
+
+            fboPointer = IntBuffer.allocate(1);
+            gl.glGenFramebuffers(1, fboPointer);
+            gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, fboPointer.get(0));
+            initialized = true;
+
+            try {
+                attachAllLayers(gl);
+            } catch (UninitializedException e) {
+                logger.error(e.getMessage());
+            }
+
+            int status = gl.glCheckFramebufferStatus(GL3.GL_FRAMEBUFFER);
+            if (status != GL3.GL_FRAMEBUFFER_COMPLETE) {
+                logger.error("Layered framebuffer incomplete, status 0x" + Integer.toHexString(status));
+            }
+            gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, 0);
+        }
+    }
+
+    /**
+     * Binds all layers as the render target.
+     *
+     * @param gl
+     *            The current OpenGL instance.
+     */
+    public void bind(GL3 gl) throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
+        gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, fboPointer.get(0));
+        if (attachedLayer != ALL_LAYERS) {
+            attachAllLayers(gl);
+        }
+    }
+
+    /**
+     * Binds a single layer as the render target.
+     *
+     * @param gl
+     *            The current OpenGL instance.
+     * @param layer
+     *            The layer to render to.
+     */
+    public void bindLayer(GL3 gl, int layer) throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
+        gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, fboPointer.get(0));
+        if (attachedLayer != layer) {
+            gl.glFramebufferTextureLayer(GL3.GL_FRAMEBUFFER, GL3.GL_COLOR_ATTACHMENT0, colorTexture.getPointer()
+                    .get(0), 0, layer);
+            if (depthTexture != null) {
+                gl.glFramebufferTextureLayer(GL3.GL_FRAMEBUFFER, GL3.GL_DEPTH_ATTACHMENT, depthTexture.getPointer()
+                        .get(0), 0, layer);
+            }
+            attachedLayer = layer;
+        }
+    }
+
+    private void attachAllLayers(GL3 gl) throws UninitializedException {
+        gl.glFramebufferTexture(GL3.GL_FRAMEBUFFER, GL3.GL_COLOR_ATTACHMENT0, colorTexture.getPointer().get(0), 0);
+        if (depthTexture != null) {
+            gl.glFramebufferTexture(GL3.GL_FRAMEBUFFER, GL3.GL_DEPTH_ATTACHMENT, depthTexture.getPointer().get(0), 0);
+        }
+        attachedLayer = ALL_LAYERS;
+    }
+
+    public void unBind(GL3 gl) {
+        gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, 0);
+    }
+
+    public Texture2DArray getTexture() {
+        return colorTexture;
+    }
+
+    public void delete(GL3 gl) {
+        if (initialized) {
+            gl.glDeleteFramebuffers(1, fboPointer);
+            try {
+                colorTexture.delete(gl);
+                if (depthTexture != null) {
+                    depthTexture.delete(gl);
+                }
+            } catch (UninitializedException e) {
+                logger.error(e.getMessage());
+            }
+            initialized = false;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the frames of a movie as Motion JPEG into AVI files, using only the
+ * JPEG encoder of the JDK. Every frame is a key frame, so a movie can be cut
+ * anywhere. A file is closed and the next one started once it approaches
+ * 1 GB, well within the limits of the original AVI format, or when the size of
+ * the frames changes. Each file is named after its first frame, so the files
+ * of a movie sort in order. They cannot simply be concatenated; remux them into
+ * one movie instead, for example with the concat demuxer of ffmpeg.
+ */
+public class MJPEGAVISink implements FrameSink {
+    private final static Logger logger = LoggerFactory.getLogger(MJPEGAVISink.class);
+
+    private final static float JPEG_QUALITY = 0.9f;
+    private final static long MAX_SEGMENT_SIZE = 1L << 30;
+
+    private final static int HEADER_SIZE = 224;
+    private final static int MOVI_LIST_OFFSET = 212;
+    private final static int AVIF_HASINDEX = 0x10;
+    private final static int AVIIF_KEYFRAME = 0x10;
+
+    private final int framesPerSecond;
+
+    private FileChannel channel;
+    private String segmentName;
+    private int width, height;
+    private long moviSize;
+    private int maxFrameSize;
+
+    /** Offset (relative to the movi list) and size of every frame. */
+    private final ArrayList<int[]> index = new ArrayList<int[]>();
+
+    public MJPEGAVISink(int framesPerSecond) {
+        this.framesPerSecond = framesPerSecond;
+    }
+
+    @Override
+    public byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public synchronized void write(String name, byte[] encoded, int width, int height) throws IOException {
+        long chunkSize = 8 + encoded.length + (encoded.length % 2);
+
+        if (channel != null
+                && (width != this.width || height != this.height || moviSize + chunkSize > MAX_SEGMENT_SIZE)) {
+            closeSegment();
+        }
+        if (channel == null) {
+            openSegment(name, width, height);
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate((int) chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+        putFourCC(chunk, "00dc");
+        chunk.putInt(encoded.length);
+        chunk.put(encoded);
+        chunk.rewind();
+        writeFully(chunk);
+
+        // Offsets in the index point at the chunk header, counted from the
+        // 'movi' identifier.
+        index.add(new int[] { (int) (4 + moviSize), encoded.length });
+        moviSize += chunkSize;
+        maxFrameSize = Math.max(maxFrameSize, encoded.length);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            closeSegment();
+        }
+    }
+
+    private void openSegment(String name, int width, int height) throws IOException {
+        segmentName = name + ".avi";
+        File file = new File(segmentName);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.width = width;
+        this.height = height;
+        moviSize = 0;
+        maxFrameSize = 0;
+        index.clear();
+
+        // Reserve the space for the headers, they are written once the
+        // number of frames is known.
+        writeFully(createHeader());
+    }
+
+    private void closeSegment() throws IOException {
+        ByteBuffer idx1 = ByteBuffer.allocate(8 + 16 * index.size()).order(ByteOrder.LITTLE_ENDIAN);
+        putFourCC(idx1, "idx1");
+        idx1.putInt(16 * index.size());
+        for (int[] entry : index) {
+            putFourCC(idx1, "00dc");
+            idx1.putInt(AVIIF_KEYFRAME);
+            idx1.putInt(entry[0]);
+            idx1.putInt(entry[1]);
+        }
+        idx1.rewind();
+        writeFully(idx1);
+
+        channel.position(0);
+        writeFully(createHeader());
+        channel.close();
+        channel = null;
+
+        logger.info("Movie saved: " + segmentName + " (" + index.size() + " frames)");
+    }
+
+    private ByteBuffer createHeader() {
+        int frames = index.size();
+        long fileSize = HEADER_SIZE + moviSize + 8 + 16 * frames;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        putFourCC(header, "RIFF");
+        header.putInt((int) (fileSize - 8));
+        putFourCC(header, "AVI ");
+
+        putFourCC(header, "LIST");
+        header.putInt(MOVI_LIST_OFFSET - 20);
+        putFourCC(header, "hdrl");
+
+        // Main AVI header
+        putFourCC(header, "avih");
+        header.putInt(56);
+        header.putInt(1000000 / framesPerSecond);
+        header.putInt(maxFrameSize * framesPerSecond);
+        header.putInt(0);
+        header.putInt(AVIF_HASINDEX);
+        header.putInt(frames);
+        header.putInt(0);
+        header.putInt(1);
+        header.putInt(maxFrameSize);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+
+        putFourCC(header, "LIST");
+        header.putInt(116);
+        putFourCC(header, "strl");
+
+        // Stream header
+        putFourCC(header, "strh");
+        header.putInt(56);
+        putFourCC(header, "vids");
+        putFourCC(header, "MJPG");
+        header.putInt(0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt(1);
+        header.putInt(framesPerSecond);
+        header.putInt(0);
+        header.putInt(frames);
+        header.putInt(maxFrameSize);
+        header.putInt(-1);
+        header.putInt(0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) width);
+        header.putShort((short) height);
+
+        // Stream format, a BITMAPINFOHEADER
+        putFourCC(header, "strf");
+        header.putInt(40);
+        header.putInt(40);
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1);
+        header.putShort((short) 24);
+        putFourCC(header, "MJPG");
+        header.putInt(width * height * 3);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+
+        putFourCC(header, "LIST");
+        header.putInt((int) (4 + moviSize));
+        putFourCC(header, "movi");
+
+        header.rewind();
+        return header;
+    }
+
+    private static void putFourCC(ByteBuffer buffer, String fourCC) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) fourCC.charAt(i));
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders a movie with several {@link HeadlessRenderer} processes at once.
+ * Every process computes the same camera schedule and writes its own shard of
+ * the images, so the output directory ends up with the same numbered images
+ * as a single run. With the AVI sink every shard is a file of its own, named
+ * after its first image, so the files sort in order. AVI files cannot simply be
+ * concatenated, so remux the shards into one movie afterwards, for example
+ * with the concat demuxer of ffmpeg. To spread a movie over several machines,
+ * run the renderer on each of them with its own
+ * <code>--shard INDEX/COUNT</code> instead.
+ */
+public class MovieFarm {
+    private final static Logger logger = LoggerFactory.getLogger(MovieFarm.class);
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: MovieFarm [--workers N] [--heap SIZE] [renderer options] file.nc [file.nc ...]");
+        System.err.println("  --workers N                   number of renderer processes (default: one per core)");
+        System.err.println("  --heap SIZE                   maximum heap size of every renderer, e.g. 4g");
+        System.err.println("All other arguments are passed to the HeadlessRenderer, except --shard.");
+        System.exit(1);
+    }
+
+    public static void main(String[] arguments) {
+        int workers = Runtime.getRuntime().availableProcessors();
+        String heap = null;
+        ArrayList<String> rendererArguments = new ArrayList<String>();
+
+        try {
+            for (int i = 0; i < arguments.length; i++) {
+                String argument = arguments[i];
+                if (argument.compareTo("--workers") == 0) {
+                    workers = Integer.parseInt(arguments[++i]);
+                } else if (argument.compareTo("--heap") == 0) {
+                    heap = arguments[++i];
+                } else if (argument.compareTo("--shard") == 0) {
+                    usage("The shards are chosen by the farm.");
+                } else {
+                    rendererArguments.add(argument);
+                }
+            }
+        } catch (final NumberFormatException e) {
+            usage("Invalid number: " + e.getMessage());
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            usage("Invalid option value.");
+        }
+
+        if (workers < 1) {
+            usage("Invalid number of workers: " + workers);
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<Process> processes = new ArrayList<Process>();
+        try {
+            for (int shard = 0; shard < workers; shard++) {
+                ArrayList<String> command = new ArrayList<String>();
+                command.add(java);
+                if (heap != null) {
+                    command.add("-Xmx" + heap);
+                }
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(HeadlessRenderer.class.getName());
+                command.addAll(rendererArguments);
+                command.add("--shard");
+                command.add(shard + "/" + workers);
+
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+        } catch (final IOException e) {
+            System.err.println("Unable to start renderer: " + e.getMessage());
+            for (Process process : processes) {
+                process.destroy();
+            }
+            System.exit(1);
+        }
+
+        int failures = 0;
+        for (int shard = 0; shard < workers; shard++) {
+            try {
+                int exitValue = processes.get(shard).waitFor();
+                if (exitValue != 0) {
+                    logger.error("Renderer for shard " + shard + "/" + workers + " failed with exit value "
+                            + exitValue);
+                    failures++;
+                }
+            } catch (final InterruptedException e) {
+                System.err.println("Interrupted while waiting for the renderers.");
+                for (Process process : processes) {
+                    process.destroy();
+                }
+                System.exit(1);
+            }
+        }
+
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,45 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes every frame to its own PNG file.
+ */
+public class PNGSequenceSink implements FrameSink {
+    private final static Logger logger = LoggerFactory.getLogger(PNGSequenceSink.class);
+
+    @Override
+    public byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void write(String name, byte[] encoded, int width, int height) throws IOException {
+        String fileName = name.endsWith(".png") ? name : name + ".png";
+        File file = new File(fileName);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(encoded);
+        }
+        logger.info("Screenshot saved: " + fileName);
+    }
+
+    @Override
+    public void close() {
+        // Every frame is a file of its own.
+    }
+}
@@ -0,0 +1,327 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.opengl.GL3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes screenshots without stalling the GL thread. The pixels of a frame are
+ * read into the next of a ring of pixel pack buffers, which is only mapped a
+ * frame or two later, when the transfer has completed. The mapped pixels are
+ * copied into a spare image, encoded by its {@link FrameSink} on a pool of
+ * encoder threads, and written by a single writer thread in the order in which
+ * the screenshots were taken. When all spare images are waiting to be
+ * written, taking a screenshot blocks until one of them has been, so a disk
+ * that falls behind slows the rendering down instead of filling up the memory.
+ */
+public class ScreenshotRing {
+    private final static Logger logger = LoggerFactory.getLogger(ScreenshotRing.class);
+
+    private final static int RING_SIZE = 3;
+    private final static int BYTES_PER_PIXEL = 4;
+    private final static long FENCE_TIMEOUT_NANOS = 100000000L;
+
+    private static class Slot {
+        private int buffer;
+        private long fence;
+        private String fileName;
+        private FrameSink sink;
+        private boolean pending = false;
+    }
+
+    private final int width, height;
+    private final Slot[] slots;
+    private int nextSlot = 0;
+
+    /**
+     * The images that are not waiting to be written, taking one blocks until
+     * the writer has written one.
+     */
+    private final BlockingQueue<byte[]> freeImages;
+
+    private final ExecutorService encoders;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ScreenshotRing writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public ScreenshotRing(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        slots = new Slot[RING_SIZE];
+        for (int i = 0; i < RING_SIZE; i++) {
+            slots[i] = new Slot();
+        }
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        encoders = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ScreenshotRing encoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        int images = 2 * threads;
+        freeImages = new ArrayBlockingQueue<byte[]>(images);
+        for (int i = 0; i < images; i++) {
+            freeImages.add(new byte[width * height * BYTES_PER_PIXEL]);
+        }
+    }
+
+    public void init(GL3 gl) {
+        IntBuffer pointers = IntBuffer.allocate(RING_SIZE);
+        gl.glGenBuffers(RING_SIZE, pointers);
+
+        for (int i = 0; i < RING_SIZE; i++) {
+            slots[i].buffer = pointers.get(i);
+
+            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slots[i].buffer);
+            gl.glBufferData(GL3.GL_PIXEL_PACK_BUFFER, width * height * BYTES_PER_PIXEL, null, GL3.GL_STREAM_READ);
+        }
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * Starts reading the current framebuffer into the ring. The screenshot is
+     * written once a later call to {@link #poll(GL3)} or {@link #finish(GL3)}
+     * finds the transfer completed.
+     *
+     * @param gl
+     *            The current GL context.
+     * @param sink
+     *            The sink to write the screenshot to.
+     * @param fileName
+     *            The name of the screenshot, without extension.
+     */
+    public void capture(GL3 gl, FrameSink sink, String fileName) {
+        Slot slot = slots[nextSlot];
+        if (slot.pending) {
+            collect(gl, slot);
+        }
+
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slot.buffer);
+        gl.glReadPixels(0, 0, width, height, GL3.GL_BGRA, GL3.GL_UNSIGNED_BYTE, 0);
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+
+        slot.fence = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.fileName = fileName;
+        slot.sink = sink;
+        slot.pending = true;
+
+        nextSlot = (nextSlot + 1) % RING_SIZE;
+    }
+
+    /**
+     * Hands the screenshots whose transfers have completed to the encoders,
+     * without waiting for the others. Call this once every frame.
+     *
+     * @param gl
+     *            The current GL context.
+     */
+    public void poll(GL3 gl) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            Slot slot = slots[(nextSlot + i) % RING_SIZE];
+            if (slot.pending) {
+                int status = gl.glClientWaitSync(slot.fence, 0, 0);
+                if (status != GL3.GL_ALREADY_SIGNALED && status != GL3.GL_CONDITION_SATISFIED) {
+                    // The transfers complete in order, so the later ones are
+                    // not done either.
+                    return;
+                }
+                collect(gl, slot);
+            }
+        }
+    }
+
+    /**
+     * Closes a sink once all screenshots taken for it so far have been
+     * written, without waiting for that.
+     *
+     * @param gl
+     *            The current GL context.
+     * @param sink
+     *            The sink to close.
+     */
+    public void close(GL3 gl, final FrameSink sink) {
+        collectAll(gl);
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    logger.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes all screenshots taken so far, and waits for them to be written.
+     *
+     * @param gl
+     *            The current GL context.
+     */
+    public void finish(GL3 gl) {
+        collectAll(gl);
+
+        // The writer handles its tasks in order, so once this one has run,
+        // everything before it has been written.
+        Future<?> done = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                // Nothing left to do.
+            }
+        });
+        try {
+            waitFor(done);
+        } catch (ExecutionException e) {
+            logger.error(e.getCause().getMessage());
+        }
+    }
+
+    public void delete(GL3 gl) {
+        finish(gl);
+
+        IntBuffer pointers = IntBuffer.allocate(RING_SIZE);
+        for (int i = 0; i < RING_SIZE; i++) {
+            pointers.put(i, slots[i].buffer);
+        }
+        gl.glDeleteBuffers(RING_SIZE, pointers);
+
+        encoders.shutdown();
+        writer.shutdown();
+    }
+
+    private void collectAll(GL3 gl) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            Slot slot = slots[(nextSlot + i) % RING_SIZE];
+            if (slot.pending) {
+                collect(gl, slot);
+            }
+        }
+    }
+
+    private void collect(GL3 gl, Slot slot) {
+        int status = gl.glClientWaitSync(slot.fence, GL3.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+        while (status == GL3.GL_TIMEOUT_EXPIRED) {
+            status = gl.glClientWaitSync(slot.fence, GL3.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+        }
+        gl.glDeleteSync(slot.fence);
+        slot.pending = false;
+
+        if (status == GL3.GL_WAIT_FAILED) {
+            logger.error("Waiting for screenshot " + slot.fileName + " failed.");
+            return;
+        }
+
+        final byte[] image = takeImage();
+        final String fileName = slot.fileName;
+        final FrameSink sink = slot.sink;
+
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slot.buffer);
+        ByteBuffer pixels = gl.glMapBufferRange(GL3.GL_PIXEL_PACK_BUFFER, 0, image.length, GL3.GL_MAP_READ_BIT);
+        pixels.get(image);
+        gl.glUnmapBuffer(GL3.GL_PIXEL_PACK_BUFFER);
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+
+        final Future<byte[]> encoded = encoders.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return sink.encode(toBufferedImage(image));
+            }
+        });
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sink.write(fileName, waitFor(encoded), width, height);
+                } catch (IOException e) {
+                    logger.error(e.getMessage());
+                } catch (ExecutionException e) {
+                    logger.error("Encoding screenshot " + fileName + " failed: " + e.getCause().getMessage());
+                } finally {
+                    freeImages.add(image);
+                }
+            }
+        });
+    }
+
+    private BufferedImage toBufferedImage(byte[] image) {
+        // The framebuffer rows start at the bottom, those of the image at the
+        // top.
+        int[] rgb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int source = (height - y - 1) * width * BYTES_PER_PIXEL;
+            int target = y * width;
+            for (int x = 0; x < width; x++) {
+                int b = image[source] & 0xFF;
+                int g = image[source + 1] & 0xFF;
+                int r = image[source + 2] & 0xFF;
+                rgb[target + x] = (r << 16) | (g << 8) | b;
+                source += BYTES_PER_PIXEL;
+            }
+        }
+
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, width, height, rgb, 0, width);
+        return bufferedImage;
+    }
+
+    private static <T> T waitFor(Future<T> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private byte[] takeImage() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return freeImages.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.exceptions.UninitializedException;
+import nl.esciencecenter.neon.textures.Texture;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * An array of equally sized 2-dimensional textures, bound to a single
+ * multitexture unit and addressed by layer in the shaders. Textures with more
+ * than one mipmap level are sampled like {@link Texture2D}s, with repeated
+ * coordinates and trilinear filtering. Those with one level are meant as render
+ * targets, and are clamped to the edge. Float textures hold data rather than
+ * colors, and are sampled unfiltered, so that missing values do not bleed into
+ * their neighbours.
+ */
+public class Texture2DArray extends Texture {
+    private final int internalFormat;
+    private final int levels;
+    private final int format, type;
+
+    /**
+     * Do not forget to call {@link #init(GL3)} before use.
+     *
+     * @param glMultitexUnit
+     *            The OpenGL-internal MultitexUnit (GL.GL_TEXTUREX) this texture
+     *            uses.
+     * @param width
+     *            The width of every layer.
+     * @param height
+     *            The height of every layer.
+     * @param layers
+     *            The number of layers.
+     * @param internalFormat
+     *            The format of the texels, e.g. GL3.GL_RGBA8.
+     * @param levels
+     *            The number of mipmap levels.
+     */
+    public Texture2DArray(int glMultitexUnit, int width, int height, int layers, int internalFormat, int levels) {
+        this(glMultitexUnit, width, height, layers, internalFormat, levels, GL3.GL_RGBA, GL3.GL_UNSIGNED_BYTE);
+    }
+
+    /**
+     * Do not forget to call {@link #init(GL3)} before use.
+     *
+     * @param glMultitexUnit
+     *            The OpenGL-internal MultitexUnit (GL.GL_TEXTUREX) this texture
+     *            uses.
+     * @param width
+     *            The width of every layer.
+     * @param height
+     *            The height of every layer.
+     * @param layers
+     *            The number of layers.
+     * @param internalFormat
+     *            The format of the texels, e.g. GL3.GL_R32F.
+     * @param levels
+     *            The number of mipmap levels.
+     * @param format
+     *            The format of the pixels set, e.g. GL3.GL_RED.
+     * @param type
+     *            The type of the pixels set, e.g. GL3.GL_FLOAT.
+     */
+    public Texture2DArray(int glMultitexUnit, int width, int height, int layers, int internalFormat, int levels,
+            int format, int type) {
+        super(glMultitexUnit);
+
+        this.width = width;
+        this.height = height;
+        this.depth = layers;
+        this.internalFormat = internalFormat;
+        this.levels = levels;
+        this.format = format;
+        this.type = type;
+    }
+
+    /**
+     * Allocates the storage for all layers on the device. The contents are
+     * undefined until they are set or rendered to.
+     *
+     * @param gl
+     *            The current OpenGL instance.
+     */
+    public void init(GL3 gl) {
+        if (!initialized) {
+            gl.glActiveTexture(getGlMultiTexUnit());
+
+            pointer = IntBuffer.allocate(1);
+            gl.glGenTextures(1, pointer);
+
+            gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, pointer.get(0));
+            gl.glTexStorage3D(GL3.GL_TEXTURE_2D_ARRAY, levels, internalFormat, width, height, depth);
+
+            if (levels > 1) {
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_WRAP_S, GL3.GL_REPEAT);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_WRAP_T, GL3.GL_REPEAT);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR_MIPMAP_LINEAR);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
+            } else if (type == GL3.GL_FLOAT) {
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_WRAP_S, GL3.GL_REPEAT);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_WRAP_T, GL3.GL_CLAMP_TO_EDGE);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_NEAREST);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_NEAREST);
+            } else {
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_WRAP_S, GL3.GL_CLAMP_TO_EDGE);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_WRAP_T, GL3.GL_CLAMP_TO_EDGE);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
+                gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
+            }
+
+            initialized = true;
+        }
+    }
+
+    /**
+     * Replaces the contents of a single layer. Only the given layer is
+     * touched, so its mipmaps are uploaded along with it rather than
+     * generated on the device, which would regenerate those of all layers.
+     *
+     * @param gl
+     *            The current OpenGL instance.
+     * @param layer
+     *            The layer to replace.
+     * @param mipmaps
+     *            The new contents of every mipmap level, in the format and
+     *            type of this texture, see
+     *            {@link #createMipmaps(ByteBuffer, int, int, int)}.
+     */
+    public void setLayer(GL3 gl, int layer, ByteBuffer[] mipmaps) throws UninitializedException {
+        use(gl);
+
+        gl.glPixelStorei(GL3.GL_UNPACK_ALIGNMENT, 1);
+        for (int level = 0; level < levels; level++) {
+            ByteBuffer pixels = mipmaps[level];
+            pixels.rewind();
+            gl.glTexSubImage3D(GL3.GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, Math.max(1, width >> level),
+                    Math.max(1, height >> level), 1, format, type, pixels);
+        }
+    }
+
+    /**
+     * Replaces the contents of a single layer with those of the pixel unpack
+     * buffer that is currently bound, see
+     * {@link #setLayer(GL3, int, ByteBuffer[])}.
+     *
+     * @param gl
+     *            The current OpenGL instance.
+     * @param layer
+     *            The layer to replace.
+     * @param offsets
+     *            The offset of every mipmap level in the buffer.
+     */
+    public void setLayer(GL3 gl, int layer, long[] offsets) throws UninitializedException {
+        use(gl);
+
+        gl.glPixelStorei(GL3.GL_UNPACK_ALIGNMENT, 1);
+        for (int level = 0; level < levels; level++) {
+            gl.glTexSubImage3D(GL3.GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, Math.max(1, width >> level),
+                    Math.max(1, height >> level), 1, format, type, offsets[level]);
+        }
+    }
+
+    /**
+     * Builds the mipmap chain of an image on the host, by averaging blocks of
+     * 2x2 texels for every next level.
+     *
+     * @param base
+     *            The image, as RGBA bytes.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param levels
+     *            The number of mipmap levels, including the image itself.
+     * @return The image followed by its smaller levels.
+     */
+    public static ByteBuffer[] createMipmaps(ByteBuffer base, int width, int height, int levels) {
+        ByteBuffer[] mipmaps = new ByteBuffer[levels];
+        mipmaps[0] = base;
+        for (int level = 1; level < levels; level++) {
+            mipmaps[level] = Buffers.newDirectByteBuffer(Math.max(1, width >> level) * Math.max(1, height >> level)
+                    * 4);
+        }
+
+        fillMipmaps(mipmaps, width, height);
+        return mipmaps;
+    }
+
+    /**
+     * Fills the smaller levels of a mipmap chain from the first, see
+     * {@link #createMipmaps(ByteBuffer, int, int, int)}.
+     *
+     * @param mipmaps
+     *            The image followed by room for its smaller levels.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     */
+    public static void fillMipmaps(ByteBuffer[] mipmaps, int width, int height) {
+        for (int level = 1; level < mipmaps.length; level++) {
+            ByteBuffer source = mipmaps[level - 1];
+            ByteBuffer target = mipmaps[level];
+            int sourceWidth = Math.max(1, width >> (level - 1));
+            int sourceHeight = Math.max(1, height >> (level - 1));
+            int targetWidth = Math.max(1, width >> level);
+            int targetHeight = Math.max(1, height >> level);
+
+            for (int y = 0; y < targetHeight; y++) {
+                int y0 = Math.min(2 * y, sourceHeight - 1) * sourceWidth;
+                int y1 = Math.min(2 * y + 1, sourceHeight - 1) * sourceWidth;
+                for (int x = 0; x < targetWidth; x++) {
+                    int x0 = Math.min(2 * x, sourceWidth - 1);
+                    int x1 = Math.min(2 * x + 1, sourceWidth - 1);
+                    for (int c = 0; c < 4; c++) {
+                        int sum = (source.get((y0 + x0) * 4 + c) & 0xFF) + (source.get((y0 + x1) * 4 + c) & 0xFF)
+                                + (source.get((y1 + x0) * 4 + c) & 0xFF) + (source.get((y1 + x1) * 4 + c) & 0xFF);
+                        target.put((y * targetWidth + x) * 4 + c, (byte) ((sum + 2) / 4));
+                    }
+                }
+            }
+        }
+    }
+
+    public void use(GL3 gl) throws UninitializedException {
+        gl.glActiveTexture(getGlMultiTexUnit());
+        gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, getPointer().get(0));
+    }
+
+    public void unBind(GL3 gl) {
+        gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, 0);
+    }
+
+    public int getLayers() {
+        return depth;
+    }
+}
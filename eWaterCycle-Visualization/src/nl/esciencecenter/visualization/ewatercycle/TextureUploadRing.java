@@ -0,0 +1,263 @@
+package nl.esciencecenter.visualization.ewatercycle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.exceptions.UninitializedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads images into the layers of a {@link Texture2DArray} without stalling
+ * the GL thread, the counterpart of the {@link ScreenshotRing}. Every slot of
+ * the ring is a pixel unpack buffer that stays mapped while it is free, so the
+ * threads producing the images write them, mipmaps included, straight into
+ * memory the driver copies from. The GL thread only unmaps the buffer, issues
+ * the copy into the layer and places a fence, and maps the buffer again for
+ * the producers once the copy has completed. Producers that find no free slot
+ * keep their image on the host instead.
+ */
+public class TextureUploadRing {
+    private final static Logger logger = LoggerFactory.getLogger(TextureUploadRing.class);
+
+    private final static int BYTES_PER_PIXEL = 4;
+
+    public class Slot {
+        private int buffer;
+        private ByteBuffer mapped;
+        private long fence;
+
+        /**
+         * Writes an image into this slot and builds its mipmaps.
+         *
+         * @param image
+         *            The image, as RGBA pixels packed into ints.
+         * @return false if the ring was deleted in the meantime, and nothing
+         *         was written.
+         */
+        public synchronized boolean write(int[] image) {
+            if (mapped == null) {
+                return false;
+            }
+            ByteBuffer[] mipmaps = getMipmaps(mapped);
+            mipmaps[0].order(ByteOrder.nativeOrder()).asIntBuffer().put(image);
+            Texture2DArray.fillMipmaps(mipmaps, width, height);
+            return true;
+        }
+
+        /**
+         * Writes an image into this slot and builds its mipmaps.
+         *
+         * @param image
+         *            The image, as RGBA bytes.
+         * @return false if the ring was deleted in the meantime, and nothing
+         *         was written.
+         */
+        public synchronized boolean write(ByteBuffer image) {
+            if (mapped == null) {
+                return false;
+            }
+            ByteBuffer[] mipmaps = getMipmaps(mapped);
+            image.rewind();
+            mipmaps[0].put(image);
+            Texture2DArray.fillMipmaps(mipmaps, width, height);
+            return true;
+        }
+
+        private synchronized void unmap(GL3 gl) {
+            if (mapped != null) {
+                gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, buffer);
+                gl.glUnmapBuffer(GL3.GL_PIXEL_UNPACK_BUFFER);
+                gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+                mapped = null;
+            }
+        }
+
+        private synchronized void map(GL3 gl) {
+            // The copy out of this buffer has completed, so there is no need
+            // for the driver to synchronize.
+            gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, buffer);
+            mapped = gl.glMapBufferRange(GL3.GL_PIXEL_UNPACK_BUFFER, 0, size, GL3.GL_MAP_WRITE_BIT
+                    | GL3.GL_MAP_INVALIDATE_BUFFER_BIT | GL3.GL_MAP_UNSYNCHRONIZED_BIT);
+            gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+        }
+    }
+
+    private final int width, height;
+    private final long[] offsets;
+    private final int size;
+    private final Slot[] slots;
+
+    /** The slots that are mapped and free to be written by a producer. */
+    private final ConcurrentLinkedQueue<Slot> freeSlots;
+    /** The slots whose copies have been issued, in order. */
+    private final ArrayDeque<Slot> pendingSlots;
+
+    private volatile boolean initialized = false;
+
+    /**
+     * Do not forget to call {@link #init(GL3)} before use.
+     *
+     * @param width
+     *            The width of the images.
+     * @param height
+     *            The height of the images.
+     * @param levels
+     *            The number of mipmap levels of the texture array.
+     * @param ringSize
+     *            The number of images that can be underway at once.
+     */
+    public TextureUploadRing(int width, int height, int levels, int ringSize) {
+        this.width = width;
+        this.height = height;
+
+        offsets = new long[levels];
+        int offset = 0;
+        for (int level = 0; level < levels; level++) {
+            offsets[level] = offset;
+            offset += Math.max(1, width >> level) * Math.max(1, height >> level) * BYTES_PER_PIXEL;
+        }
+        size = offset;
+
+        slots = new Slot[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            slots[i] = new Slot();
+        }
+        freeSlots = new ConcurrentLinkedQueue<Slot>();
+        pendingSlots = new ArrayDeque<Slot>();
+    }
+
+    public void init(GL3 gl) {
+        if (!initialized) {
+            IntBuffer pointers = IntBuffer.allocate(slots.length);
+            gl.glGenBuffers(slots.length, pointers);
+
+            for (int i = 0; i < slots.length; i++) {
+                slots[i].buffer = pointers.get(i);
+
+                gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, slots[i].buffer);
+                gl.glBufferData(GL3.GL_PIXEL_UNPACK_BUFFER, size, null, GL3.GL_STREAM_DRAW);
+                slots[i].map(gl);
+                freeSlots.add(slots[i]);
+            }
+            gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+
+            initialized = true;
+        }
+    }
+
+    /**
+     * Takes a free slot to write an image into, without waiting for one. Can
+     * be called from any thread.
+     *
+     * @return The slot, or null if none is free.
+     */
+    public Slot acquire() {
+        if (!initialized) {
+            return null;
+        }
+        return freeSlots.poll();
+    }
+
+    /**
+     * Hands back a slot whose image is not needed after all. Can be called
+     * from any thread.
+     *
+     * @param slot
+     *            The slot, as returned by {@link #acquire()}.
+     */
+    public void release(Slot slot) {
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Issues the copy of the image in a slot into a layer of the texture
+     * array.
+     *
+     * @param gl
+     *            The current GL context.
+     * @param slot
+     *            The slot holding the image.
+     * @param target
+     *            The texture array.
+     * @param layer
+     *            The layer to copy the image into.
+     */
+    public void upload(GL3 gl, Slot slot, Texture2DArray target, int layer) {
+        slot.unmap(gl);
+
+        gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, slot.buffer);
+        try {
+            target.setLayer(gl, layer, offsets);
+        } catch (UninitializedException e) {
+            logger.error(e.getMessage());
+        }
+        gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+
+        slot.fence = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        pendingSlots.add(slot);
+    }
+
+    /**
+     * Maps the slots whose copies have completed again, and hands them back to
+     * the producers, without waiting for the others. Call this once every
+     * frame.
+     *
+     * @param gl
+     *            The current GL context.
+     */
+    public void poll(GL3 gl) {
+        while (!pendingSlots.isEmpty()) {
+            Slot slot = pendingSlots.peek();
+            int status = gl.glClientWaitSync(slot.fence, 0, 0);
+            if (status != GL3.GL_ALREADY_SIGNALED && status != GL3.GL_CONDITION_SATISFIED) {
+                // The copies complete in order, so the later ones are not done
+                // either.
+                return;
+            }
+            gl.glDeleteSync(slot.fence);
+            pendingSlots.poll();
+
+            slot.map(gl);
+            freeSlots.add(slot);
+        }
+    }
+
+    public void delete(GL3 gl) {
+        if (initialized) {
+            initialized = false;
+
+            for (Slot slot : pendingSlots) {
+                gl.glDeleteSync(slot.fence);
+            }
+            pendingSlots.clear();
+            freeSlots.clear();
+
+            // Producers still writing into a slot finish before it is
+            // unmapped, later ones find it unmapped and give up.
+            IntBuffer pointers = IntBuffer.allocate(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                slots[i].unmap(gl);
+                pointers.put(i, slots[i].buffer);
+            }
+            gl.glDeleteBuffers(slots.length, pointers);
+        }
+    }
+
+    private ByteBuffer[] getMipmaps(ByteBuffer mapped) {
+        ByteBuffer[] mipmaps = new ByteBuffer[offsets.length];
+        for (int level = 0; level < offsets.length; level++) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) offsets[level]);
+            view.limit(level + 1 < offsets.length ? (int) offsets[level + 1] : size);
+            mipmaps[level] = view.slice();
+        }
+        return mipmaps;
+    }
+}
@@ -545,6 +545,29 @@ public class WaterCyclePanel extends NeonInterfacePanel {
 
             targetPanel.add(GoggleSwing.vBoxedComponents(vcomponents, true));
 
+            if (settings.getDepthMax() > settings.getDepthMin()) {
+                final ArrayList<Component> depthComponents = new ArrayList<Component>();
+                JLabel depthLabel = new JLabel("Depth");
+                depthComponents.add(depthLabel);
+
+                final JSlider depthSlider = new JSlider(settings.getDepthMin(), settings.getDepthMax(),
+                        settings.getDepthDef());
+                depthSlider.setMaximumSize(new Dimension(240, 25));
+                depthSlider.addChangeListener(new ChangeListener() {
+                    @Override
+                    public void stateChanged(ChangeEvent e) {
+                        // Every level passed while dragging is shown, the
+                        // data manager reads them all at once.
+                        if (depthSlider.getValue() != settings.getDepthDef()) {
+                            settings.setDepth(depthSlider.getValue());
+                        }
+                    }
+                });
+                depthComponents.add(depthSlider);
+
+                targetPanel.add(GoggleSwing.vBoxedComponents(depthComponents, true));
+            }
+
             String[] dataModes = SurfaceTextureDescription.getDataModes();
 
             final String[] colorMaps = JOCLColormapper.getColormapNames();
@@ -643,8 +666,14 @@ public class WaterCyclePanel extends NeonInterfacePanel {
                 variablesComboBox.addItemListener(new ItemListener() {
                     @Override
                     public void itemStateChanged(ItemEvent e) {
+                        // Changing the selection also deselects the variable
+                        // shown before.
+                        if (e.getStateChange() != ItemEvent.SELECTED) {
+                            return;
+                        }
                         String var = (String) e.getItem();
 
+                        timer.requestStatistics(var);
                         settings.setVariable(currentScreen, var);
                         selectionLegendSlider.setValue(settings.getRangeSliderLowerValue(currentScreen));
                         selectionLegendSlider.setUpperValue(settings.getRangeSliderUpperValue(currentScreen));
@@ -682,6 +711,12 @@ public class WaterCyclePanel extends NeonInterfacePanel {
             for (String v : timer.getVariables()) {
                 variables.add(v);
             }
+            // Only the bounds of the variables on the screens are needed
+            // right away.
+            int screens = settings.getNumScreensRows() * settings.getNumScreensCols();
+            for (int i = 0; i < Math.min(screens, variables.size()); i++) {
+                timer.requestStatistics(variables.get(i));
+            }
             settings.initDefaultVariables(variables);
 
             dataConfig.removeAll();
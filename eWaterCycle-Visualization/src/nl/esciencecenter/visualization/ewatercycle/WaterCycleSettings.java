@@ -5,6 +5,7 @@ import java.util.HashMap;
 
 import nl.esciencecenter.neon.util.TypedProperties;
 import nl.esciencecenter.visualization.ewatercycle.data.SurfaceTextureDescription;
+import nl.esciencecenter.visualization.ewatercycle.data.VariableStatistics;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -81,7 +82,37 @@ public class WaterCycleSettings {
 
     private int PREPROCESSING_AMOUNT = 2;
 
+    private boolean TEXTURE_CACHE_ENABLED = true;
+    private String TEXTURE_CACHE_PATH = System.getProperty("user.dir") + "/.textureCache";
+    private long TEXTURE_CACHE_BUDGET = 2L * 1024 * 1024 * 1024;
+    private boolean TEXTURE_CACHE_COMPRESSED = true;
+
+    private long TEXTURE_HOST_MEMORY_BUDGET = 512L * 1024 * 1024;
+    private long TEXTURE_GPU_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+    private boolean GPU_COLORMAPPING = false;
+
+    private int MAX_TEXTURE_SIZE = 4096;
+    private String PYRAMID_CACHE_PATH = System.getProperty("user.dir") + "/.pyramidCache";
+    private long PYRAMID_CACHE_BUDGET = 8L * 1024 * 1024 * 1024;
+
+    private int MAX_OPEN_FILES = 8;
+
+    private String MOVIE_FORMAT = "avi";
+    private int MOVIE_FRAMES_PER_SECOND = 25;
+
     private final HashMap<String, Float> minValues;
+    /**
+     * The range of every variable as determined in each dataset, by the
+     * fingerprint of the dataset. The screens of all datasets share the range
+     * that spans them, so that they can be compared.
+     */
+    private final HashMap<String, HashMap<DatasetFingerprint, float[]>> datasetRanges;
+    /**
+     * The statistics of every variable in each dataset, once it has been
+     * scanned, for the extent of the sliders.
+     */
+    private final HashMap<String, HashMap<DatasetFingerprint, VariableStatistics>> datasetStatistics;
     private final HashMap<String, Float> diffMinValues;
     private final HashMap<String, Float> maxValues;
     private final HashMap<String, Float> diffMaxValues;
@@ -127,6 +158,8 @@ public class WaterCycleSettings {
         super();
         minValues = new HashMap<String, Float>();
         maxValues = new HashMap<String, Float>();
+        datasetRanges = new HashMap<String, HashMap<DatasetFingerprint, float[]>>();
+        datasetStatistics = new HashMap<String, HashMap<DatasetFingerprint, VariableStatistics>>();
         currentMinValues = new HashMap<String, Float>();
         currentMaxValues = new HashMap<String, Float>();
         diffMinValues = new HashMap<String, Float>();
@@ -186,6 +219,27 @@ public class WaterCycleSettings {
             WAITTIME_FOR_RETRY = props.getLongProperty("WAITTIME_FOR_RETRY");
             WAITTIME_FOR_MOVIE = props.getLongProperty("WAITTIME_FOR_MOVIE");
 
+            PREPROCESSING_AMOUNT = props.getIntProperty("PREPROCESSING_AMOUNT", PREPROCESSING_AMOUNT);
+
+            TEXTURE_CACHE_ENABLED = props.getBooleanProperty("TEXTURE_CACHE_ENABLED", TEXTURE_CACHE_ENABLED);
+            TEXTURE_CACHE_PATH = props.getProperty("TEXTURE_CACHE_PATH", TEXTURE_CACHE_PATH);
+            TEXTURE_CACHE_BUDGET = props.getSizeProperty("TEXTURE_CACHE_BUDGET", TEXTURE_CACHE_BUDGET);
+            TEXTURE_CACHE_COMPRESSED = props.getBooleanProperty("TEXTURE_CACHE_COMPRESSED", TEXTURE_CACHE_COMPRESSED);
+
+            TEXTURE_HOST_MEMORY_BUDGET = props.getSizeProperty("TEXTURE_HOST_MEMORY_BUDGET", TEXTURE_HOST_MEMORY_BUDGET);
+            TEXTURE_GPU_MEMORY_BUDGET = props.getSizeProperty("TEXTURE_GPU_MEMORY_BUDGET", TEXTURE_GPU_MEMORY_BUDGET);
+
+            GPU_COLORMAPPING = props.getBooleanProperty("GPU_COLORMAPPING", GPU_COLORMAPPING);
+
+            MAX_TEXTURE_SIZE = props.getIntProperty("MAX_TEXTURE_SIZE", MAX_TEXTURE_SIZE);
+            PYRAMID_CACHE_PATH = props.getProperty("PYRAMID_CACHE_PATH", PYRAMID_CACHE_PATH);
+            PYRAMID_CACHE_BUDGET = props.getSizeProperty("PYRAMID_CACHE_BUDGET", PYRAMID_CACHE_BUDGET);
+
+            MAX_OPEN_FILES = props.getIntProperty("MAX_OPEN_FILES", MAX_OPEN_FILES);
+
+            MOVIE_FORMAT = props.getProperty("MOVIE_FORMAT", MOVIE_FORMAT);
+            MOVIE_FRAMES_PER_SECOND = props.getIntProperty("MOVIE_FRAMES_PER_SECOND", MOVIE_FRAMES_PER_SECOND);
+
             System.out.println(IMAGE_STREAM_OUTPUT ? "true" : "false");
 
             setIMAGE_STREAM_OUTPUT(props.getBooleanProperty("IMAGE_STREAM_OUTPUT"));
@@ -385,10 +439,70 @@ public class WaterCycleSettings {
         return PREPROCESSING_AMOUNT;
     }
 
+    public synchronized boolean isTextureCacheEnabled() {
+        return TEXTURE_CACHE_ENABLED;
+    }
+
+    public synchronized String getTextureCachePath() {
+        return TEXTURE_CACHE_PATH;
+    }
+
+    public synchronized long getTextureCacheBudget() {
+        return TEXTURE_CACHE_BUDGET;
+    }
+
+    public synchronized boolean isTextureCacheCompressed() {
+        return TEXTURE_CACHE_COMPRESSED;
+    }
+
+    public synchronized long getTextureHostMemoryBudget() {
+        return TEXTURE_HOST_MEMORY_BUDGET;
+    }
+
+    public synchronized long getTextureGpuMemoryBudget() {
+        return TEXTURE_GPU_MEMORY_BUDGET;
+    }
+
+    public synchronized boolean isGpuColormapping() {
+        return GPU_COLORMAPPING;
+    }
+
+    public synchronized int getMaxTextureSize() {
+        return MAX_TEXTURE_SIZE;
+    }
+
+    public synchronized String getPyramidCachePath() {
+        return PYRAMID_CACHE_PATH;
+    }
+
+    public synchronized long getPyramidCacheBudget() {
+        return PYRAMID_CACHE_BUDGET;
+    }
+
+    public synchronized int getMaxOpenFiles() {
+        return MAX_OPEN_FILES;
+    }
+
     public synchronized void setPreprocessAmount(int value) {
         PREPROCESSING_AMOUNT = value;
     }
 
+    public synchronized String getMovieFormat() {
+        return MOVIE_FORMAT;
+    }
+
+    public synchronized void setMovieFormat(String value) {
+        MOVIE_FORMAT = value;
+    }
+
+    public synchronized int getMovieFramesPerSecond() {
+        return MOVIE_FRAMES_PER_SECOND;
+    }
+
+    public synchronized void setMovieFramesPerSecond(int value) {
+        MOVIE_FRAMES_PER_SECOND = value;
+    }
+
     public synchronized int getDepthMin() {
         return DEPTH_MIN;
     }
@@ -687,10 +801,10 @@ public class WaterCycleSettings {
 
     public synchronized void setVariableRange(int screenNumber, String varName, int sliderLowerValue,
             int sliderUpperValue) {
-        float diff = getVarMax(varName) - getVarMin(varName);
+        float diff = getVarExtentMax(varName) - getVarExtentMin(varName);
 
-        currentMinValues.put(varName, (sliderLowerValue / 100f) * diff + getVarMin(varName));
-        currentMaxValues.put(varName, (sliderUpperValue / 100f) * diff + getVarMin(varName));
+        currentMinValues.put(varName, (sliderLowerValue / 100f) * diff + getVarExtentMin(varName));
+        currentMaxValues.put(varName, (sliderUpperValue / 100f) * diff + getVarExtentMin(varName));
         float minFloatValue = getCurrentVarMin(varName);
         float maxFloatValue = getCurrentVarMax(varName);
 
@@ -705,8 +819,8 @@ public class WaterCycleSettings {
     public synchronized int getRangeSliderLowerValue(int screenNumber) {
         SurfaceTextureDescription state = screenDescriptions[screenNumber];
 
-        float min = getVarMin(state.getVarName());
-        float max = getVarMax(state.getVarName());
+        float min = getVarExtentMin(state.getVarName());
+        float max = getVarExtentMax(state.getVarName());
         float currentMin = getCurrentVarMin(state.getVarName());
 
         float diff = max - min;
@@ -718,8 +832,8 @@ public class WaterCycleSettings {
     public synchronized int getRangeSliderUpperValue(int screenNumber) {
         SurfaceTextureDescription state = screenDescriptions[screenNumber];
 
-        float min = getVarMin(state.getVarName());
-        float max = getVarMax(state.getVarName());
+        float min = getVarExtentMin(state.getVarName());
+        float max = getVarExtentMax(state.getVarName());
         float currentMax = getCurrentVarMax(state.getVarName());
 
         float diff = max - min;
@@ -763,6 +877,7 @@ public class WaterCycleSettings {
         screenDescriptions = new SurfaceTextureDescription[number_of_screens_col * number_of_screens_row];
 
         if (variables.size() != 0) {
+            DEPTH_DEF = DEPTH_MIN;
             for (int j = 0; j < number_of_screens_col * number_of_screens_row; j++) {
                 String var;
                 if (j < variables.size()) {
@@ -770,7 +885,7 @@ public class WaterCycleSettings {
                 } else {
                     var = variables.get(0);
                 }
-                screenDescriptions[j] = new SurfaceTextureDescription(INITIAL_SIMULATION_FRAME, 0, var,
+                screenDescriptions[j] = new SurfaceTextureDescription(INITIAL_SIMULATION_FRAME, DEPTH_DEF, var,
                         getCurrentColormap(var), false, false, false, getCurrentVarMin(var), getCurrentVarMax(var),
                         false);
 
@@ -794,7 +909,35 @@ public class WaterCycleSettings {
         return colormap;
     }
 
+    /**
+     * The lower bound of the range of a variable, as determined in the
+     * datasets, or as predefined in the settings file while it is not.
+     */
     public synchronized float getVarMin(String key) {
+        float[] range = getDatasetRange(key);
+        if (range != null) {
+            return range[0];
+        }
+        return getPredefinedVarMin(key);
+    }
+
+    /**
+     * The upper bound of the range of a variable, see
+     * {@link #getVarMin(String)}.
+     */
+    public synchronized float getVarMax(String key) {
+        float[] range = getDatasetRange(key);
+        if (range != null) {
+            return range[1];
+        }
+        return getPredefinedVarMax(key);
+    }
+
+    /**
+     * @return The lower bound of a variable from the settings file, NaN if
+     *         there is none.
+     */
+    public synchronized float getPredefinedVarMin(String key) {
         float value;
         if (minValues.containsKey(key)) {
             value = minValues.get(key);
@@ -805,7 +948,11 @@ public class WaterCycleSettings {
         return value;
     }
 
-    public synchronized float getVarMax(String key) {
+    /**
+     * @return The upper bound of a variable from the settings file, NaN if
+     *         there is none.
+     */
+    public synchronized float getPredefinedVarMax(String key) {
         float value;
         if (maxValues.containsKey(key)) {
             value = maxValues.get(key);
@@ -816,34 +963,141 @@ public class WaterCycleSettings {
         return value;
     }
 
+    /**
+     * The lowest value of a variable in all scanned datasets, the lower end of
+     * the sliders. The range of the colormap leaves out the outliers, the
+     * sliders reach them. While no dataset has been scanned, this is the lower
+     * bound of the range.
+     */
+    public synchronized float getVarExtentMin(String key) {
+        float result = getVarMin(key);
+        HashMap<DatasetFingerprint, VariableStatistics> statistics = datasetStatistics.get(key);
+        if (statistics != null) {
+            for (VariableStatistics stats : statistics.values()) {
+                // Also when the range is unknown, and NaN.
+                if (stats.getCount() > 0 && !(stats.getMin() >= result)) {
+                    result = stats.getMin();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The highest value of a variable in all scanned datasets, the upper end
+     * of the sliders, see {@link #getVarExtentMin(String)}.
+     */
+    public synchronized float getVarExtentMax(String key) {
+        float result = getVarMax(key);
+        HashMap<DatasetFingerprint, VariableStatistics> statistics = datasetStatistics.get(key);
+        if (statistics != null) {
+            for (VariableStatistics stats : statistics.values()) {
+                if (stats.getCount() > 0 && !(stats.getMax() <= result)) {
+                    result = stats.getMax();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores the statistics of a variable in a dataset, once its scan is
+     * done, so the sliders reach all of its values.
+     * 
+     * @param dataset
+     *            The fingerprint of the dataset.
+     * @param key
+     *            The variable.
+     * @param statistics
+     *            The statistics over all timesteps of the variable.
+     */
+    public synchronized void setVarStatistics(DatasetFingerprint dataset, String key, VariableStatistics statistics) {
+        HashMap<DatasetFingerprint, VariableStatistics> datasets = datasetStatistics.get(key);
+        if (datasets == null) {
+            datasets = new HashMap<DatasetFingerprint, VariableStatistics>();
+            datasetStatistics.put(key, datasets);
+        }
+        datasets.put(dataset, statistics);
+    }
+
+    /**
+     * @return The range spanning the ranges of a variable in all datasets, or
+     *         null if it has not been determined in any of them.
+     */
+    private float[] getDatasetRange(String key) {
+        HashMap<DatasetFingerprint, float[]> ranges = datasetRanges.get(key);
+        if (ranges == null) {
+            return null;
+        }
+
+        float[] result = null;
+        for (float[] range : ranges.values()) {
+            if (Float.isNaN(range[0]) || Float.isNaN(range[1])) {
+                continue;
+            }
+            if (result == null) {
+                result = new float[] { range[0], range[1] };
+            } else {
+                result[0] = Math.min(result[0], range[0]);
+                result[1] = Math.max(result[1], range[1]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The lower bound of difference images. Without bounds in the settings,
+     * differences are shown symmetrically around zero, see
+     * {@link #getDefaultDiffBound(String)}.
+     */
     public synchronized float getCurrentVarDiffMin(String key) {
         float value;
         if (currentDiffMinValues.containsKey(key)) {
             value = currentDiffMinValues.get(key);
+        } else if (diffMinValues.containsKey(key)) {
+            value = diffMinValues.get(key);
         } else {
-            value = minValues.get(key);
+            value = -getDefaultDiffBound(key);
         }
 
         return value;
     }
 
+    /**
+     * The upper bound of difference images, see
+     * {@link #getCurrentVarDiffMin(String)}.
+     */
     public synchronized float getCurrentVarDiffMax(String key) {
         float value;
         if (currentDiffMaxValues.containsKey(key)) {
             value = currentDiffMaxValues.get(key);
+        } else if (diffMaxValues.containsKey(key)) {
+            value = diffMaxValues.get(key);
         } else {
-            value = maxValues.get(key);
+            value = getDefaultDiffBound(key);
         }
 
         return value;
     }
 
+    /**
+     * The largest difference two datasets of a variable can have, the width
+     * of the range of the variable, or 1 while that is unknown.
+     */
+    private float getDefaultDiffBound(String key) {
+        float range = getVarMax(key) - getVarMin(key);
+        if (Float.isNaN(range) || range <= 0f) {
+            return 1f;
+        }
+        return range;
+    }
+
     public synchronized float getCurrentVarMin(String key) {
         float value;
         if (currentMinValues.containsKey(key)) {
             value = currentMinValues.get(key);
         } else {
-            value = minValues.get(key);
+            value = getVarMin(key);
         }
 
         return value;
@@ -854,23 +1108,68 @@ public class WaterCycleSettings {
         if (currentMaxValues.containsKey(key)) {
             value = currentMaxValues.get(key);
         } else {
-            value = maxValues.get(key);
+            value = getVarMax(key);
         }
 
         return value;
     }
 
-    public synchronized void setVarMin(String key, float currentMin) {
-        minValues.put(key, currentMin);
-        currentMinValues.put(key, currentMin);
-        setRequestedNewConfiguration(true);
+    /**
+     * Sets the range of the data of a variable in a dataset, as determined (or
+     * refined) by a scan of the dataset, in a single step. The range of the
+     * variable spans its ranges in all datasets, so the control and
+     * experiment datasets do not overwrite each other. The bounds shown follow
+     * that range, unless they were chosen by the user, in the settings file or
+     * with the sliders.
+     * 
+     * @param dataset
+     *            The fingerprint of the dataset.
+     * @param key
+     *            The variable.
+     * @param min
+     *            The lowest value of the variable in the dataset.
+     * @param max
+     *            The highest value of the variable in the dataset.
+     */
+    public synchronized void setVarRange(DatasetFingerprint dataset, String key, float min, float max) {
+        HashMap<DatasetFingerprint, float[]> ranges = datasetRanges.get(key);
+        if (ranges == null) {
+            ranges = new HashMap<DatasetFingerprint, float[]>();
+            datasetRanges.put(key, ranges);
+        }
+        ranges.put(dataset, new float[] { min, max });
+
+        if (!currentMinValues.containsKey(key) || !currentMaxValues.containsKey(key)) {
+            if (updateBounds(key)) {
+                setRequestedNewConfiguration(true);
+            }
+        }
     }
 
-    public synchronized void setVarMax(String key, float currentMax) {
-        maxValues.put(key, currentMax);
-        currentMaxValues.put(key, currentMax);
-        setRequestedNewConfiguration(true);
+    /**
+     * Bounds can be refined while a dataset is already on screen, so update
+     * the descriptions of the screens that show this variable.
+     * 
+     * @return true if any of the descriptions changed.
+     */
+    private boolean updateBounds(String key) {
+        if (screenDescriptions == null || Float.isNaN(getVarMin(key)) || Float.isNaN(getVarMax(key))) {
+            return false;
+        }
 
+        boolean changed = false;
+        for (int i = 0; i < screenDescriptions.length; i++) {
+            SurfaceTextureDescription state = screenDescriptions[i];
+            if (state != null && state.getVarName().compareTo(key) == 0
+                    && (state.getLowerBound() != getCurrentVarMin(key) || state.getUpperBound() != getCurrentVarMax(
+                            key))) {
+                screenDescriptions[i] = new SurfaceTextureDescription(state.getFrameNumber(), state.getDepth(),
+                        state.getVarName(), state.getColorMap(), state.isDynamicDimensions(), state.isDiff(),
+                        state.isSecondSet(), getCurrentVarMin(key), getCurrentVarMax(key), state.isLogScale());
+                changed = true;
+            }
+        }
+        return changed;
     }
 
     public synchronized void setLogScale(int screenNumber, boolean selected) {
@@ -3,6 +3,10 @@ package nl.esciencecenter.visualization.ewatercycle;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
 import javax.media.opengl.GL;
@@ -13,7 +17,6 @@ import javax.media.opengl.GLEventListener;
 import javax.media.opengl.GLException;
 
 import nl.esciencecenter.neon.datastructures.FrameBufferObject;
-import nl.esciencecenter.neon.datastructures.IntPixelBufferObject;
 import nl.esciencecenter.neon.exceptions.UninitializedException;
 import nl.esciencecenter.neon.math.Color4;
 import nl.esciencecenter.neon.math.Float2Vector;
@@ -30,13 +33,17 @@ import nl.esciencecenter.neon.shaders.ShaderProgramLoader;
 import nl.esciencecenter.neon.text.MultiColorText;
 import nl.esciencecenter.neon.text.jogampexperimental.Font;
 import nl.esciencecenter.neon.text.jogampexperimental.FontFactory;
+import nl.esciencecenter.visualization.ewatercycle.data.EfficientTextureStorage;
 import nl.esciencecenter.visualization.ewatercycle.data.EfficientTextureStorage.TextureCombo;
+import nl.esciencecenter.visualization.ewatercycle.data.GridPyramid;
 import nl.esciencecenter.visualization.ewatercycle.data.SurfaceTextureDescription;
 import nl.esciencecenter.visualization.ewatercycle.data.TimedPlayer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jogamp.common.nio.Buffers;
+
 public class WaterCycleWindow implements GLEventListener {
     private final static Logger logger = LoggerFactory.getLogger(WaterCycleWindow.class);
     private final WaterCycleSettings settings = WaterCycleSettings.getInstance();
@@ -47,14 +54,28 @@ public class WaterCycleWindow implements GLEventListener {
     protected final WaterCycleInputHandler inputHandler;
 
     private ShaderProgram shaderProgram_Sphere, shaderProgram_Legend, shaderProgram_Atmosphere,
-            shaderProgram_GaussianBlur, shaderProgram_FlattenLayers, shaderProgram_PostProcess, shaderProgram_Text;
+            shaderProgram_GaussianBlur, shaderProgram_Composite, shaderProgram_Text;
 
     private Model sphereModel, legendModel, atmModel;
 
-    private FrameBufferObject atmosphereFrameBufferObject, hudTextFrameBufferObject, legendTextureFrameBufferObject,
-            sphereTextureFrameBufferObject;
+    private FrameBufferObject atmosphereFrameBufferObject;
+
+    // Every screen has a layer of its own for its text, legend and globe. The
+    // globes of all screens are drawn with one instanced call, and a single
+    // composite pass flattens the layers of all screens into the grid.
+    private LayeredFrameBufferObject textLayers, legendLayers, sphereLayers;
+
+    // The storage whose surface texture array the globes are drawn from.
+    private EfficientTextureStorage surfaceStorage;
 
-    private IntPixelBufferObject finalPBO;
+    // When colormapping on the GPU, the surface texture array holds the data
+    // and every screen has a layer with its colormap, the legends are made
+    // from the colormaps here.
+    private final boolean gpuColormapping;
+    private Texture2DArray colormapLayers;
+    private final HashMap<String, Texture2D> colormapLegends = new HashMap<String, Texture2D>();
+
+    private ScreenshotRing screenshotRing;
 
     private final BufferedImage currentImage = null;
 
@@ -63,7 +84,18 @@ public class WaterCycleWindow implements GLEventListener {
     private boolean reshaped = false;
 
     private SurfaceTextureDescription[] cachedTextureDescriptions;
-    private FrameBufferObject[] cachedFrameBufferObjects;
+
+    // The text and legend of a screen are only drawn into its layers again
+    // when they have changed, and the globes only when a surface texture or
+    // the camera has. Otherwise only the composite runs.
+    private boolean[] dirtyScreens;
+    private boolean spheresDirty = true;
+    private boolean atmosphereDirty = true;
+    private float drawnRotationX, drawnRotationY, drawnViewDist;
+
+    // The window of the grid pyramid that covers the visible part of the
+    // globe, see GridPyramid.
+    private int[] viewRegion = { SurfaceTextureDescription.WHOLE_GRID, 0, 0 };
     private final MultiColorText[] varNames;
     private final MultiColorText[] legendTextsMin;
     private final MultiColorText[] legendTextsMax;
@@ -76,12 +108,14 @@ public class WaterCycleWindow implements GLEventListener {
     private int cachedScreens = 9;
 
     private TimedPlayer timer;
+    private TimedPlayer fixedTimer;
     private float aspect;
 
     protected int fontSet = FontFactory.UBUNTU;
     protected Font font;
 
     private final float radius = 1.0f;
+    private final float globeRadius = 50f;
     private final float ftheta = 0.0f;
     private final float phi = 0.0f;
 
@@ -89,8 +123,10 @@ public class WaterCycleWindow implements GLEventListener {
     private final float zNear = 0.1f;
     private final float zFar = 3000.0f;
 
-    private final Texture2D[] cachedSurfaceTextures;
+    private final TextureCombo[] cachedTextureCombos;
+    private final SurfaceTextureDescription[] drawnDescriptions;
     private final Texture2D[] cachedLegendTextures;
+    private final float[] cachedMinValues, cachedMaxValues;
 
     // Height and width of the drawable area. We extract this from the opengl
     // instance in the reshape method every time it is changed, but set it in
@@ -105,7 +141,7 @@ public class WaterCycleWindow implements GLEventListener {
     final Float4Vector up = new Float4Vector(0.0f, 1.0f, 0.0f, 0.0f);
 
     private final boolean requestedNewConfiguration = false;
-    private JOCLColormapper mapper;
+    private Colormapper mapper;
 
     public WaterCycleWindow(WaterCycleInputHandler inputHandler) {
         this.loader = new ShaderProgramLoader();
@@ -118,8 +154,13 @@ public class WaterCycleWindow implements GLEventListener {
         dates = new MultiColorText[cachedScreens];
         dataSets = new MultiColorText[cachedScreens];
 
-        cachedSurfaceTextures = new Texture2D[cachedScreens];
+        cachedTextureCombos = new TextureCombo[cachedScreens];
+        drawnDescriptions = new SurfaceTextureDescription[cachedScreens];
         cachedLegendTextures = new Texture2D[cachedScreens];
+        cachedMinValues = new float[cachedScreens];
+        cachedMaxValues = new float[cachedScreens];
+
+        gpuColormapping = settings.isGpuColormapping();
     }
 
     public static void contextOn(GLAutoDrawable drawable) {
@@ -206,8 +247,13 @@ public class WaterCycleWindow implements GLEventListener {
         // atmosphereColor, atmosphereColor), 50, 50, 55f, false);
 
         try {
-            shaderProgram_Sphere = loader.createProgram(gl, "shaderProgram_Sphere", new File("shaders/vs_texture.vp"),
-                    new File("shaders/fs_texture.fp"));
+            String sphereFragmentShader = "shaders/fs_texture_array.fp";
+            if (gpuColormapping) {
+                sphereFragmentShader = "shaders/fs_colormap_array.fp";
+            }
+            shaderProgram_Sphere = loader.createProgram(gl, "shaderProgram_Sphere", new File(
+                    "shaders/vs_texture_instanced.vp"), new File("shaders/gs_layer.gp"), new File(
+                    sphereFragmentShader));
 
             shaderProgram_Legend = loader.createProgram(gl, "shaderProgram_Legend", new File("shaders/vs_texture.vp"),
                     new File("shaders/fs_texture.fp"));
@@ -221,11 +267,8 @@ public class WaterCycleWindow implements GLEventListener {
             shaderProgram_GaussianBlur = loader.createProgram(gl, "shaderProgram_GaussianBlur", new File(
                     "shaders/vs_postprocess.vp"), new File("shaders/fs_gaussian_blur.fp"));
 
-            shaderProgram_PostProcess = loader.createProgram(gl, "shaderProgram_PostProcess", new File(
-                    "shaders/vs_postprocess.vp"), new File("shaders/fs_postprocess.fp"));
-
-            shaderProgram_FlattenLayers = loader.createProgram(gl, "shaderProgram_FlattenLayers", new File(
-                    "shaders/vs_flatten3.vp"), new File("shaders/fs_flatten3.fp"));
+            shaderProgram_Composite = loader.createProgram(gl, "shaderProgram_Composite", new File(
+                    "shaders/vs_postprocess.vp"), new File("shaders/fs_composite.fp"));
         } catch (final Exception e) {
             // If compilation fails, we will output the error message and quit
             // the application.
@@ -239,7 +282,7 @@ public class WaterCycleWindow implements GLEventListener {
 
         // sphereModel = new GeoSphereCut(Material.random(), 120, 120, 50f,
         // false);
-        sphereModel = new GeoSphere(60, 60, 50f, false);
+        sphereModel = new GeoSphere(60, 60, globeRadius, false);
         sphereModel.init(gl);
 
         // cutModel = new GeoSphereCutEdge(Material.random(), 120, 50f);
@@ -280,10 +323,10 @@ public class WaterCycleWindow implements GLEventListener {
 
         }
 
-        // Here we define a PixelBufferObject, which is used for getting
-        // screenshots.
-        finalPBO = new IntPixelBufferObject(canvasWidth, canvasHeight);
-        finalPBO.init(gl);
+        // Here we define a ring of PixelBufferObjects, which is used for
+        // getting screenshots.
+        screenshotRing = new ScreenshotRing(canvasWidth, canvasHeight);
+        screenshotRing.init(gl);
 
         contextOff(drawable);
     }
@@ -328,7 +371,10 @@ public class WaterCycleWindow implements GLEventListener {
         modelViewMatrix = modelViewMatrix.mul(FloatMatrixMath.rotationY(inputHandler.getRotation().getY()));
         modelViewMatrix = modelViewMatrix.mul(FloatMatrixMath.rotationZ(inputHandler.getRotation().getZ()));
 
-        TimedPlayer timer = WaterCyclePanel.getTimer();
+        TimedPlayer timer = fixedTimer;
+        if (timer == null) {
+            timer = WaterCyclePanel.getTimer();
+        }
         if (timer.isInitialized()) {
             this.timer = timer;
 
@@ -339,11 +385,18 @@ public class WaterCycleWindow implements GLEventListener {
 
         reshaped = false;
 
+        // Write the screenshots of earlier frames that have arrived by now,
+        // before starting the transfer of this one.
+        screenshotRing.poll(gl);
+
         if (timer.isScreenshotNeeded()) {
-            finalPBO.makeScreenshotPNG(gl, timer.getScreenshotFileName());
+            screenshotRing.capture(gl, timer.getScreenshotSink(), timer.getScreenshotFileName());
 
             timer.setScreenshotNeeded(false);
         }
+        for (FrameSink sink : timer.takeFinishedSinks()) {
+            screenshotRing.close(gl, sink);
+        }
 
         // timer.clearAdvance();
 
@@ -358,13 +411,47 @@ public class WaterCycleWindow implements GLEventListener {
         final Point4 at = new Point4(0.0f, 0.0f, 0.0f);
         final Float4Vector up = new Float4Vector(0.0f, 1.0f, 0.0f, 0.0f);
 
+        float rotationX = inputHandler.getRotation().getX();
+        float rotationY = inputHandler.getRotation().getY();
+        float viewDist = inputHandler.getViewDist();
+        if (rotationX != drawnRotationX || rotationY != drawnRotationY || viewDist != drawnViewDist) {
+            spheresDirty = true;
+            atmosphereDirty = true;
+            drawnRotationX = rotationX;
+            drawnRotationY = rotationY;
+            drawnViewDist = viewDist;
+
+            updateViewRegion(timer.getGridPyramid(), rotationX, rotationY, viewDist);
+        }
+
         Float4Matrix mv = FloatMatrixMath.lookAt(eye, at, up);
-        mv = mv.mul(FloatMatrixMath.translate(new Float3Vector(0f, 0f, inputHandler.getViewDist())));
-        mv = mv.mul(FloatMatrixMath.rotationX(inputHandler.getRotation().getX()));
-        mv = mv.mul(FloatMatrixMath.rotationY(inputHandler.getRotation().getY()));
+        mv = mv.mul(FloatMatrixMath.translate(new Float3Vector(0f, 0f, viewDist)));
+        mv = mv.mul(FloatMatrixMath.rotationX(rotationX));
+        mv = mv.mul(FloatMatrixMath.rotationY(rotationY));
+
+        if (atmosphereDirty) {
+            drawAtmosphere(gl, mv, atmosphereFrameBufferObject);
+            // blur(gl, atmosphereFrameBufferObject, fsq, 1, 2, 4);
+            atmosphereDirty = false;
+        }
 
-        drawAtmosphere(gl, mv, atmosphereFrameBufferObject);
-        // blur(gl, atmosphereFrameBufferObject, fsq, 1, 2, 4);
+        // Opening another dataset replaces the texture storage, the layers of
+        // the old one are of no use anymore.
+        if (timer.getEfficientTextureStorage() != surfaceStorage) {
+            if (surfaceStorage != null) {
+                surfaceStorage.delete(gl);
+            }
+            surfaceStorage = timer.getEfficientTextureStorage();
+            for (int i = 0; i < cachedScreens; i++) {
+                cachedTextureCombos[i] = null;
+                drawnDescriptions[i] = null;
+            }
+            spheresDirty = true;
+
+            viewRegion = new int[] { SurfaceTextureDescription.WHOLE_GRID, 0, 0 };
+            updateViewRegion(timer.getGridPyramid(), rotationX, rotationY, viewDist);
+        }
+        surfaceStorage.poll(gl);
 
         if (settings.isRequestedNewConfiguration()) {
             SurfaceTextureDescription currentDesc;
@@ -376,45 +463,71 @@ public class WaterCycleWindow implements GLEventListener {
                 currentDesc = settings.getSurfaceDescription(i);
 
                 if (currentDesc != null) {
+                    currentDesc = currentDesc.withRegion(viewRegion[0], viewRegion[1], viewRegion[2]);
+
+                    // When colormapping on the GPU, descriptions that only
+                    // differ in colormap, bounds or scale share their data.
+                    SurfaceTextureDescription storedDesc = currentDesc;
+                    if (gpuColormapping) {
+                        storedDesc = currentDesc.getDataDescription();
+                    }
+
                     // Ask the TextureStorage for the currently displayed/ready
                     // image
                     TextureCombo result = timer.getEfficientTextureStorage().getImages(i);
 
-                    if (result.getDescription() != currentDesc) {
+                    if (!storedDesc.equals(result.getDescription())) {
                         // Check if we need to request new images, or if we are
                         // waiting for new images
-                        if (!timer.getEfficientTextureStorage().isRequested(currentDesc)) {
+                        if (!timer.getEfficientTextureStorage().isRequested(storedDesc)) {
                             // We need to request new ones
                             logger.debug(currentDesc.toString());
 
                             List<Texture2D> oldTextures = timer.getEfficientTextureStorage().requestNewConfiguration(i,
-                                    currentDesc);
+                                    storedDesc);
                             // Remove all of the (now unused) textures
                             for (Texture2D tex : oldTextures) {
-                                try {
-                                    tex.delete(gl);
-                                } catch (UninitializedException e) {
-                                    logger.warn(e.getMessage());
+                                if (tex.isInitialized()) {
+                                    try {
+                                        tex.delete(gl);
+                                    } catch (UninitializedException e) {
+                                        logger.warn(e.getMessage());
+                                    }
                                 }
                             }
                         }
                         // We are waiting for images to be generated
                         allRequestsFullfilled = false;
                     } else {
-                        // We might have received a new request here
-                        if (cachedSurfaceTextures[i] != result.getSurfaceTexture()
-                                || cachedLegendTextures[i] != result.getLegendTexture()) {
+                        // We might have received a new request here, or
+                        // only a new colormap, bounds or scale
+                        if (cachedTextureCombos[i] != result || !currentDesc.equals(drawnDescriptions[i])) {
                             logger.debug("adding new texture for screen " + i + " to opengl: " + currentDesc);
 
                             // Apparently a new image was just created for us,
                             // so
                             // lets store it
-                            cachedSurfaceTextures[i] = result.getSurfaceTexture();
-                            cachedLegendTextures[i] = result.getLegendTexture();
+                            cachedTextureCombos[i] = result;
+                            drawnDescriptions[i] = currentDesc;
 
-                            cachedSurfaceTextures[i].init(gl);
+                            surfaceStorage.uploadSurface(gl, result);
+                            if (gpuColormapping) {
+                                cachedLegendTextures[i] = getColormapLegend(currentDesc.getColorMap());
+                                setColormapLayer(gl, i, currentDesc.getColorMap());
+                            } else {
+                                cachedLegendTextures[i] = result.getLegendTexture();
+                            }
                             cachedLegendTextures[i].init(gl);
 
+                            // The same bounds the colormappers use.
+                            if (currentDesc.isDiff()) {
+                                cachedMinValues[i] = settings.getCurrentVarDiffMin(currentDesc.getVarName());
+                                cachedMaxValues[i] = settings.getCurrentVarDiffMax(currentDesc.getVarName());
+                            } else {
+                                cachedMinValues[i] = settings.getCurrentVarMin(currentDesc.getVarName());
+                                cachedMaxValues[i] = settings.getCurrentVarMax(currentDesc.getVarName());
+                            }
+
                             // And set the appropriate text to accompany it.
                             String variableName = currentDesc.getVarName();
                             String fancyName = variableName;
@@ -433,6 +546,9 @@ public class WaterCycleWindow implements GLEventListener {
                             dataSets[i].setString(gl, currentDesc.verbalizeDataMode(), Color4.WHITE, fontSize);
                             legendTextsMin[i].setString(gl, min, Color4.WHITE, fontSize);
                             legendTextsMax[i].setString(gl, max, Color4.WHITE, fontSize);
+
+                            dirtyScreens[i] = true;
+                            spheresDirty = true;
                         }
                     }
                 }
@@ -444,44 +560,108 @@ public class WaterCycleWindow implements GLEventListener {
         }
 
         for (int i = 0; i < cachedScreens; i++) {
-            if (cachedLegendTextures[i] != null && cachedSurfaceTextures[i] != null) {
-                drawSingleWindow(gl, mv, i, cachedLegendTextures[i], cachedSurfaceTextures[i],
-                        cachedFrameBufferObjects[i], clickCoords);
-            } else if (cachedLegendTextures[i] == null) {
-                logger.debug("legend " + i + " null?");
-            } else if (cachedSurfaceTextures[i] == null) {
-                logger.debug("surface " + i + " null?");
+            if (cachedTextureCombos[i] != null) {
+                if (dirtyScreens[i]) {
+                    // logger.debug("Drawing Text");
+                    drawHUDText(gl, i, textLayers);
+
+                    // logger.debug("Drawing HUD");
+                    drawHUDLegend(gl, i, cachedLegendTextures[i], legendLayers);
+
+                    dirtyScreens[i] = false;
+                }
+            } else {
+                logger.debug("images " + i + " null?");
             }
         }
 
+        if (spheresDirty) {
+            // logger.debug("Drawing Spheres");
+            drawSpheres(gl, mv, surfaceStorage.getSurfaceLayers(gl), sphereLayers);
+            spheresDirty = false;
+        }
+
         // logger.debug("Tiling windows");
         renderTexturesToScreen(gl);
     }
 
-    private void drawSingleWindow(final GL3 gl, Float4Matrix mv, int windowIndex, Texture2D legend, Texture2D globe,
-            FrameBufferObject target, Float2Vector clickCoords) {
-        // logger.debug("Drawing Text");
-        drawHUDText(gl, windowIndex, hudTextFrameBufferObject);
+    private void markAllScreensDirty() {
+        spheresDirty = true;
+        atmosphereDirty = true;
+        for (int i = 0; i < dirtyScreens.length; i++) {
+            dirtyScreens[i] = true;
+        }
+    }
 
-        // logger.debug("Drawing HUD");
-        drawHUDLegend(gl, legend, legendTextureFrameBufferObject);
+    /**
+     * Picks the window of the grid pyramid that covers the part of the globe
+     * in view, and asks for new images if it is another one than before.
+     */
+    private void updateViewRegion(GridPyramid pyramid, float rotationX, float rotationY, float viewDist) {
+        if (pyramid.getBaseLevel() == 0) {
+            return;
+        }
 
-        // logger.debug("Drawing Sphere");
-        drawSphere(gl, mv, globe, sphereTextureFrameBufferObject, clickCoords);
+        // The point of the globe nearest to the camera, in the coordinates of
+        // the sphere model, and the texture coordinates there.
+        Float4Vector nearest = FloatMatrixMath.rotationY(-rotationY).mul(FloatMatrixMath.rotationX(-rotationX))
+                .mul(new Float4Vector(0f, 0f, 1f, 0f));
+        double s = Math.atan2(nearest.getZ(), nearest.getX()) / (2 * Math.PI);
+        s = s - Math.floor(s);
+        double t = Math.acos(Math.max(-1f, Math.min(1f, nearest.getY()))) / Math.PI;
+
+        // The angle, from the center of the globe, between that point and the
+        // farthest one in view: either where the corners of the view hit the
+        // globe, or its horizon.
+        double distance = radius - viewDist;
+        double halfView = Math.atan(Math.tan(Math.toRadians(fovy / 2)) * Math.sqrt(1 + aspect * aspect));
+        double visible;
+        if (distance * Math.sin(halfView) < globeRadius) {
+            visible = Math.asin(distance * Math.sin(halfView) / globeRadius) - halfView;
+        } else {
+            visible = Math.acos(Math.min(1.0, globeRadius / distance));
+        }
+
+        // The images are mirrored horizontally.
+        int[] region = pyramid.selectRegion((float) (1 - s), (float) t, (float) visible);
+        if (!Arrays.equals(region, viewRegion)) {
+            viewRegion = region;
+            settings.setRequestedNewConfiguration(true);
+        }
+    }
 
-        // logger.debug("Flattening Layers");
-        flattenLayers(gl, hudTextFrameBufferObject, legendTextureFrameBufferObject, sphereTextureFrameBufferObject,
-                atmosphereFrameBufferObject, target);
+    private Texture2D getColormapLegend(String colormapName) {
+        Texture2D legend = colormapLegends.get(colormapName);
+        if (legend == null) {
+            legend = new ByteBufferTexture(GL.GL_TEXTURE5, JOCLColormapper.getLegendByteBuffer(colormapName), 1, 500);
+            colormapLegends.put(colormapName, legend);
+        }
+        return legend;
+    }
+
+    private void setColormapLayer(GL3 gl, int screen, String colormapName) {
+        int[] colorMap = JOCLColormapper.getColorMap(colormapName);
+        if (colormapLayers == null) {
+            colormapLayers = new Texture2DArray(GL.GL_TEXTURE6, colorMap.length, 1, cachedScreens, GL3.GL_RGBA8, 1);
+            colormapLayers.init(gl);
+        }
+
+        try {
+            colormapLayers.setLayer(gl, screen,
+                    new ByteBuffer[] { Buffers.copyIntBufferAsByteBuffer(IntBuffer.wrap(colorMap)) });
+        } catch (UninitializedException e) {
+            logger.error(e.getMessage());
+        }
     }
 
-    private void drawHUDText(GL3 gl, int windowIndex, FrameBufferObject target) {
+    private void drawHUDText(GL3 gl, int windowIndex, LayeredFrameBufferObject target) {
         // testText.setString(gl, "test2", Color4.white, fontSize);
 
         // String randomString = "Random: " + Math.random();
         // testText.setString(gl, randomString, Color4.white, fontSize);
 
         try {
-            target.bind(gl);
+            target.bindLayer(gl, windowIndex);
             gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
 
             // testText.draw(gl, shaderProgram_Text, canvasWidth, canvasHeight,
@@ -515,9 +695,9 @@ public class WaterCycleWindow implements GLEventListener {
         }
     }
 
-    private void drawHUDLegend(GL3 gl, Texture2D legendTexture, FrameBufferObject target) {
+    private void drawHUDLegend(GL3 gl, int windowIndex, Texture2D legendTexture, LayeredFrameBufferObject target) {
         try {
-            target.bind(gl);
+            target.bindLayer(gl, windowIndex);
             gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
 
             // Draw legend texture
@@ -535,8 +715,7 @@ public class WaterCycleWindow implements GLEventListener {
         }
     }
 
-    private void drawSphere(GL3 gl, Float4Matrix mv, Texture2D surfaceTexture, FrameBufferObject target,
-            Float2Vector clickCoords) {
+    private void drawSpheres(GL3 gl, Float4Matrix mv, Texture2DArray surfaces, LayeredFrameBufferObject target) {
         try {
             target.bind(gl);
             gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
@@ -546,12 +725,47 @@ public class WaterCycleWindow implements GLEventListener {
             shaderProgram_Sphere.setUniformMatrix("MVMatrix", new Float4Matrix(mv));
             shaderProgram_Sphere.setUniformMatrix("PMatrix", p);
 
-            surfaceTexture.use(gl);
+            surfaces.use(gl);
+            shaderProgram_Sphere.setUniform("texture_map", surfaces.getMultitexNumber());
+            for (int i = 0; i < cachedScreens; i++) {
+                int layer = EfficientTextureStorage.EMPTY_LAYER;
+                if (cachedTextureCombos[i] != null) {
+                    layer = cachedTextureCombos[i].getSurfaceLayer();
+                }
+                shaderProgram_Sphere.setUniform("surfaceLayers[" + i + "]", layer);
+            }
+
+            GridPyramid pyramid = timer.getGridPyramid();
+            for (int i = 0; i < cachedScreens; i++) {
+                float[] region = { 0f, 0f, 1f, 1f };
+                if (cachedTextureCombos[i] != null && cachedTextureCombos[i].getDescription() != null) {
+                    region = pyramid.getTextureRegion(cachedTextureCombos[i].getDescription());
+                }
+                shaderProgram_Sphere.setUniformVector("regions[" + i + "]", new Float4Vector(region[0], region[1],
+                        region[2], region[3]));
+            }
 
-            shaderProgram_Sphere.setUniform("texture_map", surfaceTexture.getMultitexNumber());
+            if (gpuColormapping && colormapLayers != null) {
+                colormapLayers.use(gl);
+                shaderProgram_Sphere.setUniform("colormaps", colormapLayers.getMultitexNumber());
+                for (int i = 0; i < cachedScreens; i++) {
+                    // Differences may be negative, they are always mapped
+                    // linearly.
+                    boolean logScale = drawnDescriptions[i] != null && drawnDescriptions[i].isLogScale()
+                            && !drawnDescriptions[i].isDiff();
+                    shaderProgram_Sphere.setUniform("minValues[" + i + "]", cachedMinValues[i]);
+                    shaderProgram_Sphere.setUniform("maxValues[" + i + "]", cachedMaxValues[i]);
+                    shaderProgram_Sphere.setUniform("logScales[" + i + "]", logScale);
+                }
+            }
 
+            // One instance per screen, the geometry shader sends each one to
+            // the layer of its screen.
+            sphereModel.getVBO().bind(gl);
+            shaderProgram_Sphere.linkAttribs(gl, sphereModel.getVBO().getAttribs());
             shaderProgram_Sphere.use(gl);
-            sphereModel.draw(gl, shaderProgram_Sphere);
+            gl.glDrawArraysInstanced(GL3.GL_TRIANGLES, 0, sphereModel.getNumVertices(), target.getTexture()
+                    .getLayers());
 
             target.unBind(gl);
         } catch (UninitializedException e) {
@@ -578,37 +792,6 @@ public class WaterCycleWindow implements GLEventListener {
         }
     }
 
-    private void flattenLayers(GL3 gl, FrameBufferObject hudTextFrameBufferObject,
-            FrameBufferObject hudLegendFrameBufferObject, FrameBufferObject sphereTextureFrameBufferObject,
-            FrameBufferObject atmosphereFrameBufferObject, FrameBufferObject target) {
-        try {
-            target.bind(gl);
-            gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
-
-            shaderProgram_FlattenLayers
-                    .setUniform("textTex", hudTextFrameBufferObject.getTexture().getMultitexNumber());
-            shaderProgram_FlattenLayers.setUniform("legendTex", hudLegendFrameBufferObject.getTexture()
-                    .getMultitexNumber());
-            shaderProgram_FlattenLayers.setUniform("dataTex", sphereTextureFrameBufferObject.getTexture()
-                    .getMultitexNumber());
-            shaderProgram_FlattenLayers.setUniform("atmosphereTex", atmosphereFrameBufferObject.getTexture()
-                    .getMultitexNumber());
-
-            shaderProgram_FlattenLayers.setUniformMatrix("MVMatrix", new Float4Matrix());
-            shaderProgram_FlattenLayers.setUniformMatrix("PMatrix", new Float4Matrix());
-
-            shaderProgram_FlattenLayers.setUniform("scrWidth", canvasWidth);
-            shaderProgram_FlattenLayers.setUniform("scrHeight", canvasHeight);
-
-            shaderProgram_FlattenLayers.use(gl);
-            fsq.draw(gl, shaderProgram_FlattenLayers);
-
-            target.unBind(gl);
-        } catch (final UninitializedException e) {
-            e.printStackTrace();
-        }
-    }
-
     private void blur(GL3 gl, FrameBufferObject target, Quad fullScreenQuad, int passes, int blurType, float blurSize) {
         shaderProgram_GaussianBlur.setUniform("Texture", target.getTexture().getMultitexNumber());
 
@@ -652,25 +835,30 @@ public class WaterCycleWindow implements GLEventListener {
         try {
             gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
 
-            for (int i = 0; i < cachedScreens; i++) {
-                shaderProgram_PostProcess.setUniform("sphereTexture_" + i, cachedFrameBufferObjects[i].getTexture()
-                        .getMultitexNumber());
-            }
+            textLayers.getTexture().use(gl);
+            legendLayers.getTexture().use(gl);
+            sphereLayers.getTexture().use(gl);
+
+            shaderProgram_Composite.setUniform("textTex", textLayers.getTexture().getMultitexNumber());
+            shaderProgram_Composite.setUniform("legendTex", legendLayers.getTexture().getMultitexNumber());
+            shaderProgram_Composite.setUniform("dataTex", sphereLayers.getTexture().getMultitexNumber());
+            shaderProgram_Composite.setUniform("atmosphereTex", atmosphereFrameBufferObject.getTexture()
+                    .getMultitexNumber());
 
-            shaderProgram_PostProcess.setUniformMatrix("MVMatrix", new Float4Matrix());
-            shaderProgram_PostProcess.setUniformMatrix("PMatrix", new Float4Matrix());
+            shaderProgram_Composite.setUniformMatrix("MVMatrix", new Float4Matrix());
+            shaderProgram_Composite.setUniformMatrix("PMatrix", new Float4Matrix());
 
-            shaderProgram_PostProcess.setUniform("scrWidth", canvasWidth);
-            shaderProgram_PostProcess.setUniform("scrHeight", canvasHeight);
+            shaderProgram_Composite.setUniform("scrWidth", canvasWidth);
+            shaderProgram_Composite.setUniform("scrHeight", canvasHeight);
 
             int selection = settings.getWindowSelection();
 
-            shaderProgram_PostProcess.setUniform("divs_x", settings.getNumScreensCols());
-            shaderProgram_PostProcess.setUniform("divs_y", settings.getNumScreensRows());
-            shaderProgram_PostProcess.setUniform("selection", selection);
+            shaderProgram_Composite.setUniform("divs_x", settings.getNumScreensCols());
+            shaderProgram_Composite.setUniform("divs_y", settings.getNumScreensRows());
+            shaderProgram_Composite.setUniform("selection", selection);
 
-            shaderProgram_PostProcess.use(gl);
-            fsq.draw(gl, shaderProgram_PostProcess);
+            shaderProgram_Composite.use(gl);
+            fsq.draw(gl, shaderProgram_Composite);
         } catch (final UninitializedException e) {
             e.printStackTrace();
         }
@@ -680,54 +868,21 @@ public class WaterCycleWindow implements GLEventListener {
         cachedScreens = settings.getNumScreensRows() * settings.getNumScreensCols();
 
         cachedTextureDescriptions = new SurfaceTextureDescription[cachedScreens];
+        dirtyScreens = new boolean[cachedScreens];
+        markAllScreensDirty();
         // varNames = new MultiColorText[cachedScreens];
         // legendTextsMin = new MultiColorText[cachedScreens];
         // legendTextsMax = new MultiColorText[cachedScreens];
         // dates = new MultiColorText[cachedScreens];
         // dataSets = new MultiColorText[cachedScreens];
 
-        if (atmosphereFrameBufferObject != null) {
-            atmosphereFrameBufferObject.delete(gl);
-        }
-        if (hudTextFrameBufferObject != null) {
-            hudTextFrameBufferObject.delete(gl);
-        }
-        if (legendTextureFrameBufferObject != null) {
-            legendTextureFrameBufferObject.delete(gl);
-        }
-        if (sphereTextureFrameBufferObject != null) {
-            sphereTextureFrameBufferObject.delete(gl);
-        }
-
-        logger.debug("FrameBufferObject initialization with width: " + canvasWidth + ", height: " + canvasHeight);
-
-        atmosphereFrameBufferObject = new FrameBufferObject(canvasWidth, canvasHeight, GL.GL_TEXTURE0);
-        hudTextFrameBufferObject = new FrameBufferObject(canvasWidth, canvasHeight, GL.GL_TEXTURE1);
-        legendTextureFrameBufferObject = new FrameBufferObject(canvasWidth, canvasHeight, GL.GL_TEXTURE2);
-        sphereTextureFrameBufferObject = new FrameBufferObject(canvasWidth, canvasHeight, GL.GL_TEXTURE3);
-
-        atmosphereFrameBufferObject.init(gl);
-        hudTextFrameBufferObject.init(gl);
-        legendTextureFrameBufferObject.init(gl);
-        sphereTextureFrameBufferObject.init(gl);
-
-        if (cachedFrameBufferObjects == null || cachedScreens != cachedFrameBufferObjects.length) {
-            cachedFrameBufferObjects = new FrameBufferObject[cachedScreens];
-        }
+        initFrameBufferObjects(gl);
 
         logger.debug("CACHED SCREENS: " + cachedScreens);
 
         for (int i = 0; i < cachedScreens; i++) {
             cachedTextureDescriptions[i] = settings.getSurfaceDescription(i);
 
-            if (cachedFrameBufferObjects[i] != null) {
-                cachedFrameBufferObjects[i].delete(gl);
-            }
-            cachedFrameBufferObjects[i] = new FrameBufferObject(canvasWidth, canvasHeight, (GL.GL_TEXTURE6 + i));
-
-            logger.debug("Cached FrameBufferObject init nr: " + i);
-            cachedFrameBufferObjects[i].init(gl);
-
             // String text = "garbled!";
 
             // varNames[i] = new MultiColorText(gl, font, text, Color4.white,
@@ -769,6 +924,51 @@ public class WaterCycleWindow implements GLEventListener {
         // }
     }
 
+    private void initFrameBufferObjects(GL3 gl) {
+        deleteFrameBufferObjects(gl);
+
+        logger.debug("FrameBufferObject initialization with width: " + canvasWidth + ", height: " + canvasHeight);
+
+        atmosphereFrameBufferObject = new FrameBufferObject(canvasWidth, canvasHeight, GL.GL_TEXTURE0);
+        textLayers = new LayeredFrameBufferObject(canvasWidth, canvasHeight, cachedScreens, GL.GL_TEXTURE1, false);
+        legendLayers = new LayeredFrameBufferObject(canvasWidth, canvasHeight, cachedScreens, GL.GL_TEXTURE2, false);
+        sphereLayers = new LayeredFrameBufferObject(canvasWidth, canvasHeight, cachedScreens, GL.GL_TEXTURE3, true);
+
+        atmosphereFrameBufferObject.init(gl);
+        textLayers.init(gl);
+        legendLayers.init(gl);
+        sphereLayers.init(gl);
+
+        // Clear all layers, screens without images are left empty.
+        try {
+            for (LayeredFrameBufferObject layers : new LayeredFrameBufferObject[] { textLayers, legendLayers,
+                    sphereLayers }) {
+                layers.bind(gl);
+                gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
+                layers.unBind(gl);
+            }
+        } catch (UninitializedException e) {
+            e.printStackTrace();
+        }
+
+        markAllScreensDirty();
+    }
+
+    private void deleteFrameBufferObjects(GL3 gl) {
+        if (atmosphereFrameBufferObject != null) {
+            atmosphereFrameBufferObject.delete(gl);
+        }
+        if (textLayers != null) {
+            textLayers.delete(gl);
+        }
+        if (legendLayers != null) {
+            legendLayers.delete(gl);
+        }
+        if (sphereLayers != null) {
+            sphereLayers.delete(gl);
+        }
+    }
+
     @Override
     public void reshape(GLAutoDrawable drawable, int x, int y, int w, int h) {
         // Get the Opengl context from the drawable, and make it current, so
@@ -800,21 +1000,14 @@ public class WaterCycleWindow implements GLEventListener {
 
         for (int i = 0; i < cachedScreens; i++) {
             cachedTextureDescriptions[i] = settings.getSurfaceDescription(i);
-
-            if (cachedFrameBufferObjects[i] != null) {
-                cachedFrameBufferObjects[i].delete(gl);
-            }
-            cachedFrameBufferObjects[i] = new FrameBufferObject(canvasWidth, canvasHeight, (GL.GL_TEXTURE6 + i));
-
-            logger.debug("Cached FrameBufferObject init nr: " + i);
-            cachedFrameBufferObjects[i].init(gl);
         }
 
         // initDatastores(gl);
+        initFrameBufferObjects(gl);
 
-        finalPBO.delete(gl);
-        finalPBO = new IntPixelBufferObject(canvasWidth, canvasHeight);
-        finalPBO.init(gl);
+        screenshotRing.delete(gl);
+        screenshotRing = new ScreenshotRing(canvasWidth, canvasHeight);
+        screenshotRing.init(gl);
 
         // mapper.reshape(canvasWidth, canvasHeight);
 
@@ -858,20 +1051,39 @@ public class WaterCycleWindow implements GLEventListener {
         fsq.delete(gl);
 
         // Delete the FrameBuffer Objects.
-        atmosphereFrameBufferObject.delete(gl);
-        hudTextFrameBufferObject.delete(gl);
-        legendTextureFrameBufferObject.delete(gl);
-        sphereTextureFrameBufferObject.delete(gl);
+        deleteFrameBufferObjects(gl);
 
-        for (int i = 0; i < cachedScreens; i++) {
-            cachedFrameBufferObjects[i].delete(gl);
+        if (surfaceStorage != null) {
+            surfaceStorage.delete(gl);
+        }
+        if (colormapLayers != null) {
+            try {
+                colormapLayers.delete(gl);
+            } catch (UninitializedException e) {
+                e.printStackTrace();
+            }
         }
 
-        finalPBO.delete(gl);
+        for (FrameSink sink : timer.takeFinishedSinks()) {
+            screenshotRing.close(gl, sink);
+        }
+        screenshotRing.delete(gl);
 
         contextOff(drawable);
     }
 
+    /**
+     * Draws the frames of the given player instead of those of the player
+     * owned by the {@link WaterCyclePanel}, for rendering without the Swing
+     * interface.
+     * 
+     * @param timer
+     *            The player that selects the frames to draw.
+     */
+    public void setTimer(TimedPlayer timer) {
+        this.fixedTimer = timer;
+    }
+
     public void makeSnapshot() {
         if (timer != null) {
             timer.setScreenshotNeeded(true);
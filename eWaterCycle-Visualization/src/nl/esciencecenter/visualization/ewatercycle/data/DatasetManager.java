@@ -3,15 +3,25 @@ package nl.esciencecenter.visualization.ewatercycle.data;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.media.opengl.GL3;
 
 import nl.esciencecenter.neon.swing.ColormapInterpreter.Dimensions;
+import nl.esciencecenter.visualization.ewatercycle.CPUColormapper;
+import nl.esciencecenter.visualization.ewatercycle.Colormapper;
 import nl.esciencecenter.visualization.ewatercycle.JOCLColormapper;
 import nl.esciencecenter.visualization.ewatercycle.WaterCycleSettings;
 
@@ -22,62 +32,468 @@ public class DatasetManager {
     private final static Logger logger = LoggerFactory.getLogger(DatasetManager.class);
     private final WaterCycleSettings settings = WaterCycleSettings.getInstance();
 
+    /** Number of images waiting to be written to the disk cache at most. */
+    private final static int DISK_WRITE_QUEUE = 8;
+
+    /** Number of times a read is tried before its frame fails. */
+    private final static int READ_ATTEMPTS = 3;
+    /** Time to wait before the second attempt, doubled for every next one. */
+    private final static long READ_RETRY_DELAY = 10;
+
     private ArrayList<Integer> availableFrameSequenceNumbers;
     private HashMap<String, NetCDFReader> readers;
+    /**
+     * The readers of the experiment dataset, for the variables that a second
+     * file provides as well. The first file to provide a variable is its
+     * control dataset.
+     */
+    private HashMap<String, NetCDFReader> experimentReaders;
     private EfficientTextureStorage effTexStorage;
 
     private int latArraySize;
     private int lonArraySize;
+    private int maxLevels;
+    private GridPyramid pyramid;
 
     private final ExecutorService executor;
-    private final JOCLColormapper mapper;
+    private final Colormapper mapper;
+
+    /**
+     * Frames that have been (or are being) built, mapped to the requests that
+     * are waiting for them. Speculative (prefetch) jobs start out with an
+     * empty list of waiting requests.
+     */
+    private final Map<SurfaceTextureDescription, List<SurfaceTextureDescription>> pendingFrames;
+
+    /**
+     * Bounded staging area for prefetched frames that have not been asked for
+     * yet. Least recently used frames are dropped first.
+     */
+    private final Map<SurfaceTextureDescription, int[]> stagedFrames;
+
+    /**
+     * The depth last asked for of every variable, another depth starts a
+     * depth sweep.
+     */
+    private final Map<String, Integer> requestedDepths;
+
+    private final AtomicLong workerSequence = new AtomicLong();
+
+    private final TextureDiskCache diskCache;
+    /**
+     * Writes images to the disk cache, off the threads that complete them.
+     * Images that find the queue full are not cached.
+     */
+    private final ExecutorService diskWriter;
+
+    private final StatisticsListener statisticsListener = new StatisticsListener() {
+        @Override
+        public void scanProgress(NetCDFReader reader, int timestepsDone, int timestepsTotal) {
+            int percentage = (timestepsDone * 100) / timestepsTotal;
+            if (percentage != ((timestepsDone - 1) * 100) / timestepsTotal) {
+                logger.debug("Determining variable bounds: " + percentage + "%");
+            }
+        }
 
-    private class Worker implements Runnable {
+        @Override
+        public void statisticsDetermined(String variableName, VariableStatistics statistics) {
+            System.out.println(variableName + " minimum determined: " + statistics.getMin());
+            System.out.println(variableName + " maximum determined: " + statistics.getMax());
+        }
+    };
+
+    private class Worker implements Runnable, Comparable<Worker> {
         private final SurfaceTextureDescription desc;
+        private final boolean speculative;
+        private final long sequenceNumber;
+
+        /**
+         * The levels of a depth sweep, all at the same timestep, or null for
+         * a single image.
+         */
+        private final List<SurfaceTextureDescription> sweep;
 
-        public Worker(SurfaceTextureDescription desc) {
+        public Worker(SurfaceTextureDescription desc, boolean speculative) {
             this.desc = desc;
+            this.speculative = speculative;
+            this.sequenceNumber = workerSequence.getAndIncrement();
+            this.sweep = null;
+        }
+
+        /**
+         * A speculative worker for a depth sweep, building the images of the
+         * given levels of a timestep from a single read.
+         */
+        public Worker(List<SurfaceTextureDescription> sweep) {
+            this.desc = sweep.get(0);
+            this.speculative = true;
+            this.sequenceNumber = workerSequence.getAndIncrement();
+            this.sweep = sweep;
+        }
+
+        @Override
+        public int compareTo(Worker other) {
+            // Requested frames always go before speculative ones, otherwise
+            // first come, first served.
+            if (speculative != other.speculative) {
+                return speculative ? 1 : -1;
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
         }
 
         @Override
         public void run() {
+            try {
+                buildFrames();
+            } catch (RuntimeException e) {
+                // Otherwise the requests waiting on the frames would wait
+                // forever.
+                if (sweep == null) {
+                    frameFailed(desc, e);
+                } else {
+                    for (SurfaceTextureDescription levelDesc : sweep) {
+                        frameFailed(levelDesc, e);
+                    }
+                }
+            }
+        }
+
+        private void buildFrames() {
+            if (sweep == null) {
+                build(desc, null, null);
+                return;
+            }
+
+            // The levels of a timestep lie next to each other in the file, so
+            // they are read in one go and mapped one by one.
+            NetCDFReader currentReader = getReader(desc);
+            NetCDFReader experimentReader = getDifferenceReader(desc);
+            FloatBuffer timestep = readTimestep(currentReader, desc);
+            FloatBuffer experimentTimestep = null;
+            if (experimentReader != null) {
+                experimentTimestep = readTimestep(experimentReader, desc);
+            }
+
+            for (SurfaceTextureDescription levelDesc : sweep) {
+                FloatBuffer experimentLevel = null;
+                if (experimentTimestep != null) {
+                    experimentLevel = getLevel(experimentTimestep, levelDesc.getDepth());
+                }
+                build(levelDesc, getLevel(timestep, levelDesc.getDepth()), experimentLevel);
+            }
+        }
+
+        /**
+         * Builds a single image.
+         *
+         * @param desc
+         *            The description of the image.
+         * @param control
+         *            The data of the image if it was read already, or null.
+         * @param experiment
+         *            The data of the experiment dataset for a difference image
+         *            if it was read already, or null.
+         */
+        private void build(final SurfaceTextureDescription desc, FloatBuffer control, FloatBuffer experiment) {
             int frameNumber = desc.getFrameNumber();
             String varName = desc.getVarName();
 
-            NetCDFReader currentReader = readers.get(varName);
+            NetCDFReader currentReader = getReader(desc);
+            NetCDFReader experimentReader = getDifferenceReader(desc);
+            final boolean difference = experimentReader != null;
 
             if (frameNumber < 0 || frameNumber > currentReader.getAvailableFrames(varName)) {
                 logger.debug("buildImages : Requested frameNumber  " + frameNumber + " out of range.");
             }
             String variableName = desc.getVarName();
 
-            Dimensions colormapDims = new Dimensions(settings.getCurrentVarMin(varName),
-                    settings.getCurrentVarMax(varName));
-            float[] surfaceArray = null;
-            while (surfaceArray == null) {
-                surfaceArray = currentReader.getData(varName, frameNumber);
+            if (settings.isGpuColormapping()) {
+                // Hand over the data itself, the colormap is applied while
+                // drawing it.
+                FloatBuffer surfaceArray = control != null ? control : readSurfaceData(currentReader, desc);
+                if (difference) {
+                    FloatBuffer experimentArray = experiment != null ? experiment : readSurfaceData(
+                            experimentReader, desc);
+                    frameCompleted(desc, toDifferenceTexels(surfaceArray, currentReader.getFillValue(variableName),
+                            experimentArray, experimentReader.getFillValue(variableName)));
+                } else {
+                    frameCompleted(desc, toTexels(surfaceArray, currentReader.getFillValue(variableName)));
+                }
+                return;
+            }
+
+            Dimensions colormapDims;
+            if (difference) {
+                colormapDims = new Dimensions(settings.getCurrentVarDiffMin(varName),
+                        settings.getCurrentVarDiffMax(varName));
+            } else {
+                colormapDims = new Dimensions(settings.getCurrentVarMin(varName), settings.getCurrentVarMax(varName));
+            }
+
+            final String cacheKey;
+            if (diskCache != null) {
+                if (difference) {
+                    cacheKey = TextureDiskCache.makeKey(currentReader.getFingerprint(),
+                            experimentReader.getFingerprint(), desc, colormapDims.getMin(), colormapDims.getMax(),
+                            getImageWidth(), getImageHeight());
+                } else {
+                    cacheKey = TextureDiskCache.makeKey(currentReader.getFingerprint(), desc, colormapDims.getMin(),
+                            colormapDims.getMax(), getImageWidth(), getImageHeight());
+                }
+
+                int[] cachedPixels = diskCache.read(cacheKey, getImageWidth() * getImageHeight());
+                if (cachedPixels != null) {
+                    frameCompleted(desc, cachedPixels);
+                    return;
+                }
+            } else {
+                cacheKey = null;
             }
 
-            int[] pixelArray = mapper.makeImage(desc.getColorMap(), colormapDims, surfaceArray,
-                    currentReader.getFillValue(variableName), desc.isLogScale());
+            FloatBuffer surfaceArray = control != null ? control : readSurfaceData(currentReader, desc);
+
+            Colormapper.ImageCallback callback = new Colormapper.ImageCallback() {
+                @Override
+                public void imageReady(int[] pixelArray) {
+                    frameCompleted(desc, pixelArray);
+
+                    if (diskCache != null) {
+                        final int[] pixels = pixelArray;
+                        diskWriter.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                diskCache.write(cacheKey, pixels);
+                            }
+                        });
+                    }
+                }
+
+                @Override
+                public void imageFailed(Throwable cause) {
+                    frameFailed(desc, cause);
+                }
+            };
+
+            // Hand the data to the mapper and move on to the next frame while
+            // this one is mapped.
+            if (difference) {
+                FloatBuffer experimentArray = experiment != null ? experiment : readSurfaceData(experimentReader,
+                        desc);
+                mapper.makeDifferenceImageAsync(desc.getColorMap(), colormapDims, surfaceArray, experimentArray,
+                        currentReader.getFillValue(variableName), experimentReader.getFillValue(variableName),
+                        callback);
+            } else {
+                mapper.makeImageAsync(desc.getColorMap(), colormapDims, surfaceArray,
+                        currentReader.getFillValue(variableName), desc.isLogScale(), callback);
+            }
+        }
+
+    }
+
+    /**
+     * The reader of the dataset an image shows, the experiment dataset for
+     * images of the second set, and the control dataset otherwise.
+     */
+    private NetCDFReader getReader(SurfaceTextureDescription desc) {
+        String varName = desc.getVarName();
+        NetCDFReader experimentReader = experimentReaders.get(varName);
+
+        if (experimentReader == null && (desc.isDiff() || desc.isSecondSet())) {
+            logger.debug("buildImages : No experiment dataset for " + varName + ", showing the control dataset.");
+        } else if (desc.isSecondSet()) {
+            return experimentReader;
+        }
+        return readers.get(varName);
+    }
+
+    /**
+     * The reader of the experiment dataset to subtract the control dataset
+     * from, or null if the image is not a difference image.
+     */
+    private NetCDFReader getDifferenceReader(SurfaceTextureDescription desc) {
+        if (!desc.isDiff()) {
+            return null;
+        }
+        return experimentReaders.get(desc.getVarName());
+    }
+
+    /**
+     * The data an image shows, the whole grid when it fits in an image, and a
+     * window of a level of the grid pyramid otherwise.
+     */
+    private FloatBuffer getSurfaceData(NetCDFReader reader, SurfaceTextureDescription desc) {
+        if (pyramid.getBaseLevel() == 0) {
+            return reader.getDataBuffer(desc.getVarName(), desc.getFrameNumber(), desc.getDepth());
+        }
 
-            ByteBuffer legendBuf = mapper.getColormapForLegendTexture(desc.getColorMap());
+        float[] window = pyramid.readWindow(reader, desc);
+        if (window == null) {
+            return null;
+        }
+        return FloatBuffer.wrap(window);
+    }
 
-            effTexStorage.setImageCombo(desc, pixelArray, legendBuf);
+    /**
+     * {@link #getSurfaceData(NetCDFReader, SurfaceTextureDescription)}, tried
+     * a few times.
+     * 
+     * @throws IllegalStateException
+     *             If the data could not be read, which fails the frame.
+     */
+    private FloatBuffer readSurfaceData(NetCDFReader reader, SurfaceTextureDescription desc) {
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            FloatBuffer surfaceArray = getSurfaceData(reader, desc);
+            if (surfaceArray != null) {
+                return surfaceArray;
+            }
+            waitToRetry(attempt);
         }
+        throw new IllegalStateException("Unable to read the data of " + desc);
+    }
 
+    /**
+     * All levels of the timestep of an image, in a single read, tried a few
+     * times.
+     * 
+     * @throws IllegalStateException
+     *             If the data could not be read, which fails the frame.
+     */
+    private FloatBuffer readTimestep(NetCDFReader reader, SurfaceTextureDescription desc) {
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            FloatBuffer timestep = reader.getDataBuffer(desc.getVarName(), desc.getFrameNumber());
+            if (timestep != null) {
+                return timestep;
+            }
+            waitToRetry(attempt);
+        }
+        throw new IllegalStateException("Unable to read the timestep of " + desc);
+    }
+
+    /**
+     * Backs off before the next attempt of a read, most failures to read are
+     * not going to go away.
+     */
+    private void waitToRetry(int attempt) {
+        if (attempt + 1 < READ_ATTEMPTS) {
+            try {
+                Thread.sleep(READ_RETRY_DELAY << attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A view of a single level of a timestep, without copying.
+     */
+    private FloatBuffer getLevel(FloatBuffer timestep, int depth) {
+        int levelSize = lonArraySize * latArraySize;
+        FloatBuffer view = timestep.duplicate();
+        view.position(timestep.position() + depth * levelSize);
+        view.limit(view.position() + levelSize);
+        return view.slice();
+    }
+
+    /**
+     * Lays the data out like the colormapped images, mirrored horizontally,
+     * with the bits of every value stored in an int. Missing data becomes NaN,
+     * so the shaders can tell without knowing the fill value.
+     */
+    private int[] toTexels(FloatBuffer data, float fillValue) {
+        int width = getImageWidth();
+        int height = getImageHeight();
+        int[] texels = new int[width * height];
+
+        int dataIndex = data.position();
+        for (int iy = 0; iy < height; iy++) {
+            int texelIndex = iy * width + width - 1;
+            for (int ix = 0; ix < width; ix++, dataIndex++, texelIndex--) {
+                float value = data.get(dataIndex);
+                if (value == fillValue) {
+                    value = Float.NaN;
+                }
+                texels[texelIndex] = Float.floatToRawIntBits(value);
+            }
+        }
+        return texels;
+    }
+
+    /**
+     * Lays out the difference between two datasets, the experiment minus the
+     * control, like {@link #toTexels(FloatBuffer, float)}. Missing data in
+     * either dataset becomes NaN.
+     */
+    private int[] toDifferenceTexels(FloatBuffer control, float controlFillValue, FloatBuffer experiment,
+            float experimentFillValue) {
+        int width = getImageWidth();
+        int height = getImageHeight();
+        int[] texels = new int[width * height];
+
+        int controlIndex = control.position();
+        int experimentIndex = experiment.position();
+        for (int iy = 0; iy < height; iy++) {
+            int texelIndex = iy * width + width - 1;
+            for (int ix = 0; ix < width; ix++, controlIndex++, experimentIndex++, texelIndex--) {
+                float controlValue = control.get(controlIndex);
+                float experimentValue = experiment.get(experimentIndex);
+                float value;
+                if (controlValue == controlFillValue || experimentValue == experimentFillValue) {
+                    value = Float.NaN;
+                } else {
+                    value = experimentValue - controlValue;
+                }
+                texels[texelIndex] = Float.floatToRawIntBits(value);
+            }
+        }
+        return texels;
     }
 
     public DatasetManager(File[] files) {
-        executor = Executors.newFixedThreadPool(4);
+        executor = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+
+        if (settings.isTextureCacheEnabled()) {
+            diskCache = new TextureDiskCache(new File(settings.getTextureCachePath()), settings.getTextureCacheBudget(),
+                    settings.isTextureCacheCompressed());
+            diskWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+                    DISK_WRITE_QUEUE), new ThreadPoolExecutor.DiscardPolicy());
+        } else {
+            diskCache = null;
+            diskWriter = null;
+        }
+
+        pendingFrames = new HashMap<SurfaceTextureDescription, List<SurfaceTextureDescription>>();
+        requestedDepths = new HashMap<String, Integer>();
+        stagedFrames = new LinkedHashMap<SurfaceTextureDescription, int[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SurfaceTextureDescription, int[]> eldest) {
+                return size() > getStagingCapacity();
+            }
+        };
 
         init(files);
 
-        mapper = new JOCLColormapper(getImageWidth(), getImageHeight());
+        mapper = createMapper(getImageWidth(), getImageHeight());
+    }
+
+    /**
+     * Colormap on an OpenCL device when there is one, and on the CPU
+     * otherwise.
+     */
+    private static Colormapper createMapper(int width, int height) {
+        if (JOCLColormapper.isAvailable()) {
+            return new JOCLColormapper(width, height);
+        }
+        logger.info("No OpenCL device found, colormapping on the CPU.");
+        return new CPUColormapper(width, height);
     }
 
     public synchronized void shutdown() {
         executor.shutdown();
+        if (diskWriter != null) {
+            diskWriter.shutdown();
+        }
 
         while (!executor.isTerminated()) {
         }
@@ -86,16 +502,26 @@ public class DatasetManager {
     private synchronized void init(File[] files) {
         availableFrameSequenceNumbers = new ArrayList<Integer>();
         readers = new HashMap<String, NetCDFReader>();
+        experimentReaders = new HashMap<String, NetCDFReader>();
 
         latArraySize = 0;
         lonArraySize = 0;
+        maxLevels = 1;
         int frames = 0;
 
-        for (File file : files) {
+        // Files that continue each other in time make up a single dataset.
+        for (List<TimeAggregation.FileHeader> series : TimeAggregation.groupByTime(files)) {
             boolean accept = true;
             boolean init = false;
 
-            NetCDFReader ncr = new NetCDFReader(file);
+            String name = series.get(0).getFile().getName();
+            NetCDFReader ncr;
+            try {
+                ncr = new NetCDFReader(new TimeAggregation(series, settings.getMaxOpenFiles()));
+            } catch (IOException e) {
+                logger.error("trying to open " + name, e);
+                continue;
+            }
 
             // If this is the first file, use it to set the standard
             if (latArraySize == 0) {
@@ -134,12 +560,23 @@ public class DatasetManager {
             if (accept) {
                 ArrayList<String> varNames = ncr.getVariableNames();
                 for (String varName : varNames) {
-                    readers.put(varName, ncr);
-                    System.out.println(varName + " added to available variables.");
-
-                    // And determine the bounds
-                    ncr.determineMinMax(varName);
+                    maxLevels = Math.max(maxLevels, ncr.getLevels(varName));
+                    if (!readers.containsKey(varName)) {
+                        readers.put(varName, ncr);
+                        System.out.println(varName + " added to available variables.");
+                    } else if (!experimentReaders.containsKey(varName)) {
+                        experimentReaders.put(varName, ncr);
+                        System.out.println(varName + " added as experiment dataset.");
+                    } else {
+                        logger.debug(varName + " already has a control and an experiment dataset, ignored in "
+                                + name);
+                    }
                 }
+
+                // Determine the bounds of the variables that are not shown
+                // right away in the background, the others are requested
+                // when they are shown.
+                ncr.requestStatisticsInBackground(varNames, statisticsListener);
                 if (init) {
                     int numFrames = ncr.getAvailableFrames();
                     for (int i = 0; i < numFrames; i++) {
@@ -149,14 +586,190 @@ public class DatasetManager {
             }
         }
 
+        settings.setDepthMax(maxLevels - 1);
+
+        pyramid = new GridPyramid(new File(settings.getPyramidCachePath()), settings.getPyramidCacheBudget(),
+                lonArraySize, latArraySize, settings.getMaxTextureSize());
+
         effTexStorage = new EfficientTextureStorage(this, settings.getNumScreensRows() * settings.getNumScreensCols(),
-                lonArraySize, latArraySize, GL3.GL_TEXTURE4, GL3.GL_TEXTURE5);
+                lonArraySize, latArraySize, GL3.GL_TEXTURE4, GL3.GL_TEXTURE5, settings.getTextureHostMemoryBudget(),
+                settings.getTextureGpuMemoryBudget(), settings.isGpuColormapping());
 
     }
 
-    public synchronized void buildImages(SurfaceTextureDescription desc) {
-        Runnable worker = new Worker(desc);
-        executor.execute(worker);
+    /**
+     * Request the images for the given description. If the frame was
+     * prefetched earlier it is handed to the texture storage right away,
+     * otherwise a worker is scheduled (or an already running prefetch job is
+     * told to deliver its result). In both cases the look-ahead window of
+     * frames following this one is scheduled for prefetching.
+     * 
+     * @param desc
+     *            The description of the requested images.
+     */
+    public void buildImages(SurfaceTextureDescription desc) {
+        int[] stagedPixels;
+
+        synchronized (this) {
+            stagedPixels = stagedFrames.remove(desc);
+
+            if (stagedPixels == null) {
+                List<SurfaceTextureDescription> waiting = pendingFrames.get(desc);
+                if (waiting == null) {
+                    waiting = new ArrayList<SurfaceTextureDescription>();
+                    pendingFrames.put(desc, waiting);
+                    executor.execute(new Worker(desc, false));
+                }
+                waiting.add(desc);
+            }
+
+            prefetch(desc);
+            sweepDepths(desc);
+        }
+
+        // Deliver outside of our own lock, the texture storage calls back into
+        // this class while holding its lock.
+        if (stagedPixels != null) {
+            logger.debug("prefetched frame available: " + desc);
+            effTexStorage.setImageCombo(desc, stagedPixels, getLegendBuffer(desc));
+        }
+    }
+
+    /**
+     * Schedule speculative workers for the frames following the given one, up
+     * to the configured look-ahead window, unless they are already staged or
+     * underway.
+     * 
+     * @param desc
+     *            The description of the frame currently requested.
+     */
+    private synchronized void prefetch(SurfaceTextureDescription desc) {
+        int frameNumber = desc.getFrameNumber();
+
+        for (int i = 0; i < settings.getPreprocessAmount(); i++) {
+            try {
+                frameNumber = getNextFrameNumber(frameNumber);
+            } catch (IOException e) {
+                // End of the dataset, nothing left to prefetch.
+                break;
+            }
+
+            SurfaceTextureDescription ahead = desc.withFrameNumber(frameNumber);
+
+            if (!stagedFrames.containsKey(ahead) && !pendingFrames.containsKey(ahead)) {
+                pendingFrames.put(ahead, new ArrayList<SurfaceTextureDescription>());
+                executor.execute(new Worker(ahead, true));
+            }
+        }
+    }
+
+    /**
+     * Schedule a single speculative worker for all other levels of the
+     * requested timestep when the depth of its variable changed, so moving
+     * through the levels of a timestep costs a single read. Grids that are
+     * shown through their pyramid are built level by level instead.
+     * 
+     * @param desc
+     *            The description of the frame currently requested.
+     */
+    private synchronized void sweepDepths(SurfaceTextureDescription desc) {
+        String varName = desc.getVarName();
+        Integer previousDepth = requestedDepths.put(varName, desc.getDepth());
+        if (previousDepth == null || previousDepth == desc.getDepth() || pyramid.getBaseLevel() != 0) {
+            return;
+        }
+
+        int levels = getReader(desc).getLevels(varName);
+        List<SurfaceTextureDescription> sweep = new ArrayList<SurfaceTextureDescription>();
+        for (int level = 0; level < levels; level++) {
+            SurfaceTextureDescription levelDesc = desc.withDepth(level);
+
+            if (!stagedFrames.containsKey(levelDesc) && !pendingFrames.containsKey(levelDesc)) {
+                pendingFrames.put(levelDesc, new ArrayList<SurfaceTextureDescription>());
+                sweep.add(levelDesc);
+            }
+        }
+
+        if (!sweep.isEmpty()) {
+            executor.execute(new Worker(sweep));
+        }
+    }
+
+    /**
+     * Called by the workers when a frame is done. The frame is handed to the
+     * texture storage for every request waiting on it, or staged if nobody
+     * asked for it (yet).
+     * 
+     * @param desc
+     *            The description of the finished frame.
+     * @param pixels
+     *            The colormapped pixels.
+     */
+    private void frameCompleted(SurfaceTextureDescription desc, int[] pixels) {
+        List<SurfaceTextureDescription> waiting;
+
+        synchronized (this) {
+            waiting = pendingFrames.remove(desc);
+
+            if (waiting == null || waiting.isEmpty()) {
+                stagedFrames.put(desc, pixels);
+                return;
+            }
+        }
+
+        ByteBuffer legendBuf = getLegendBuffer(desc);
+        for (SurfaceTextureDescription request : waiting) {
+            effTexStorage.setImageCombo(request, pixels, legendBuf);
+        }
+    }
+
+    /**
+     * Called by the workers when a frame could not be built. Every request
+     * waiting on it gets an empty image (missing data, for data that is
+     * colormapped on the GPU), so that the screens showing it do not wait
+     * forever.
+     * 
+     * @param desc
+     *            The description of the failed frame.
+     * @param cause
+     *            The reason the frame failed, may be null.
+     */
+    private void frameFailed(SurfaceTextureDescription desc, Throwable cause) {
+        List<SurfaceTextureDescription> waiting;
+
+        synchronized (this) {
+            waiting = pendingFrames.remove(desc);
+        }
+        if (waiting == null) {
+            // Delivered before the failure.
+            return;
+        }
+        logger.error("Unable to build " + desc, cause);
+
+        int[] empty = new int[getImageWidth() * getImageHeight()];
+        if (settings.isGpuColormapping()) {
+            Arrays.fill(empty, Float.floatToRawIntBits(Float.NaN));
+        }
+        ByteBuffer legendBuf = getLegendBuffer(desc);
+        for (SurfaceTextureDescription request : waiting) {
+            effTexStorage.setImageCombo(request, empty, legendBuf);
+        }
+    }
+
+    /**
+     * The legend to go with an image, or null for data that is colormapped on
+     * the GPU.
+     */
+    private ByteBuffer getLegendBuffer(SurfaceTextureDescription desc) {
+        if (settings.isGpuColormapping()) {
+            return null;
+        }
+        return mapper.getColormapForLegendTexture(desc.getColorMap());
+    }
+
+    private int getStagingCapacity() {
+        return (settings.getPreprocessAmount() + maxLevels) * settings.getNumScreensRows()
+                * settings.getNumScreensCols();
     }
 
     public synchronized EfficientTextureStorage getEfficientTextureStorage() {
@@ -208,11 +821,30 @@ public class DatasetManager {
     }
 
     public synchronized int getImageWidth() {
-        return lonArraySize;
+        return pyramid.getWindowWidth();
     }
 
     public synchronized int getImageHeight() {
-        return latArraySize;
+        return pyramid.getWindowHeight();
+    }
+
+    public synchronized GridPyramid getGridPyramid() {
+        return pyramid;
+    }
+
+    /**
+     * Start determining the bounds of a variable, in the control and
+     * experiment datasets, unless that was done before. Does not block, the
+     * bounds are determined in the background.
+     * 
+     * @param varName
+     *            The variable about to be shown.
+     */
+    public synchronized void requestStatistics(String varName) {
+        readers.get(varName).requestStatistics(varName, statisticsListener);
+        if (experimentReaders.containsKey(varName)) {
+            experimentReaders.get(varName).requestStatistics(varName, statisticsListener);
+        }
     }
 
     public synchronized float getMinValueContainedInDataset(String varName) {
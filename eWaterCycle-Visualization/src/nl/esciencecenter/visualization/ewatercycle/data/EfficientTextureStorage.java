@@ -1,47 +1,117 @@
 package nl.esciencecenter.visualization.ewatercycle.data;
 
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.exceptions.UninitializedException;
 import nl.esciencecenter.visualization.ewatercycle.ByteBufferTexture;
-import nl.esciencecenter.visualization.ewatercycle.IntArrayTexture;
 import nl.esciencecenter.visualization.ewatercycle.Texture2D;
+import nl.esciencecenter.visualization.ewatercycle.Texture2DArray;
+import nl.esciencecenter.visualization.ewatercycle.TextureUploadRing;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jogamp.common.nio.Buffers;
 
+/**
+ * Keeps the images of the screens, and of the ones shown recently. The
+ * surfaces all live in the layers of a single texture array that is allocated
+ * once, so changing the images only replaces the contents of layers that are
+ * no longer used. The number of layers follows from the GPU memory budget.
+ * The threads delivering the images write them into the buffers of a
+ * {@link TextureUploadRing} where possible, so the OpenGL thread only has to
+ * start the copies. When colormapping on the GPU, the layers hold the data
+ * itself as floats, the images are colormapped while drawing them.
+ */
 public class EfficientTextureStorage {
     private static final int                  LEGEND_TEXTURE_HEIGHT = 500;
     private static final int                  LEGEND_TEXTURE_WIDTH  = 1;
 
+    /** The layer that is left empty, for screens without an image. */
+    public static final int                   EMPTY_LAYER           = 0;
+    private static final int                  SURFACE_MIPMAP_LEVELS = 6;
+    /** The least number of layers every OpenGL 3 implementation supports. */
+    private static final int                  MAX_SURFACE_LAYERS    = 256;
+
     private final static Logger               logger                = LoggerFactory
                                                                             .getLogger(EfficientTextureStorage.class);
 
-    private final SurfaceTextureDescription[] oldScreenA;
-    private final SurfaceTextureDescription[] newScreenA;
-    private List<TextureCombo>                storage;
+    /**
+     * The descriptions per screen. Slots are replaced atomically, so they can
+     * be read without locking.
+     */
+    private final AtomicReferenceArray<SurfaceTextureDescription> oldScreenA;
+    private final AtomicReferenceArray<SurfaceTextureDescription> newScreenA;
+    private volatile Set<SurfaceTextureDescription>               requestedDescs;
+
+    /**
+     * The combinations that are on screen, or requested to be. Screens that
+     * show the same thing share a combination.
+     */
+    private final ConcurrentHashMap<SurfaceTextureDescription, TextureCombo> storage;
+
+    /**
+     * Combinations that are no longer on screen, but kept around in least
+     * recently used order in case they are requested again.
+     */
+    private final LinkedHashMap<SurfaceTextureDescription, TextureCombo> recentlyUsed;
+    private final long                        hostMemoryBudget;
+    private long                              cachedHostBytes;
 
     private final DatasetManager              manager;
 
-    private final ByteBufferTexture           EMPTY_SURFACE_BUFFER;
+    private final Texture2DArray              surfaceLayers;
+    private final ArrayDeque<Integer>         freeLayers;
+    private final TextureUploadRing           uploadRing;
+
+    /**
+     * Legend textures of evicted combinations, to be removed from the GPU
+     * memory by the next configuration request.
+     */
+    private final List<Texture2D>             unusedTextures;
+
     private final ByteBufferTexture           EMPTY_LEGEND_BUFFER;
+    private final TextureCombo                EMPTY_COMBO;
 
     private final int                         width;
     private final int                         height;
-    private final int                         surfaceMultiTexUnit;
     private final int                         legendMultiTexUnit;
+    private final int                         surfaceLevels;
 
     public class TextureCombo {
         private final SurfaceTextureDescription description;
-        private final Texture2D                 surfaceTexture;
+        private final int                       surfaceLayer;
         private final Texture2D                 legendTexture;
-
-        public TextureCombo(SurfaceTextureDescription description, Texture2D surfaceTexture, Texture2D legendTexture) {
+        private volatile boolean                uploaded = false;
+
+        /**
+         * The surface waiting to be uploaded, either in a slot of the upload
+         * ring or on the host. Guarded by the combination itself rather than
+         * the storage, so uploading does not wait for the threads delivering
+         * images.
+         */
+        private TextureUploadRing.Slot          surfaceSlot;
+        private ByteBuffer[]                    surfaceMipmaps;
+
+        public TextureCombo(SurfaceTextureDescription description, int surfaceLayer,
+                TextureUploadRing.Slot surfaceSlot, ByteBuffer[] surfaceMipmaps, Texture2D legendTexture) {
             this.description = description;
-            this.surfaceTexture = surfaceTexture;
+            this.surfaceLayer = surfaceLayer;
+            this.surfaceSlot = surfaceSlot;
+            this.surfaceMipmaps = surfaceMipmaps;
             this.legendTexture = legendTexture;
         }
 
@@ -49,8 +119,12 @@ public class EfficientTextureStorage {
             return description;
         }
 
-        public Texture2D getSurfaceTexture() {
-            return surfaceTexture;
+        /**
+         * @return The layer of the surface texture array holding the surface,
+         *         once it has been uploaded.
+         */
+        public int getSurfaceLayer() {
+            return surfaceLayer;
         }
 
         public Texture2D getLegendTexture() {
@@ -59,181 +133,384 @@ public class EfficientTextureStorage {
     }
 
     public EfficientTextureStorage(DatasetManager manager, int screens, int width, int height, int surfaceMultiTexUnit,
-            int legendMultiTexUnit) {
+            int legendMultiTexUnit, long hostMemoryBudget, long gpuMemoryBudget, boolean rawData) {
         this.width = width;
         this.height = height;
-        this.surfaceMultiTexUnit = surfaceMultiTexUnit;
         this.legendMultiTexUnit = legendMultiTexUnit;
 
-        oldScreenA = new SurfaceTextureDescription[screens];
-        newScreenA = new SurfaceTextureDescription[screens];
+        oldScreenA = new AtomicReferenceArray<SurfaceTextureDescription>(screens);
+        newScreenA = new AtomicReferenceArray<SurfaceTextureDescription>(screens);
+        requestedDescs = Collections.emptySet();
 
-        storage = new ArrayList<TextureCombo>();
+        storage = new ConcurrentHashMap<SurfaceTextureDescription, TextureCombo>();
+
+        recentlyUsed = new LinkedHashMap<SurfaceTextureDescription, TextureCombo>(16, 0.75f, true);
+        this.hostMemoryBudget = hostMemoryBudget;
 
         this.manager = manager;
 
+        // Every screen needs a layer for the image it shows and one for the
+        // image it requested, the layers left within the budget keep recently
+        // shown images. Images are stored as RGB16 with their mipmaps, which
+        // add about a third to the base level, data as plain floats.
+        long layerBytes;
+        if (rawData) {
+            surfaceLevels = 1;
+            layerBytes = (long) width * height * 4;
+        } else {
+            surfaceLevels = SURFACE_MIPMAP_LEVELS;
+            layerBytes = ((long) width * height * 6 * 4) / 3;
+        }
+        long cacheLayers = Math.max(0, gpuMemoryBudget / layerBytes - 2 * screens - 1);
+        int layers = (int) Math.min(MAX_SURFACE_LAYERS, 1 + 2 * screens + cacheLayers);
+
+        if (rawData) {
+            surfaceLayers = new Texture2DArray(surfaceMultiTexUnit, width, height, layers, GL3.GL_R32F, surfaceLevels,
+                    GL3.GL_RED, GL3.GL_FLOAT);
+        } else {
+            surfaceLayers = new Texture2DArray(surfaceMultiTexUnit, width, height, layers, GL3.GL_RGB16,
+                    surfaceLevels);
+        }
+        freeLayers = new ArrayDeque<Integer>();
+        for (int i = 0; i < layers; i++) {
+            if (i != EMPTY_LAYER) {
+                freeLayers.add(i);
+            }
+        }
+        uploadRing = new TextureUploadRing(width, height, surfaceLevels, screens);
+        unusedTextures = new ArrayList<Texture2D>();
+
         ByteBuffer surfaceBuffer = Buffers.newDirectByteBuffer(width * height * 4);
+        if (rawData) {
+            // Screens without an image show missing data.
+            for (int i = 0; i < width * height; i++) {
+                surfaceBuffer.putFloat(i * 4, Float.NaN);
+            }
+        }
         ByteBuffer legendBuffer = Buffers.newDirectByteBuffer(LEGEND_TEXTURE_WIDTH * LEGEND_TEXTURE_HEIGHT * 4);
 
-        EMPTY_SURFACE_BUFFER = new ByteBufferTexture(surfaceMultiTexUnit, surfaceBuffer, width, height);
-
         EMPTY_LEGEND_BUFFER = new ByteBufferTexture(legendMultiTexUnit, legendBuffer, LEGEND_TEXTURE_WIDTH,
                 LEGEND_TEXTURE_HEIGHT);
+        EMPTY_COMBO = new TextureCombo(null, EMPTY_LAYER, null, Texture2DArray.createMipmaps(surfaceBuffer, width,
+                height, surfaceLevels), EMPTY_LEGEND_BUFFER);
 
-        logger.debug("Texture storage initialization, size: " + width + "x" + height);
+        logger.debug("Texture storage initialization, size: " + width + "x" + height + ", " + layers + " layers");
     }
 
-    public synchronized TextureCombo getImages(int screenNumber) {
-        if (screenNumber < 0 || screenNumber > oldScreenA.length - 1) {
+    /**
+     * Get the images for a screen: the newly requested ones if they are
+     * available, otherwise the ones requested before that, otherwise empty
+     * ones. Does not block.
+     * 
+     * @param screenNumber
+     *            The screen to get the images for.
+     * @return The images.
+     */
+    public TextureCombo getImages(int screenNumber) {
+        if (screenNumber < 0 || screenNumber > oldScreenA.length() - 1) {
             logger.error("Get request for screen number out of range: " + screenNumber);
         }
 
-        if (newScreenA[screenNumber] != null) {
-            for (TextureCombo combo : storage) {
-                if (newScreenA[screenNumber] == combo.getDescription()) {
-                    return combo;
-                }
+        SurfaceTextureDescription newDesc = newScreenA.get(screenNumber);
+        if (newDesc != null) {
+            TextureCombo combo = storage.get(newDesc);
+            if (combo != null) {
+                return combo;
             }
         }
 
-        if (oldScreenA[screenNumber] != null) {
-            for (TextureCombo combo : storage) {
-                if (oldScreenA[screenNumber] == combo.getDescription()) {
-                    return combo;
-                }
+        SurfaceTextureDescription oldDesc = oldScreenA.get(screenNumber);
+        if (oldDesc != null) {
+            TextureCombo combo = storage.get(oldDesc);
+            if (combo != null) {
+                return combo;
             }
         }
 
-        return new TextureCombo(null, EMPTY_SURFACE_BUFFER, EMPTY_LEGEND_BUFFER);
+        return EMPTY_COMBO;
     }
 
-    public synchronized boolean isRequested(SurfaceTextureDescription desc) {
-        boolean requested = false;
+    /**
+     * Get the texture array holding the surfaces of all images, allocating it
+     * on first use. Call from the OpenGL thread only.
+     * 
+     * @param gl
+     *            The current OpenGL instance.
+     * @return The surface texture array.
+     */
+    public Texture2DArray getSurfaceLayers(GL3 gl) {
+        if (!surfaceLayers.isInitialized()) {
+            surfaceLayers.init(gl);
+            uploadRing.init(gl);
+            uploadSurface(gl, EMPTY_COMBO);
+        }
+        return surfaceLayers;
+    }
 
-        for (int i = 0; i < newScreenA.length; i++) {
-            if (newScreenA[i] == desc) {
-                requested = true;
+    /**
+     * Copy the surface of a combination into its layer of the surface texture
+     * array, unless that was done before or the combination has been evicted
+     * since. Call from the OpenGL thread only. Does not wait for the threads
+     * delivering images.
+     * 
+     * @param gl
+     *            The current OpenGL instance.
+     * @param combo
+     *            The combination, as returned by {@link #getImages(int)}.
+     */
+    public void uploadSurface(GL3 gl, TextureCombo combo) {
+        if (combo.uploaded) {
+            return;
+        }
+        Texture2DArray layers = getSurfaceLayers(gl);
+        synchronized (combo) {
+            if (!combo.uploaded) {
+                if (combo.surfaceSlot != null) {
+                    uploadRing.upload(gl, combo.surfaceSlot, layers, combo.getSurfaceLayer());
+                } else {
+                    try {
+                        layers.setLayer(gl, combo.getSurfaceLayer(), combo.surfaceMipmaps);
+                    } catch (UninitializedException e) {
+                        logger.error(e.getMessage());
+                    }
+                }
+
+                // Only combinations that are on screen are uploaded, so their
+                // host memory is not counted in the budget, and can go.
+                combo.surfaceSlot = null;
+                combo.surfaceMipmaps = null;
+                combo.uploaded = true;
             }
         }
+    }
 
-        return requested;
+    /**
+     * Hand the upload buffers whose copies have completed back to the threads
+     * delivering the images. Call this once every frame, from the OpenGL
+     * thread.
+     * 
+     * @param gl
+     *            The current OpenGL instance.
+     */
+    public void poll(GL3 gl) {
+        uploadRing.poll(gl);
     }
 
-    public synchronized List<Texture2D> requestNewConfiguration(int screenNumber, SurfaceTextureDescription newDesc) {
-        // Make a list of all the now unused textures, so we can return them to
-        // be removed from the GPU memory.
-        List<Texture2D> oldTextures = new ArrayList<Texture2D>();
+    /**
+     * Remove the surface texture array from the GPU memory. Call from the
+     * OpenGL thread only.
+     * 
+     * @param gl
+     *            The current OpenGL instance.
+     */
+    public void delete(GL3 gl) {
+        uploadRing.delete(gl);
+        if (surfaceLayers.isInitialized()) {
+            try {
+                surfaceLayers.delete(gl);
+            } catch (UninitializedException e) {
+                logger.error(e.getMessage());
+            }
+        }
+    }
 
-        if (screenNumber < 0 || screenNumber > oldScreenA.length - 1) {
+    /**
+     * Check whether the given description is currently requested for any of
+     * the screens. Does not block.
+     */
+    public boolean isRequested(SurfaceTextureDescription desc) {
+        return requestedDescs.contains(desc);
+    }
+
+    public synchronized List<Texture2D> requestNewConfiguration(int screenNumber, SurfaceTextureDescription newDesc) {
+        if (screenNumber < 0 || screenNumber > oldScreenA.length() - 1) {
             logger.error("Configuration request for screen number out of range: " + screenNumber);
         }
 
-        SurfaceTextureDescription oldDesc = newScreenA[screenNumber];
-        oldScreenA[screenNumber] = oldDesc;
-        newScreenA[screenNumber] = newDesc;
+        SurfaceTextureDescription oldDesc = newScreenA.get(screenNumber);
+        oldScreenA.set(screenNumber, oldDesc);
+        newScreenA.set(screenNumber, newDesc);
 
-        // Copy links to all of the actually used textures into a new list.
-        ArrayList<SurfaceTextureDescription> usedDescs = new ArrayList<SurfaceTextureDescription>();
-        for (int i = 0; i < oldScreenA.length; i++) {
-            usedDescs.add(oldScreenA[i]);
-            usedDescs.add(newScreenA[i]);
+        // Collect all of the actually used descriptions.
+        Set<SurfaceTextureDescription> usedDescs = new HashSet<SurfaceTextureDescription>();
+        Set<SurfaceTextureDescription> newRequestedDescs = new HashSet<SurfaceTextureDescription>();
+        for (int i = 0; i < oldScreenA.length(); i++) {
+            if (oldScreenA.get(i) != null) {
+                usedDescs.add(oldScreenA.get(i));
+            }
+            if (newScreenA.get(i) != null) {
+                usedDescs.add(newScreenA.get(i));
+                newRequestedDescs.add(newScreenA.get(i));
+            }
         }
+        requestedDescs = Collections.unmodifiableSet(newRequestedDescs);
 
-        List<TextureCombo> newStorage = new ArrayList<TextureCombo>();
-        for (TextureCombo combo : storage) {
-            if (usedDescs.contains(combo.getDescription())) {
-                newStorage.add(combo);
-            } else {
-                // Add all of the unused ones to the to-be-removed list UNLESS
-                // it's the empty buffers
-                if (combo.getSurfaceTexture() != EMPTY_SURFACE_BUFFER) {
-                    oldTextures.add(combo.getSurfaceTexture());
-                }
+        Iterator<TextureCombo> stored = storage.values().iterator();
+        while (stored.hasNext()) {
+            TextureCombo combo = stored.next();
+            if (!usedDescs.contains(combo.getDescription())) {
+                stored.remove();
+
+                // Keep the unused ones around for a while, they might be
+                // requested again soon.
+                TextureCombo replaced = recentlyUsed.put(combo.getDescription(), combo);
+                cachedHostBytes += getHostBytes(combo);
 
-                if (combo.getLegendTexture() != EMPTY_LEGEND_BUFFER) {
-                    oldTextures.add(combo.getLegendTexture());
+                if (replaced != null) {
+                    evict(replaced);
                 }
             }
         }
 
-        // Overwrite the old list
-        storage = newStorage;
-
         // And start the building of the newly requested images that are not yet
         // available
-        boolean alreadyAvailable = false;
-        for (TextureCombo combo : storage) {
-            if (combo.getDescription() == newDesc) {
+        boolean alreadyAvailable = storage.containsKey(newDesc);
+
+        if (!alreadyAvailable) {
+            TextureCombo cached = recentlyUsed.remove(newDesc);
+            if (cached != null) {
+                cachedHostBytes -= getHostBytes(cached);
+
+                storage.put(newDesc, cached);
                 alreadyAvailable = true;
             }
         }
 
+        // Evict the least recently used combinations until we are within
+        // budget again.
+        Iterator<TextureCombo> eldest = recentlyUsed.values().iterator();
+        while (cachedHostBytes > hostMemoryBudget && eldest.hasNext()) {
+            TextureCombo combo = eldest.next();
+            eldest.remove();
+            evict(combo);
+        }
+
         if (!alreadyAvailable) {
             logger.debug("requesting: " + newDesc.getVarName());
             manager.buildImages(newDesc);
         }
 
-        // stopTimeMillis = System.currentTimeMillis();
-        // logger.debug("Request complete: " + (stopTimeMillis -
-        // startTimeMillis) / 1000.0);
+        // Make a list of all the now unused textures, so we can return them to
+        // be removed from the GPU memory.
+        List<Texture2D> oldTextures = new ArrayList<Texture2D>(unusedTextures);
+        unusedTextures.clear();
 
-        logger.debug("tex storage now holds : " + (storage.size()) + " texture combinations, " + oldTextures.size()
+        logger.debug("tex storage now holds : " + (storage.size()) + " texture combinations, "
+                + recentlyUsed.size() + " cached, " + freeLayers.size() + " layers free, " + oldTextures.size()
                 + " textures will be deleted.");
 
         return oldTextures;
     }
 
-    public synchronized void setImageCombo(SurfaceTextureDescription desc, ByteBuffer surfaceData, ByteBuffer legendData) {
-        boolean failure = true;
-
-        // Only add this surface texture if it is still needed.
-        for (int i = 0; i < newScreenA.length; i++) {
-            if (newScreenA[i] == desc) {
-                failure = false;
-            }
+    public void setImageCombo(SurfaceTextureDescription desc, ByteBuffer surfaceData, ByteBuffer legendData) {
+        // The surface and its mipmaps are written here, on the thread
+        // delivering the image, so the OpenGL thread only needs to start the
+        // copy.
+        TextureUploadRing.Slot slot = uploadRing.acquire();
+        if (slot != null && slot.write(surfaceData)) {
+            addImageCombo(desc, slot, null, legendData);
+        } else {
+            addImageCombo(desc, null,
+                    Texture2DArray.createMipmaps(surfaceData, width, height, surfaceLevels), legendData);
         }
+    }
 
-        if (!failure) {
-            storage.add(new TextureCombo(desc, new ByteBufferTexture(surfaceMultiTexUnit, surfaceData, width, height),
-                    new ByteBufferTexture(legendMultiTexUnit, legendData, LEGEND_TEXTURE_WIDTH, LEGEND_TEXTURE_HEIGHT)));
+    public void setImageCombo(SurfaceTextureDescription desc, int[] surfaceData, ByteBuffer legendData) {
+        TextureUploadRing.Slot slot = uploadRing.acquire();
+        if (slot != null && slot.write(surfaceData)) {
+            addImageCombo(desc, slot, null, legendData);
         } else {
-            logger.error("FAILURE in setImageCombo, " + desc);
+            ByteBuffer surfaceBuffer = Buffers.copyIntBufferAsByteBuffer(IntBuffer.wrap(surfaceData));
+            addImageCombo(desc, null,
+                    Texture2DArray.createMipmaps(surfaceBuffer, width, height, surfaceLevels), legendData);
         }
     }
 
-    public synchronized void setImageCombo(SurfaceTextureDescription desc, int[] surfaceData, ByteBuffer legendData) {
-        boolean failure = true;
+    private synchronized void addImageCombo(SurfaceTextureDescription desc, TextureUploadRing.Slot surfaceSlot,
+            ByteBuffer[] surfaceMipmaps, ByteBuffer legendData) {
+        // Only add this surface texture if it is still needed, and not
+        // already delivered for another screen showing the same thing.
+        if (!requestedDescs.contains(desc)) {
+            logger.error("FAILURE in setImageCombo, " + desc);
+            releaseSlot(surfaceSlot);
+        } else if (storage.containsKey(desc)) {
+            releaseSlot(surfaceSlot);
+        } else {
+            // Recycle the layer of the least recently used combination if
+            // none are free.
+            Iterator<TextureCombo> eldest = recentlyUsed.values().iterator();
+            while (freeLayers.isEmpty() && eldest.hasNext()) {
+                TextureCombo combo = eldest.next();
+                eldest.remove();
+                evict(combo);
+            }
 
-        // Only add this surface texture if it is still needed.
-        for (int i = 0; i < newScreenA.length; i++) {
-            if (newScreenA[i] == desc) {
-                failure = false;
+            if (freeLayers.isEmpty()) {
+                logger.error("No free surface layer for " + desc);
+                releaseSlot(surfaceSlot);
+            } else {
+                // Data comes without a legend, it is colormapped later.
+                Texture2D legendTexture = EMPTY_LEGEND_BUFFER;
+                if (legendData != null) {
+                    legendTexture = new ByteBufferTexture(legendMultiTexUnit, legendData, LEGEND_TEXTURE_WIDTH,
+                            LEGEND_TEXTURE_HEIGHT);
+                }
+                storage.put(desc, new TextureCombo(desc, freeLayers.poll(), surfaceSlot, surfaceMipmaps,
+                        legendTexture));
             }
         }
+    }
 
-        if (!failure) {
-            storage.add(new TextureCombo(desc, new IntArrayTexture(surfaceMultiTexUnit, surfaceData, width, height),
-                    new ByteBufferTexture(legendMultiTexUnit, legendData, LEGEND_TEXTURE_WIDTH, LEGEND_TEXTURE_HEIGHT)));
-        } else {
-            logger.error("FAILURE in setImageCombo, " + desc);
+    /**
+     * Check whether the images for all screens have arrived. Does not block.
+     */
+    public boolean doneWithLastRequest() {
+        for (int i = 0; i < newScreenA.length(); i++) {
+            SurfaceTextureDescription desc = newScreenA.get(i);
+            if (desc == null || !storage.containsKey(desc)) {
+                return false;
+            }
         }
+
+        return true;
     }
 
-    public synchronized boolean doneWithLastRequest() {
-        boolean done = true;
+    /**
+     * Drop a cached combination: its layer is handed out again, and its
+     * legend texture is added to the to-be-removed list UNLESS it's the empty
+     * buffer. A surface that was not uploaded yet is dropped as well, so the
+     * OpenGL thread does not copy it into a layer that is in use again.
+     */
+    private void evict(TextureCombo combo) {
+        synchronized (combo) {
+            cachedHostBytes -= getHostBytes(combo);
+            releaseSlot(combo.surfaceSlot);
+            combo.surfaceSlot = null;
+            combo.surfaceMipmaps = null;
+            combo.uploaded = true;
+        }
+        freeLayers.add(combo.getSurfaceLayer());
 
-        for (SurfaceTextureDescription desc : newScreenA) {
-            boolean found = false;
-            for (TextureCombo combo : storage) {
-                if (combo.getDescription() == desc) {
-                    found = true;
+        if (combo.getLegendTexture() != EMPTY_LEGEND_BUFFER) {
+            unusedTextures.add(combo.getLegendTexture());
+        }
+    }
+
+    private void releaseSlot(TextureUploadRing.Slot slot) {
+        if (slot != null) {
+            uploadRing.release(slot);
+        }
+    }
+
+    private static long getHostBytes(TextureCombo combo) {
+        long bytes = 0;
+        synchronized (combo) {
+            if (combo.surfaceMipmaps != null) {
+                for (ByteBuffer mipmap : combo.surfaceMipmaps) {
+                    bytes += mipmap.capacity();
                 }
             }
-            if (found == false) {
-                done = false;
-            }
         }
-
-        return done;
+        return bytes;
     }
 }
@@ -0,0 +1,604 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.esciencecenter.visualization.ewatercycle.DatasetFingerprint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pyramid of ever coarser versions of the grids of a dataset, every level
+ * half the width and height of the one before, so that grids too large for a
+ * texture can still be shown. The first level small enough to fit is the base
+ * level, and images of the whole grid are made from it. Where the view is
+ * zoomed in, an image of the same size shows a window of a finer level
+ * instead, one that covers the visible part of the globe.
+ *
+ * The coarser levels of a variable and timestep are built the first time a
+ * window of one of them is asked for, by averaging blocks of 2x2 values that
+ * are not missing. They are written to a file in square tiles, so that a
+ * window only reads the tiles it overlaps. The finest level is read from the
+ * dataset itself. Like the {@link TextureDiskCache}, the files are kept in
+ * least recently used order, the oldest are removed once the total exceeds the
+ * byte budget.
+ */
+public class GridPyramid {
+    private final static Logger logger = LoggerFactory.getLogger(GridPyramid.class);
+
+    private static final int MAGIC = 0x45575059; // "EWPY"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * 4;
+    private static final String EXTENSION = ".pyr";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * Temporary files older than this were left by a session that ended while
+     * building, younger ones may still be written by another process sharing
+     * the directory, such as the renderers of a movie farm.
+     */
+    private static final long STALE_TEMP_AGE = 60 * 60 * 1000;
+
+    /** The width and height of the tiles in the files, in values. */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Windows move in steps of this fraction of their size, so that turning
+     * the globe a little keeps showing the same window.
+     */
+    private static final int WINDOW_STEPS = 4;
+
+    private final File directory;
+    private final long byteBudget;
+    private final int width, height;
+    private final int baseLevel;
+
+    /** Guards the building of every file, so it is only built once. */
+    private final ConcurrentHashMap<String, Object> buildLocks = new ConcurrentHashMap<String, Object>();
+
+    /** File names mapped to their size on disk, in least recently used order. */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * @param directory
+     *            The directory to keep the files in.
+     * @param byteBudget
+     *            The number of bytes the files may take up in total.
+     * @param width
+     *            The width of the grids.
+     * @param height
+     *            The height of the grids.
+     * @param maxTextureSize
+     *            The largest width or height of the images.
+     */
+    public GridPyramid(File directory, long byteBudget, int width, int height, int maxTextureSize) {
+        this.directory = directory;
+        this.byteBudget = byteBudget;
+        this.width = width;
+        this.height = height;
+
+        int level = 0;
+        while (getLevelSize(width, level) > maxTextureSize || getLevelSize(height, level) > maxTextureSize) {
+            level++;
+        }
+        baseLevel = level;
+
+        if (baseLevel > 0) {
+            directory.mkdirs();
+            rebuildIndex();
+            logger.info("Grids of " + width + "x" + height + " are shown at " + getWindowWidth() + "x"
+                    + getWindowHeight() + ", with finer windows when zoomed in.");
+        }
+    }
+
+    /**
+     * @return The width or height of a grid at the given level.
+     */
+    public static int getLevelSize(int size, int level) {
+        return (size + (1 << level) - 1) >> level;
+    }
+
+    public int getBaseLevel() {
+        return baseLevel;
+    }
+
+    public int getLevelWidth(int level) {
+        return getLevelSize(width, level);
+    }
+
+    public int getLevelHeight(int level) {
+        return getLevelSize(height, level);
+    }
+
+    /**
+     * @return The width of the images, the base level or a window of a finer
+     *         level.
+     */
+    public int getWindowWidth() {
+        return getLevelWidth(baseLevel);
+    }
+
+    /**
+     * @return The height of the images, the base level or a window of a finer
+     *         level.
+     */
+    public int getWindowHeight() {
+        return getLevelHeight(baseLevel);
+    }
+
+    /**
+     * Picks the finest level with a window that covers the visible part of the
+     * globe.
+     *
+     * @param u
+     *            The column of the center of the view, as a fraction of the
+     *            width of the grid.
+     * @param v
+     *            The row of the center of the view, as a fraction of the height
+     *            of the grid, from the north pole.
+     * @param radius
+     *            The angle between the center of the view and its edge, as
+     *            seen from the center of the globe, in radians.
+     * @return The level, first column and first row of the window, see
+     *         {@link SurfaceTextureDescription#withRegion(int, int, int)}.
+     */
+    public int[] selectRegion(float u, float v, float radius) {
+        int level = baseLevel;
+        while (level > 0 && covers(level - 1, v, radius)) {
+            level--;
+        }
+        if (level == baseLevel) {
+            return new int[] { SurfaceTextureDescription.WHOLE_GRID, 0, 0 };
+        }
+
+        int levelWidth = getLevelWidth(level);
+        int levelHeight = getLevelHeight(level);
+        int stepX = Math.max(1, getWindowWidth() / WINDOW_STEPS);
+        int stepY = Math.max(1, getWindowHeight() / WINDOW_STEPS);
+
+        int column = Math.round((u * levelWidth - getWindowWidth() / 2f) / stepX) * stepX;
+        column = ((column % levelWidth) + levelWidth) % levelWidth;
+        int row = Math.round((v * levelHeight - getWindowHeight() / 2f) / stepY) * stepY;
+        row = Math.max(0, Math.min(row, levelHeight - getWindowHeight()));
+
+        return new int[] { level, column, row };
+    }
+
+    private boolean covers(int level, float v, float radius) {
+        // Snapping moves the window by up to half a step, which leaves this
+        // much of it around the visible part.
+        float usable = 1f - 1f / WINDOW_STEPS;
+
+        float latitude = (float) ((0.5 - v) * Math.PI);
+        if (Math.abs(latitude) + radius >= Math.PI / 2) {
+            // A pole is in view, so are all longitudes.
+            return false;
+        }
+        double halfLongitudes = Math.asin(Math.min(1.0, Math.sin(radius) / Math.cos(latitude)));
+
+        double widthNeeded = halfLongitudes / Math.PI;
+        double heightNeeded = 2 * radius / Math.PI;
+
+        return widthNeeded <= usable * getWindowWidth() / getLevelWidth(level)
+                && heightNeeded <= usable * getWindowHeight() / getLevelHeight(level);
+    }
+
+    /**
+     * The part of the texture coordinates of the globe covered by an image.
+     * The images are mirrored horizontally, like the grids are when they are
+     * colormapped.
+     *
+     * @param desc
+     *            The description of the image.
+     * @return The first coordinates and the size of the part, in that order.
+     */
+    public float[] getTextureRegion(SurfaceTextureDescription desc) {
+        int level = desc.getLevel();
+        if (level == SurfaceTextureDescription.WHOLE_GRID) {
+            return new float[] { 0f, 0f, 1f, 1f };
+        }
+
+        int levelWidth = getLevelWidth(level);
+        int levelHeight = getLevelHeight(level);
+        int mirroredColumn = (((levelWidth - desc.getColumn() - getWindowWidth()) % levelWidth) + levelWidth)
+                % levelWidth;
+
+        return new float[] { mirroredColumn / (float) levelWidth, desc.getRow() / (float) levelHeight,
+                getWindowWidth() / (float) levelWidth, getWindowHeight() / (float) levelHeight };
+    }
+
+    /**
+     * Reads the window of the grid an image shows, building the coarser levels
+     * of its variable and timestep if that has not been done yet.
+     *
+     * @param reader
+     *            The reader of the file the variable is in.
+     * @param desc
+     *            The description of the image.
+     * @return The values in the window, row by row, or null if they could not
+     *         be read.
+     */
+    public float[] readWindow(NetCDFReader reader, SurfaceTextureDescription desc) {
+        String variableName = desc.getVarName();
+        int frameNumber = desc.getFrameNumber();
+        // Variables without depth levels look the same at every depth.
+        int depth = Math.min(desc.getDepth(), reader.getLevels(variableName) - 1);
+
+        int level = desc.getLevel();
+        int column = desc.getColumn();
+        int row = desc.getRow();
+        if (level == SurfaceTextureDescription.WHOLE_GRID) {
+            level = baseLevel;
+            column = 0;
+            row = 0;
+        }
+
+        if (level == 0) {
+            FloatBuffer data = reader.getDataBuffer(variableName, frameNumber, depth);
+            if (data == null) {
+                return null;
+            }
+            return copyWindow(data, column, row);
+        }
+
+        File file = new File(directory, getFileName(reader.getFingerprint(), variableName, frameNumber, depth));
+        String fileName = file.getName();
+        try {
+            synchronized (getBuildLock(fileName)) {
+                if (!touch(file)) {
+                    build(reader, variableName, frameNumber, depth, file);
+                    add(fileName, file.length());
+                }
+            }
+            return readTiles(file, level, column, row);
+        } catch (IOException e) {
+            logger.error("Unable to read the grid pyramid of " + variableName + " at " + frameNumber + ", depth "
+                    + depth, e);
+            remove(fileName);
+            return null;
+        }
+    }
+
+    private float[] copyWindow(FloatBuffer data, int column, int row) {
+        int windowWidth = getWindowWidth();
+        int windowHeight = getWindowHeight();
+        float[] window = new float[windowWidth * windowHeight];
+
+        int offset = data.position();
+        for (int y = 0; y < windowHeight; y++) {
+            int source = offset + (row + y) * width;
+            for (int x = 0; x < windowWidth; x++) {
+                window[y * windowWidth + x] = data.get(source + (column + x) % width);
+            }
+        }
+        return window;
+    }
+
+    private float[] readTiles(File file, int level, int column, int row) throws IOException {
+        int levelWidth = getLevelWidth(level);
+        int tilesX = (levelWidth + TILE_SIZE - 1) / TILE_SIZE;
+        int windowWidth = getWindowWidth();
+        int windowHeight = getWindowHeight();
+        float[] window = new float[windowWidth * windowHeight];
+
+        ByteBuffer tileBytes = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer tile = tileBytes.asFloatBuffer();
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != width
+                    || header.getInt() != height || header.getInt() != baseLevel) {
+                throw new IOException("Stale grid pyramid " + file);
+            }
+
+            long levelOffset = getLevelOffset(level);
+
+            int firstTileY = row / TILE_SIZE;
+            int lastTileY = (row + windowHeight - 1) / TILE_SIZE;
+            for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+                int fromY = Math.max(row, tileY * TILE_SIZE);
+                int toY = Math.min(row + windowHeight, (tileY + 1) * TILE_SIZE);
+
+                // Walk along the window in runs of columns that lie in the same
+                // tile, wrapping around the date line.
+                int x = 0;
+                while (x < windowWidth) {
+                    int levelX = (column + x) % levelWidth;
+                    int tileX = levelX / TILE_SIZE;
+                    int run = Math.min(Math.min(TILE_SIZE - levelX % TILE_SIZE, levelWidth - levelX), windowWidth - x);
+
+                    tileBytes.clear();
+                    long position = levelOffset + ((long) tileY * tilesX + tileX) * tileBytes.capacity();
+                    while (tileBytes.hasRemaining()) {
+                        if (channel.read(tileBytes, position + tileBytes.position()) < 0) {
+                            throw new IOException("Unexpected end of " + file);
+                        }
+                    }
+
+                    for (int levelY = fromY; levelY < toY; levelY++) {
+                        tile.position((levelY % TILE_SIZE) * TILE_SIZE + levelX % TILE_SIZE);
+                        tile.get(window, (levelY - row) * windowWidth + x, run);
+                    }
+                    x += run;
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        return window;
+    }
+
+    private void build(NetCDFReader reader, String variableName, int frameNumber, int depth, File file)
+            throws IOException {
+        // Read once, the caller retries the whole window without holding the
+        // build lock in between.
+        FloatBuffer data = reader.getDataBuffer(variableName, frameNumber, depth);
+        if (data == null) {
+            throw new IOException("Unable to read " + variableName + " at " + frameNumber + ", depth " + depth);
+        }
+        float fillValue = reader.getFillValue(variableName);
+
+        logger.debug("Building the grid pyramid of " + variableName + " at " + frameNumber + ", depth " + depth);
+
+        Path temp = Files.createTempFile(directory.toPath(), file.getName(), TEMP_EXTENSION);
+        try {
+            FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(baseLevel);
+                header.flip();
+                writeFully(channel, header);
+
+                for (int level = 1; level <= baseLevel; level++) {
+                    data = FloatBuffer.wrap(downsample(data, getLevelWidth(level - 1), getLevelHeight(level - 1),
+                            fillValue));
+                    writeTiles(channel, data, getLevelWidth(level), getLevelHeight(level), fillValue);
+                }
+            } finally {
+                channel.close();
+            }
+
+            try {
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeTiles(FileChannel channel, FloatBuffer data, int levelWidth, int levelHeight,
+            float fillValue) throws IOException {
+        int tilesX = (levelWidth + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (levelHeight + TILE_SIZE - 1) / TILE_SIZE;
+
+        ByteBuffer tileBytes = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer tile = tileBytes.asFloatBuffer();
+
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                // Tiles along the edges are padded with missing values.
+                for (int y = 0; y < TILE_SIZE; y++) {
+                    int levelY = tileY * TILE_SIZE + y;
+                    for (int x = 0; x < TILE_SIZE; x++) {
+                        int levelX = tileX * TILE_SIZE + x;
+                        float value = fillValue;
+                        if (levelX < levelWidth && levelY < levelHeight) {
+                            value = data.get(levelY * levelWidth + levelX);
+                        }
+                        tile.put(y * TILE_SIZE + x, value);
+                    }
+                }
+                tileBytes.clear();
+                writeFully(channel, tileBytes);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Halves a grid, every value the average of the values that are not
+     * missing in a block of 2x2, or missing if all of them are.
+     *
+     * @param data
+     *            The grid, row by row.
+     * @param width
+     *            The width of the grid.
+     * @param height
+     *            The height of the grid.
+     * @param fillValue
+     *            The value of missing data.
+     * @return The halved grid.
+     */
+    private static float[] downsample(FloatBuffer data, int width, int height, float fillValue) {
+        int targetWidth = getLevelSize(width, 1);
+        int targetHeight = getLevelSize(height, 1);
+        float[] target = new float[targetWidth * targetHeight];
+
+        int[] block = new int[4];
+        int offset = data.position();
+        for (int y = 0; y < targetHeight; y++) {
+            int y0 = offset + 2 * y * width;
+            int y1 = offset + Math.min(2 * y + 1, height - 1) * width;
+            for (int x = 0; x < targetWidth; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(2 * x + 1, width - 1);
+                block[0] = y0 + x0;
+                block[1] = y0 + x1;
+                block[2] = y1 + x0;
+                block[3] = y1 + x1;
+
+                float sum = 0f;
+                int count = 0;
+                for (int index : block) {
+                    float value = data.get(index);
+                    if (value != fillValue && !Float.isNaN(value)) {
+                        sum += value;
+                        count++;
+                    }
+                }
+                target[y * targetWidth + x] = count > 0 ? sum / count : fillValue;
+            }
+        }
+        return target;
+    }
+
+    private long getLevelOffset(int level) {
+        long offset = HEADER_BYTES;
+        for (int coarser = 1; coarser < level; coarser++) {
+            long tilesX = (getLevelWidth(coarser) + TILE_SIZE - 1) / TILE_SIZE;
+            long tilesY = (getLevelHeight(coarser) + TILE_SIZE - 1) / TILE_SIZE;
+            offset += tilesX * tilesY * TILE_SIZE * TILE_SIZE * 4;
+        }
+        return offset;
+    }
+
+    /**
+     * Mark a file as used, if it is in the index.
+     *
+     * @return Whether the file is in the index.
+     */
+    private boolean touch(File file) {
+        synchronized (index) {
+            // A get, unlike containsKey, counts as an access, and moves the
+            // file to the most recently used end.
+            if (index.get(file.getName()) == null) {
+                return false;
+            }
+        }
+        // The index of a next session is ordered by modification time, so
+        // record the use there as well.
+        file.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    private void add(String fileName, long size) {
+        synchronized (index) {
+            index.put(fileName, size);
+            totalBytes += size;
+
+            Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+            while (totalBytes > byteBudget && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().compareTo(fileName) == 0) {
+                    continue;
+                }
+                totalBytes -= entry.getValue();
+                eldest.remove();
+                new File(directory, entry.getKey()).delete();
+            }
+        }
+    }
+
+    private void remove(String fileName) {
+        synchronized (index) {
+            Long size = index.remove(fileName);
+            if (size != null) {
+                totalBytes -= size;
+            }
+            new File(directory, fileName).delete();
+        }
+    }
+
+    /**
+     * Pick up the files left by earlier sessions, oldest first, so they will
+     * be evicted first as well, and remove the temporary files of builds that
+     * never finished.
+     */
+    private void rebuildIndex() {
+        final long staleBefore = System.currentTimeMillis() - STALE_TEMP_AGE;
+        File[] stale = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(TEMP_EXTENSION) && file.lastModified() < staleBefore;
+            }
+        });
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(EXTENSION);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            add(file.getName(), file.length());
+        }
+
+        logger.debug("Grid pyramid cache holds " + index.size() + " files, " + totalBytes + " bytes.");
+    }
+
+    private Object getBuildLock(String fileName) {
+        Object lock = new Object();
+        Object existing = buildLocks.putIfAbsent(fileName, lock);
+        return existing != null ? existing : lock;
+    }
+
+    private String getFileName(DatasetFingerprint dataset, String variableName, int frameNumber, int depth) {
+        String key = dataset.getPath() + "|" + dataset.getSize() + "|" + dataset.getLastModified() + "|"
+                + variableName + "|" + frameNumber + "|" + depth + "|" + width + "x" + height + "|" + baseLevel
+                + "|" + TILE_SIZE;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(Charset.forName("UTF-8")));
+
+            StringBuilder result = new StringBuilder();
+            for (byte b : hash) {
+                result.append(String.format("%02x", b));
+            }
+            return result.append(EXTENSION).toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader for the float variables of a classic (CDF-1) or 64-bit offset (CDF-2)
+ * NetCDF file, that hands out read-only views on a memory-mapped copy of the
+ * file instead of decoding the data through netcdf-java. Only the header is
+ * parsed, the data itself is paged in by the operating system on access.
+ * Reads are lock-free and may be done from any number of threads.
+ *
+ * NetCDF-4 (HDF5) files and non-float variables are not supported, {@link #open(File)}
+ * returns null for files it can not handle and {@link #supports(String)}
+ * returns false for variables it can not handle, so the caller can fall back
+ * to netcdf-java.
+ */
+public class MappedNetCDFSliceReader {
+    private final static Logger logger = LoggerFactory.getLogger(MappedNetCDFSliceReader.class);
+
+    private static final int NC_DIMENSION = 0x0A;
+    private static final int NC_VARIABLE = 0x0B;
+    private static final int NC_ATTRIBUTE = 0x0C;
+
+    private static final int NC_BYTE = 1;
+    private static final int NC_CHAR = 2;
+    private static final int NC_SHORT = 3;
+    private static final int NC_INT = 4;
+    private static final int NC_FLOAT = 5;
+    private static final int NC_DOUBLE = 6;
+
+    private static final int STREAMING = -1;
+
+    /** Nominal size of a single mapped segment of the file. */
+    private static final long SEGMENT_SIZE = 1L << 30;
+    /**
+     * Size of the largest slice that can be mapped, a segment and the overlap
+     * with the next one must fit in a single buffer.
+     */
+    private static final long MAX_SLICE_BYTES = Integer.MAX_VALUE - SEGMENT_SIZE;
+
+    private class MappedVariable {
+        private final long begin;
+        private final long stride;
+        private final long sliceFloats;
+        private final int levels;
+        private final boolean record;
+
+        public MappedVariable(long begin, long stride, long sliceFloats, int levels, boolean record) {
+            this.begin = begin;
+            this.stride = stride;
+            this.sliceFloats = sliceFloats;
+            this.levels = levels;
+            this.record = record;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final HashMap<String, MappedVariable> variables;
+    private final int records;
+
+    private final long segmentOverlap;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Opens the given file if it is a classic or 64-bit offset NetCDF file.
+     *
+     * @param file
+     *            The file to map.
+     * @return A reader for the file, or null if the file is not in a format
+     *         this class can map.
+     */
+    public static MappedNetCDFSliceReader open(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] magic = new byte[4];
+                raf.readFully(magic);
+                if (magic[0] != 'C' || magic[1] != 'D' || magic[2] != 'F' || (magic[3] != 1 && magic[3] != 2)) {
+                    raf.close();
+                    return null;
+                }
+                return new MappedNetCDFSliceReader(raf, magic[3] == 2);
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            // A truncated or otherwise unexpected header shows as a runtime
+            // exception while parsing it.
+            logger.debug("Unable to memory-map " + file.getAbsolutePath() + ", falling back on netcdf-java.", e);
+            return null;
+        }
+    }
+
+    private MappedNetCDFSliceReader(RandomAccessFile raf, boolean largeOffsets) throws IOException {
+        this.channel = raf.getChannel();
+        this.fileSize = channel.size();
+        this.variables = new HashMap<String, MappedVariable>();
+
+        // The header is small compared to the data, read it in one go.
+        ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, Math.min(fileSize, 1L << 24));
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.position(4);
+
+        int numRecs = header.getInt();
+
+        // Dimensions, the record dimension has length 0.
+        List<String> dimensionNames = new ArrayList<String>();
+        List<Integer> dimensionLengths = new ArrayList<Integer>();
+        int recordDimension = -1;
+        int tag = header.getInt();
+        int count = header.getInt();
+        if (tag == NC_DIMENSION) {
+            for (int i = 0; i < count; i++) {
+                dimensionNames.add(readName(header));
+                int length = header.getInt();
+                if (length == 0) {
+                    recordDimension = i;
+                }
+                dimensionLengths.add(length);
+            }
+        }
+
+        skipAttributes(header);
+
+        // Variables, the record variables are interleaved per record.
+        List<String> names = new ArrayList<String>();
+        List<int[]> varDimensions = new ArrayList<int[]>();
+        List<Integer> types = new ArrayList<Integer>();
+        List<Long> vsizes = new ArrayList<Long>();
+        List<Long> begins = new ArrayList<Long>();
+
+        tag = header.getInt();
+        count = header.getInt();
+        if (tag == NC_VARIABLE) {
+            for (int i = 0; i < count; i++) {
+                names.add(readName(header));
+
+                int[] dimIds = new int[header.getInt()];
+                for (int d = 0; d < dimIds.length; d++) {
+                    dimIds[d] = header.getInt();
+                }
+                varDimensions.add(dimIds);
+
+                skipAttributes(header);
+
+                types.add(header.getInt());
+                vsizes.add(header.getInt() & 0xFFFFFFFFL);
+                begins.add(largeOffsets ? header.getLong() : header.getInt() & 0xFFFFFFFFL);
+            }
+        }
+
+        long recordSize = 0;
+        int recordVariables = 0;
+        for (int i = 0; i < names.size(); i++) {
+            int[] dimIds = varDimensions.get(i);
+            if (dimIds.length > 0 && dimIds[0] == recordDimension) {
+                recordSize += vsizes.get(i);
+                recordVariables++;
+            }
+        }
+
+        long maxSliceBytes = 0;
+        for (int i = 0; i < names.size(); i++) {
+            int[] dimIds = varDimensions.get(i);
+            if (types.get(i) != NC_FLOAT || dimIds.length < 2) {
+                continue;
+            }
+            // Slices are taken along time, a grid such as a land mask has no
+            // timesteps.
+            if (dimIds[0] != recordDimension && dimensionNames.get(dimIds[0]).compareTo("time") != 0) {
+                continue;
+            }
+
+            long sliceFloats = 1;
+            for (int d = 1; d < dimIds.length; d++) {
+                sliceFloats *= dimensionLengths.get(dimIds[d]);
+            }
+            // (time, level, lat, lon), the levels of a timestep are stored
+            // one after the other.
+            int levels = dimIds.length >= 4 ? dimensionLengths.get(dimIds[1]) : 1;
+            long sliceBytes = sliceFloats * 4L;
+            if (sliceBytes > MAX_SLICE_BYTES) {
+                // Left to netcdf-java.
+                continue;
+            }
+
+            boolean record = dimIds[0] == recordDimension;
+            long stride;
+            if (record) {
+                // A lone record variable is not padded to a 4-byte boundary,
+                // for floats that makes no difference.
+                stride = recordVariables == 1 ? sliceBytes : recordSize;
+            } else {
+                stride = sliceBytes;
+            }
+
+            variables.put(names.get(i), new MappedVariable(begins.get(i), stride, sliceFloats, levels, record));
+            maxSliceBytes = Math.max(maxSliceBytes, sliceBytes);
+        }
+
+        if (numRecs == STREAMING) {
+            // The writer did not finish, derive the number of complete records.
+            long firstRecord = Long.MAX_VALUE;
+            for (MappedVariable v : variables.values()) {
+                if (v.record) {
+                    firstRecord = Math.min(firstRecord, v.begin);
+                }
+            }
+            numRecs = (recordSize == 0 || firstRecord == Long.MAX_VALUE) ? 0
+                    : (int) ((fileSize - firstRecord) / recordSize);
+        }
+        this.records = numRecs;
+
+        // Consecutive segments overlap by the largest slice, so every slice
+        // lies completely within a single segment.
+        this.segmentOverlap = maxSliceBytes;
+        this.segments = new MappedByteBuffer[(int) (fileSize / SEGMENT_SIZE) + 1];
+    }
+
+    /**
+     * Check whether a variable can be read through this reader.
+     *
+     * @param variableName
+     *            The name of the variable.
+     * @return true if the variable is a float variable along time, with
+     *         slices small enough to be mapped.
+     */
+    public boolean supports(String variableName) {
+        return variables.containsKey(variableName);
+    }
+
+    /**
+     * The number of levels of a variable.
+     *
+     * @param variableName
+     *            The name of the variable.
+     * @return The length of the second dimension of a variable with four
+     *         dimensions, 1 for others.
+     */
+    public int getLevels(String variableName) {
+        MappedVariable variable = variables.get(variableName);
+        return variable == null ? 1 : variable.levels;
+    }
+
+    /**
+     * Get a read-only view of a single timestep of a variable, all of its
+     * levels included. The buffer is big-endian, as stored in the file, and
+     * is backed directly by the mapped file.
+     *
+     * @param variableName
+     *            The name of the variable.
+     * @param time
+     *            The index along the first (time) dimension.
+     * @return The view of the data, or null if the variable or timestep is not
+     *         available.
+     * @throws IOException
+     *             If the file could not be mapped.
+     */
+    public FloatBuffer getSlice(String variableName, int time) throws IOException {
+        MappedVariable variable = variables.get(variableName);
+        if (variable == null || time < 0 || (variable.record && time >= records)) {
+            return null;
+        }
+
+        return getView(variable.begin + time * variable.stride, variable.sliceFloats * 4L);
+    }
+
+    /**
+     * Get a read-only view of a single level of a timestep of a variable, see
+     * {@link #getSlice(String, int)}.
+     *
+     * @param variableName
+     *            The name of the variable.
+     * @param time
+     *            The index along the first (time) dimension.
+     * @param level
+     *            The index along the second (level) dimension, ignored for
+     *            variables without levels.
+     * @return The view of the data, or null if the variable, timestep or
+     *         level is not available.
+     * @throws IOException
+     *             If the file could not be mapped.
+     */
+    public FloatBuffer getSlice(String variableName, int time, int level) throws IOException {
+        MappedVariable variable = variables.get(variableName);
+        if (variable == null || variable.levels == 1) {
+            return getSlice(variableName, time);
+        }
+        if (time < 0 || (variable.record && time >= records) || level < 0 || level >= variable.levels) {
+            return null;
+        }
+
+        long levelBytes = variable.sliceFloats / variable.levels * 4L;
+        return getView(variable.begin + time * variable.stride + level * levelBytes, levelBytes);
+    }
+
+    private FloatBuffer getView(long start, long length) throws IOException {
+        if (start + length > fileSize) {
+            return null;
+        }
+
+        int segmentIndex = (int) (start / SEGMENT_SIZE);
+        ByteBuffer view = getSegment(segmentIndex).duplicate();
+        int offset = (int) (start - segmentIndex * SEGMENT_SIZE);
+        view.position(offset);
+        view.limit((int) (offset + length));
+
+        return view.slice().order(ByteOrder.BIG_ENDIAN).asFloatBuffer().asReadOnlyBuffer();
+    }
+
+    private MappedByteBuffer getSegment(int index) throws IOException {
+        synchronized (segments) {
+            if (segments[index] == null) {
+                long position = index * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE + segmentOverlap, fileSize - position);
+                segments[index] = channel.map(MapMode.READ_ONLY, position, size);
+            }
+            return segments[index];
+        }
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("trying to close mapped file", e);
+        }
+    }
+
+    private static String readName(ByteBuffer header) {
+        int length = header.getInt();
+        byte[] name = new byte[length];
+        header.get(name);
+        skipPadding(header, length);
+        return new String(name, Charset.forName("UTF-8"));
+    }
+
+    private static void skipAttributes(ByteBuffer header) {
+        int tag = header.getInt();
+        int count = header.getInt();
+        if (tag != NC_ATTRIBUTE) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            readName(header);
+            int type = header.getInt();
+            int values = header.getInt();
+            int bytes = values * sizeOf(type);
+            header.position(header.position() + bytes);
+            skipPadding(header, bytes);
+        }
+    }
+
+    private static void skipPadding(ByteBuffer header, int length) {
+        int remainder = length % 4;
+        if (remainder != 0) {
+            header.position(header.position() + 4 - remainder);
+        }
+    }
+
+    private static int sizeOf(int type) {
+        switch (type) {
+        case NC_BYTE:
+        case NC_CHAR:
+            return 1;
+        case NC_SHORT:
+            return 2;
+        case NC_INT:
+        case NC_FLOAT:
+            return 4;
+        case NC_DOUBLE:
+            return 8;
+        default:
+            throw new IllegalArgumentException("Unknown NetCDF type " + type);
+        }
+    }
+}
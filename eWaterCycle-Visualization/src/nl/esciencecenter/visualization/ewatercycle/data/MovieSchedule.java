@@ -0,0 +1,173 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+import nl.esciencecenter.neon.math.Float3Vector;
+import nl.esciencecenter.neon.math.Float4Vector;
+import nl.esciencecenter.neon.math.FloatVectorMath;
+
+/**
+ * The camera position of every image of a movie, interpolated between key
+ * frames. The images are numbered like the screenshots of the movie mode, the
+ * image for shot <code>s</code> of the timestep with frame number
+ * <code>f</code> has movie frame number <code>f * shotsPerStep + s</code>.
+ * Because the whole schedule is known up front, any range of images can be
+ * rendered independently of the others.
+ */
+public class MovieSchedule {
+    public static class Orientation {
+        private final int frameNumber;
+        private final Float3Vector rotation;
+        private final float viewDist;
+
+        public Orientation(int frameNumber, Float3Vector rotation, float viewDist) {
+            this.frameNumber = frameNumber;
+            this.rotation = rotation;
+            this.viewDist = viewDist;
+        }
+
+        public int getFrameNumber() {
+            return frameNumber;
+        }
+
+        public Float3Vector getRotation() {
+            return rotation;
+        }
+
+        public float getViewDist() {
+            return viewDist;
+        }
+
+        @Override
+        public String toString() {
+            return "#: " + frameNumber + " " + rotation + " " + viewDist;
+        }
+    }
+
+    private final int shotsPerStep;
+    private final TreeMap<Integer, Orientation> orientationMap;
+
+    /**
+     * Interpolates the camera between every pair of consecutive key frames.
+     * The shots of the timestep of the last key frame keep its orientation.
+     *
+     * @param keyFrames
+     *            The key frames, their frame numbers are those of timesteps.
+     * @param frameNumbers
+     *            The frame numbers of all timesteps in the dataset, in order.
+     * @param shotsPerStep
+     *            The number of images for every timestep.
+     */
+    public MovieSchedule(List<Orientation> keyFrames, List<Integer> frameNumbers, int shotsPerStep) {
+        this.shotsPerStep = shotsPerStep;
+        this.orientationMap = new TreeMap<Integer, Orientation>();
+
+        ArrayList<Orientation> sortedKeyFrames = new ArrayList<Orientation>(keyFrames);
+        Collections.sort(sortedKeyFrames, new Comparator<Orientation>() {
+            @Override
+            public int compare(Orientation o1, Orientation o2) {
+                return Integer.compare(o1.getFrameNumber(), o2.getFrameNumber());
+            }
+        });
+
+        for (int i = 0; i < sortedKeyFrames.size() - 1; i++) {
+            Orientation currentKeyFrame = sortedKeyFrames.get(i);
+            Orientation nextKeyFrame = sortedKeyFrames.get(i + 1);
+
+            ArrayList<Integer> movieFrameNumbers = new ArrayList<Integer>();
+            for (int frameNumber : frameNumbers) {
+                if (frameNumber >= currentKeyFrame.getFrameNumber() && frameNumber < nextKeyFrame.getFrameNumber()) {
+                    for (int shot = 0; shot < shotsPerStep; shot++) {
+                        movieFrameNumbers.add(frameNumber * shotsPerStep + shot);
+                    }
+                }
+            }
+            int numberOfInterpolationFrames = movieFrameNumbers.size();
+
+            Float3Vector startLocation = new Float3Vector(currentKeyFrame.getRotation().getX() % 360f,
+                    currentKeyFrame.getRotation().getY() % 360f, 0f);
+            Float3Vector endLocation = new Float3Vector(nextKeyFrame.getRotation().getX() % 360f, nextKeyFrame
+                    .getRotation().getY() % 360f, 0f);
+
+            Float3Vector still = new Float3Vector();
+
+            Float3Vector[] curveSteps = TimedPlayer.degreesBezierCurve(numberOfInterpolationFrames, startLocation,
+                    endLocation);
+
+            // Patch for zoom
+            Float4Vector startZoom = new Float4Vector(currentKeyFrame.getViewDist(), 0f, 0f, 1f);
+            Float4Vector endZoom = new Float4Vector(nextKeyFrame.getViewDist(), 0f, 0f, 1f);
+
+            Float4Vector[] zoomSteps = FloatVectorMath.bezierCurve(numberOfInterpolationFrames, startZoom, still,
+                    still, endZoom);
+
+            for (int j = 0; j < numberOfInterpolationFrames; j++) {
+                int movieFrameNumber = movieFrameNumbers.get(j);
+                orientationMap.put(movieFrameNumber, new Orientation(movieFrameNumber, curveSteps[j],
+                        zoomSteps[j].getX()));
+            }
+        }
+
+        if (!sortedKeyFrames.isEmpty()) {
+            Orientation lastKeyFrame = sortedKeyFrames.get(sortedKeyFrames.size() - 1);
+            if (frameNumbers.contains(lastKeyFrame.getFrameNumber())) {
+                for (int shot = 0; shot < shotsPerStep; shot++) {
+                    int movieFrameNumber = lastKeyFrame.getFrameNumber() * shotsPerStep + shot;
+                    orientationMap.put(movieFrameNumber, new Orientation(movieFrameNumber, new Float3Vector(
+                            lastKeyFrame.getRotation().getX() % 360f, lastKeyFrame.getRotation().getY() % 360f, 0f),
+                            lastKeyFrame.getViewDist()));
+                }
+            }
+        }
+    }
+
+    public int getShotsPerStep() {
+        return shotsPerStep;
+    }
+
+    /**
+     * @param movieFrameNumber
+     *            The number of an image of the movie.
+     * @return The camera orientation for the image, or null if the image is
+     *         not part of this schedule.
+     */
+    public Orientation getOrientation(int movieFrameNumber) {
+        return orientationMap.get(movieFrameNumber);
+    }
+
+    /**
+     * @param movieFrameNumber
+     *            The number of an image of the movie.
+     * @return The frame number of the timestep shown in the image.
+     */
+    public int getFrameNumber(int movieFrameNumber) {
+        return movieFrameNumber / shotsPerStep;
+    }
+
+    public ArrayList<Integer> getMovieFrameNumbers() {
+        return new ArrayList<Integer>(orientationMap.keySet());
+    }
+
+    /**
+     * Splits the movie into consecutive ranges of images of (almost) equal
+     * length. Consecutive images mostly show the same timestep, so a range
+     * needs few textures.
+     *
+     * @param shard
+     *            The index of the range, starting at 0.
+     * @param shards
+     *            The number of ranges.
+     * @return The numbers of the images in the range, in order.
+     */
+    public List<Integer> getShard(int shard, int shards) {
+        ArrayList<Integer> movieFrameNumbers = getMovieFrameNumbers();
+        int from = (int) ((long) movieFrameNumbers.size() * shard / shards);
+        int to = (int) ((long) movieFrameNumbers.size() * (shard + 1) / shards);
+
+        return movieFrameNumbers.subList(from, to);
+    }
+}
@@ -1,13 +1,25 @@
 package nl.esciencecenter.visualization.ewatercycle.data;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nl.esciencecenter.visualization.ewatercycle.CacheFileManager;
+import nl.esciencecenter.visualization.ewatercycle.DatasetFingerprint;
 import nl.esciencecenter.visualization.ewatercycle.WaterCycleSettings;
 
 import org.slf4j.Logger;
@@ -22,9 +34,40 @@ import ucar.nc2.Variable;
 
 public class NetCDFReader {
     private final static Logger logger = LoggerFactory.getLogger(NetCDFReader.class);
+
+    /** Shared by the statistics scans of all files, sized to the machine. */
+    private final static ForkJoinPool scanPool = new ForkJoinPool();
+
+    /**
+     * Scans the variables nobody asked for yet, one at a time and on a single
+     * thread of the lowest priority, so that it only uses idle time.
+     */
+    private final static ForkJoinPool backgroundPool = new ForkJoinPool(1, new ForkJoinWorkerThreadFactory() {
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }, null, false);
+
+    /** Reads all levels of a timestep from the mapped file. */
+    private final static int ALL_LEVELS = -1;
+
+    /** Number of timesteps below which a scan is no longer split up. */
+    private final static int SCAN_GRANULARITY = 4;
+
+    /** Percentiles that make up the bounds estimated from a sample. */
+    private final static double LOW_PERCENTILE = 1.0, HIGH_PERCENTILE = 99.0;
+    /** Number of timesteps sampled at most for the first estimate. */
+    private final static int SAMPLE_TIMESTEPS = 16;
+    /** Number of points sampled from every one of those timesteps. */
+    private final static int SAMPLE_POINTS = 1 << 16;
+    /** Time after which no more timesteps are added to the sample. */
+    private final static long SAMPLE_BUDGET_MILLIS = 250;
     private final WaterCycleSettings settings = WaterCycleSettings.getInstance();
 
-    private final NetcdfFile ncfile;
+    private final TimeAggregation files;
     private final HashMap<String, Variable> variables;
     private final HashMap<String, String> units;
     private final HashMap<String, List<Dimension>> dimensions;
@@ -33,14 +76,20 @@ public class NetCDFReader {
 
     private final HashMap<String, Float> mins;
     private final HashMap<String, Float> maxes;
+    private final HashMap<String, VariableStatistics> statistics;
+
+    /** The variables whose bounds are known or being determined. */
+    private final Set<String> requested;
 
     private final CacheFileManager cache;
+    private final DatasetFingerprint fingerprint;
 
     private long startTimeMillis, stopTimeMillis;
 
-    public NetCDFReader(File file) {
-        this.ncfile = open(file);
+    public NetCDFReader(TimeAggregation files) throws IOException {
+        this.files = files;
         cache = settings.getCacheFileManager();
+        fingerprint = files.getFingerprint();
 
         variables = new HashMap<String, Variable>();
         units = new HashMap<String, String>();
@@ -50,39 +99,53 @@ public class NetCDFReader {
 
         mins = new HashMap<String, Float>();
         maxes = new HashMap<String, Float>();
+        statistics = new HashMap<String, VariableStatistics>();
+        requested = new HashSet<String>();
 
-        List<Variable> vars = ncfile.getVariables();
-        List<Dimension> dims = ncfile.getDimensions();
+        // All files hold the same variables, the first one describes them.
+        TimeAggregation.OpenFile first = files.acquire(0);
+        try {
+            NetcdfFile ncfile = first.getNetcdfFile();
+            List<Variable> vars = ncfile.getVariables();
+            List<Dimension> dims = ncfile.getDimensions();
 
-        for (Variable v : vars) {
-            String name = v.getFullName();
+            for (Variable v : vars) {
+                String name = v.getFullName();
 
-            boolean variableIsActuallyADimension = false;
-            for (Dimension d : dims) {
-                if (d.getFullName().compareTo(name) == 0) {
-                    variableIsActuallyADimension = true;
+                boolean variableIsActuallyADimension = false;
+                for (Dimension d : dims) {
+                    if (d.getFullName().compareTo(name) == 0) {
+                        variableIsActuallyADimension = true;
+                    }
                 }
-            }
 
-            ArrayList<Integer> shape = new ArrayList<Integer>();
-            for (int i : v.getShape()) {
-                shape.add(i);
-            }
-            shapes.put(name, shape);
+                ArrayList<Integer> shape = new ArrayList<Integer>();
+                for (int i : v.getShape()) {
+                    shape.add(i);
+                }
+                // Along time, the variable spans all files.
+                List<Dimension> variableDims = v.getDimensions();
+                if (!variableDims.isEmpty() && variableDims.get(0).getFullName().compareTo("time") == 0) {
+                    shape.set(0, files.getFrames());
+                }
+                shapes.put(name, shape);
 
-            if (!variableIsActuallyADimension) {
-                variables.put(name, v);
-                units.put(name, v.getUnitsString());
+                if (!variableIsActuallyADimension) {
+                    variables.put(name, v);
+                    units.put(name, v.getUnitsString());
 
-                for (Attribute a : v.getAttributes()) {
-                    if (a.getFullName().compareTo("_FillValue") == 0) {
-                        float fillValue = a.getNumericValue().floatValue();
-                        fillValues.put(name, fillValue);
+                    for (Attribute a : v.getAttributes()) {
+                        if (a.getFullName().compareTo("_FillValue") == 0) {
+                            float fillValue = a.getNumericValue().floatValue();
+                            fillValues.put(name, fillValue);
+                        }
                     }
+                } else {
+                    dimensions.put(name, v.getDimensions());
                 }
-            } else {
-                dimensions.put(name, v.getDimensions());
             }
+        } finally {
+            files.release(first);
         }
     }
 
@@ -90,6 +153,22 @@ public class NetCDFReader {
         return shapes.get(varName).get(0);
     }
 
+    /**
+     * The number of depth levels of a variable, the second dimension of
+     * variables shaped (time, level, lat, lon).
+     *
+     * @param varName
+     *            The variable.
+     * @return The number of levels, 1 for variables shaped (time, lat, lon).
+     */
+    public int getLevels(String varName) {
+        List<Integer> shape = shapes.get(varName);
+        if (shape.size() < 4) {
+            return 1;
+        }
+        return shape.get(1);
+    }
+
     public int getAvailableFrames() {
         int value = -1;
         for (Entry<String, List<Integer>> shapeEntry : shapes.entrySet()) {
@@ -218,15 +297,142 @@ public class NetCDFReader {
     // return result;
     // }
 
-    public synchronized float[] getData(String variableName, int time) {
-        Variable variable = variables.get(variableName);
+    public float[] getData(String variableName, int time) {
+        FloatBuffer mapped = getMappedData(variableName, time, ALL_LEVELS);
+        if (mapped != null) {
+            float[] data = new float[mapped.remaining()];
+            mapped.get(data);
+            return data;
+        }
+
+        return readData(variableName, time);
+    }
+
+    /**
+     * Get the data of a single timestep as a read-only buffer, all of its
+     * depth levels included, one after the other. For classic NetCDF files
+     * this is a view directly on the memory-mapped file, which does not copy
+     * and can be called concurrently. Other files are read through
+     * netcdf-java, in a single contiguous read.
+     * 
+     * @param variableName
+     *            The variable to read.
+     * @param time
+     *            The timestep to read.
+     * @return The data, or null if it could not be read.
+     */
+    public FloatBuffer getDataBuffer(String variableName, int time) {
+        FloatBuffer mapped = getMappedData(variableName, time, ALL_LEVELS);
+        if (mapped != null) {
+            return mapped;
+        }
+
+        float[] data = readData(variableName, time);
+        if (data == null) {
+            return null;
+        }
+        return FloatBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the data of a single depth level of a timestep as a read-only
+     * buffer, see {@link #getDataBuffer(String, int)}. Files that can not be
+     * mapped are read as a hyperslab of just that level.
+     * 
+     * @param variableName
+     *            The variable to read.
+     * @param time
+     *            The timestep to read.
+     * @param depth
+     *            The level to read, levels beyond the deepest read the
+     *            deepest, so variables without levels read their only one at
+     *            any depth.
+     * @return The data, or null if it could not be read.
+     */
+    public FloatBuffer getDataBuffer(String variableName, int time, int depth) {
+        int levels = getLevels(variableName);
+        if (levels == 1) {
+            return getDataBuffer(variableName, time);
+        }
+        int level = Math.max(0, Math.min(depth, levels - 1));
+
+        FloatBuffer mapped = getMappedData(variableName, time, level);
+        if (mapped != null) {
+            return mapped;
+        }
+
+        float[] data = readLevel(variableName, time, level);
+        if (data == null) {
+            return null;
+        }
+        return FloatBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a timestep, or a level of it, from the memory-mapped file. The
+     * file is held while the view is made, so it is not closed in the
+     * meantime. Views stay valid after the file is closed.
+     * 
+     * @return The data, or null if it can not be read this way.
+     */
+    private FloatBuffer getMappedData(String variableName, int time, int level) {
+        TimeAggregation.OpenFile file;
+        try {
+            file = files.acquire(files.getFileIndex(time));
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+            return null;
+        }
+
+        try {
+            MappedNetCDFSliceReader mappedFile = file.getMappedFile();
+            if (mappedFile == null || !mappedFile.supports(variableName)) {
+                return null;
+            }
+            if (level == ALL_LEVELS) {
+                return mappedFile.getSlice(variableName, files.getLocalFrame(time));
+            }
+            return mappedFile.getSlice(variableName, files.getLocalFrame(time), level);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            files.release(file);
+        }
+    }
+
+    private float[] readData(String variableName, int time) {
+        float[] data = null;
+
+        try {
+            TimeAggregation.OpenFile file = files.acquire(files.getFileIndex(time));
+            try {
+                Array netCDFArray = file.readSlice(variableName, files.getLocalFrame(time));
+                data = (float[]) netCDFArray.get1DJavaArray(float.class);
+            } finally {
+                files.release(file);
+            }
+        } catch (IOException | InvalidRangeException e) {
+            e.printStackTrace();
+        }
+
+        return data;
+    }
+
+    private float[] readLevel(String variableName, int time, int level) {
+        List<Integer> shape = shapes.get(variableName);
 
         float[] data = null;
 
-        Array netCDFArray;
         try {
-            netCDFArray = variable.slice(0, time).read();
-            data = (float[]) netCDFArray.get1DJavaArray(float.class);
+            TimeAggregation.OpenFile file = files.acquire(files.getFileIndex(time));
+            try {
+                Array netCDFArray = file.read(variableName, new int[] { files.getLocalFrame(time), level, 0, 0 },
+                        new int[] { 1, 1, shape.get(2), shape.get(3) });
+                data = (float[]) netCDFArray.get1DJavaArray(float.class);
+            } finally {
+                files.release(file);
+            }
         } catch (IOException | InvalidRangeException e) {
             e.printStackTrace();
         }
@@ -234,10 +440,246 @@ public class NetCDFReader {
         return data;
     }
 
-    public void determineMinMax(String variableName) {
+    /**
+     * Start determining the bounds of a variable, unless that was done
+     * before. Does not block: the variable is only marked as requested here,
+     * the work is done in the background. Predefined bounds (from the
+     * settings) and cached bounds are used when available. Otherwise
+     * provisional bounds are estimated from a sample first, and then all
+     * timesteps are scanned in parallel, which refines the bounds as it goes
+     * and replaces them by those of all timesteps in the end, in this reader
+     * and in the settings. Call this when the variable is first shown.
+     * 
+     * @param variableName
+     *            The variable to determine the bounds for.
+     * @param listener
+     *            Receives the progress and results of the scan, may be null.
+     */
+    public void requestStatistics(final String variableName, final StatisticsListener listener) {
+        synchronized (this) {
+            if (!variables.containsKey(variableName) || !requested.add(variableName)) {
+                return;
+            }
+        }
+        scanPool.execute(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                RecursiveAction scan = createScan(Collections.singletonList(variableName), listener);
+                if (scan != null) {
+                    scan.invoke();
+                }
+            }
+        });
+    }
+
+    /**
+     * Determine the bounds of a set of variables in the background, at low
+     * priority and one variable at a time. Variables that are requested in
+     * the meantime (see {@link #requestStatistics(String, StatisticsListener)})
+     * are skipped when their turn comes.
+     * 
+     * @param variableNames
+     *            The variables to determine the bounds for.
+     * @param listener
+     *            Receives the progress and results of the scans, may be null.
+     */
+    public void requestStatisticsInBackground(List<String> variableNames, final StatisticsListener listener) {
+        for (final String variableName : variableNames) {
+            backgroundPool.execute(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    synchronized (NetCDFReader.this) {
+                        if (!variables.containsKey(variableName) || !requested.add(variableName)) {
+                            return;
+                        }
+                    }
+                    RecursiveAction scan = createScan(Collections.singletonList(variableName), listener);
+                    // Invoked here, so that the scan stays in the
+                    // low-priority pool.
+                    if (scan != null) {
+                        scan.invoke();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates the scan of the bounds of a set of variables. Variables with
+     * predefined or cached bounds are skipped. For the others, provisional
+     * bounds are estimated from a sample right away. The scan reads the
+     * timesteps coarse to fine, and refines the estimate after every stage,
+     * before it replaces it with the bounds of all timesteps once it is done.
+     * Like the estimate, those leave out the outliers.
+     * 
+     * @return The scan, or null if no scan is needed.
+     */
+    private RecursiveAction createScan(List<String> variableNames, final StatisticsListener listener) {
+        final List<String> unknown = new ArrayList<String>();
+        final Map<String, float[]> histogramRanges = new HashMap<String, float[]>();
+
+        for (String variableName : variableNames) {
+            if (!determineKnownMinMax(variableName)) {
+                float[] estimate = estimateBounds(variableName);
+                if (estimate == null) {
+                    continue;
+                }
+                setBounds(variableName, estimate[0], estimate[1]);
+
+                unknown.add(variableName);
+                histogramRanges.put(variableName, new float[] { estimate[2], estimate[3] });
+            }
+        }
+
+        if (unknown.isEmpty()) {
+            return null;
+        }
+
+        final int times = shapes.get(unknown.get(0)).get(0);
+        final int[] order = coarseToFine(times);
+        final AtomicInteger timestepsDone = new AtomicInteger();
+
+        logger.debug("Determining minimum and maximum values for " + unknown + " in the background.");
+
+        return new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                // Every stage reads four times as many timesteps as the ones
+                // before it.
+                Map<String, VariableStatistics> result = null;
+                int from = 0;
+                int to = Math.min(times, Math.max(SCAN_GRANULARITY, times / 16));
+                do {
+                    Map<String, VariableStatistics> stage = new ScanTask(unknown, histogramRanges, order, from, to,
+                            timestepsDone, listener).invoke();
+                    if (result == null) {
+                        result = stage;
+                    } else {
+                        for (String variableName : unknown) {
+                            result.get(variableName).merge(stage.get(variableName));
+                        }
+                    }
+                    from = to;
+                    to = Math.min(times, to * 4);
+
+                    if (from < times) {
+                        for (String variableName : unknown) {
+                            VariableStatistics stats = result.get(variableName);
+                            if (stats.getCount() > 0) {
+                                float[] bounds = getRobustBounds(stats);
+                                logger.debug(variableName + " bounds refined to " + bounds[0] + " - " + bounds[1]
+                                        + " from " + from + " timesteps.");
+                                setBounds(variableName, bounds[0], bounds[1]);
+                            }
+                        }
+                    }
+                } while (from < times);
+
+                Map<String, VariableStatistics> determined = new HashMap<String, VariableStatistics>();
+                for (String variableName : unknown) {
+                    VariableStatistics stats = result.get(variableName);
+                    logger.debug(variableName + " statistics determined: " + stats);
+
+                    if (stats.getCount() > 0) {
+                        determined.put(variableName, stats);
+                        setStatistics(variableName, stats);
+                    }
+
+                    if (listener != null) {
+                        listener.statisticsDetermined(variableName, stats);
+                    }
+                }
+
+                if (!determined.isEmpty()) {
+                    cache.writeStatistics(fingerprint, determined);
+                }
+            }
+        };
+    }
+
+    /**
+     * Scans a range of timesteps of a set of variables, splitting the range in
+     * halves until it is small enough. The range is one of positions in an
+     * order of the timesteps.
+     */
+    private class ScanTask extends RecursiveTask<Map<String, VariableStatistics>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> variableNames;
+        private final Map<String, float[]> histogramRanges;
+        private final int[] order;
+        private final int from, to;
+        private final AtomicInteger timestepsDone;
+        private final StatisticsListener listener;
+
+        public ScanTask(List<String> variableNames, Map<String, float[]> histogramRanges, int[] order, int from,
+                int to, AtomicInteger timestepsDone, StatisticsListener listener) {
+            this.variableNames = variableNames;
+            this.histogramRanges = histogramRanges;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.timestepsDone = timestepsDone;
+            this.listener = listener;
+        }
+
+        @Override
+        protected Map<String, VariableStatistics> compute() {
+            if (to - from > SCAN_GRANULARITY) {
+                int half = from + (to - from) / 2;
+                ScanTask first = new ScanTask(variableNames, histogramRanges, order, from, half, timestepsDone,
+                        listener);
+                ScanTask second = new ScanTask(variableNames, histogramRanges, order, half, to, timestepsDone,
+                        listener);
+
+                first.fork();
+                Map<String, VariableStatistics> result = second.compute();
+                Map<String, VariableStatistics> firstResult = first.join();
+                for (String variableName : variableNames) {
+                    result.get(variableName).merge(firstResult.get(variableName));
+                }
+                return result;
+            }
+
+            Map<String, VariableStatistics> result = new HashMap<String, VariableStatistics>();
+            for (String variableName : variableNames) {
+                float[] range = histogramRanges.get(variableName);
+                result.put(variableName, new VariableStatistics(range[0], range[1]));
+            }
+
+            for (int i = from; i < to; i++) {
+                for (String variableName : variableNames) {
+                    FloatBuffer data = getDataBuffer(variableName, order[i]);
+                    if (data != null) {
+                        result.get(variableName).add(data, getFillValue(variableName));
+                    }
+                }
+
+                int done = timestepsDone.incrementAndGet();
+                if (listener != null) {
+                    listener.scanProgress(NetCDFReader.this, done, shapes.get(variableNames.get(0)).get(0));
+                }
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Use the bounds from the settings or the cache file, if they are known.
+     * 
+     * @return true if both bounds are known.
+     */
+    private synchronized boolean determineKnownMinMax(String variableName) {
         // Check the settings first to see if this value was predefined.
-        float settingsMin = settings.getVarMin(variableName);
-        float settingsMax = settings.getVarMax(variableName);
+        float settingsMin = settings.getPredefinedVarMin(variableName);
+        float settingsMax = settings.getPredefinedVarMax(variableName);
         if (!Float.isNaN(settingsMin)) {
             mins.put(variableName, settingsMin);
         }
@@ -245,87 +687,152 @@ public class NetCDFReader {
             maxes.put(variableName, settingsMax);
         }
 
-        // Then Check if we have made a cacheFileManager file earlier
-        float cacheMin = cache.readMin(variableName);
-        if (!Float.isNaN(cacheMin)) {
-            mins.put(variableName, cacheMin);
-            settings.setVarMin(variableName, cacheMin);
-
+        // Then Check if we have seen this exact file before
+        VariableStatistics cached = cache.readStatistics(fingerprint, variableName);
+        if (cached != null) {
+            setStatistics(variableName, cached);
         }
-        float cacheMax = cache.readMax(variableName);
-        if (!Float.isNaN(cacheMax)) {
-            maxes.put(variableName, cacheMax);
-            settings.setVarMax(variableName, cacheMax);
 
+        return mins.containsKey(variableName) && maxes.containsKey(variableName);
+    }
+
+    /**
+     * Estimate the bounds from a sample, of strided points of timesteps spread
+     * over the whole dataset. Timesteps are added coarse to fine until enough
+     * of them are sampled or the time budget is spent, the first one is always
+     * sampled. The extremes of the sample are also used as the range of the
+     * histogram.
+     * 
+     * @return The estimated bounds followed by the extremes of the sample, or
+     *         null if no data could be read.
+     */
+    private float[] estimateBounds(String variableName) {
+        int[] order = coarseToFine(shapes.get(variableName).get(0));
+        float fillValue = getFillValue(variableName);
+        long deadline = System.currentTimeMillis() + SAMPLE_BUDGET_MILLIS;
+
+        float[] sample = null;
+        int count = 0;
+        int timesteps = Math.min(order.length, SAMPLE_TIMESTEPS);
+        for (int i = 0; i < timesteps && (i == 0 || System.currentTimeMillis() < deadline); i++) {
+            FloatBuffer data = getDataBuffer(variableName, order[i]);
+            if (data == null) {
+                continue;
+            }
+
+            int stride = Math.max(1, data.remaining() / SAMPLE_POINTS);
+            if (sample == null) {
+                sample = new float[timesteps * (data.remaining() / stride + 1)];
+            }
+            for (int j = data.position(); j < data.limit(); j += stride) {
+                float value = data.get(j);
+                if (value != fillValue && !Float.isNaN(value)) {
+                    sample[count++] = value;
+                }
+            }
         }
 
-        float currentMax = Float.MIN_VALUE;
-        float currentMin = Float.MAX_VALUE;
-        float fillValue = fillValues.get(variableName);
+        if (sample == null) {
+            return null;
+        }
+        if (count == 0) {
+            return new float[] { 0f, 1f, 0f, 1f };
+        }
 
-        if (!(mins.containsKey(variableName) && maxes.containsKey(variableName))) {
-            Variable variable = variables.get(variableName);
-            int times = shapes.get(variableName).get(0);
-            int lats = shapes.get(variableName).get(1);
-            int lons = shapes.get(variableName).get(2);
+        Arrays.sort(sample, 0, count);
+        float low = sample[(int) ((count - 1) * LOW_PERCENTILE / 100.0)];
+        float high = sample[(int) Math.ceil((count - 1) * HIGH_PERCENTILE / 100.0)];
+        if (low >= high) {
+            // Mostly a single value, such as the dry land of discharge.
+            low = sample[0];
+            high = sample[count - 1];
+        }
+        return new float[] { low, high, sample[0], sample[count - 1] };
+    }
 
-            System.out.println("Determining minimum and maximum values for " + variableName + ", please wait");
+    /**
+     * The bounds of the bulk of the values, leaving out the outliers.
+     */
+    private static float[] getRobustBounds(VariableStatistics stats) {
+        float low = stats.getPercentile(LOW_PERCENTILE);
+        float high = stats.getPercentile(HIGH_PERCENTILE);
+        if (low >= high) {
+            return new float[] { stats.getMin(), stats.getMax() };
+        }
+        return new float[] { low, high };
+    }
 
-            try {
-                for (int time = 0; time < times; time++) {
-                    Array netCDFArray = variable.slice(0, time).read();
-                    float[] data = (float[]) netCDFArray.get1DJavaArray(float.class);
-
-                    for (int lat = 0; lat < lats; lat++) {
-                        for (int lon = lons - 1; lon >= 0; lon--) {
-                            float pieceOfData = data[lat * lons + lon];
-                            if (pieceOfData != fillValue) {
-                                if (pieceOfData < currentMin) {
-                                    currentMin = pieceOfData;
-                                }
-                                if (pieceOfData > currentMax) {
-                                    currentMax = pieceOfData;
-                                }
-                            }
-                        }
-                    }
-                    System.out.print(".");
-                }
-                System.out.println();
-                System.out.println(variableName + " minimum determined: " + currentMin);
-                System.out.println(variableName + " maximum determined: " + currentMax);
-
-                cache.writeMin(variableName, currentMin);
-                mins.put(variableName, currentMin);
-                settings.setVarMin(variableName, currentMin);
-
-                cache.writeMax(variableName, currentMax);
-                maxes.put(variableName, currentMax);
-                settings.setVarMax(variableName, currentMax);
-
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (InvalidRangeException e) {
-                e.printStackTrace();
+    /**
+     * The timesteps in an order in which the first ones are spread evenly over
+     * the whole dataset: every so many (a power of two), then those halfway in
+     * between, and so on.
+     */
+    private static int[] coarseToFine(int times) {
+        int[] order = new int[times];
+        int n = 0;
+        int stride = Integer.highestOneBit(Math.max(1, times));
+        for (int time = 0; time < times; time += stride) {
+            order[n++] = time;
+        }
+        for (stride /= 2; stride > 0; stride /= 2) {
+            // Halfway in between those in the order already.
+            for (int time = stride; time < times; time += 2 * stride) {
+                order[n++] = time;
             }
         }
+        return order;
+    }
+
+    /**
+     * Use the statistics over all timesteps of a variable: the bulk of its
+     * values is the range of the colormap, while the sliders reach every
+     * value.
+     */
+    private void setStatistics(String variableName, VariableStatistics stats) {
+        synchronized (this) {
+            statistics.put(variableName, stats);
+        }
+        settings.setVarStatistics(fingerprint, variableName, stats);
+
+        float[] bounds = getRobustBounds(stats);
+        setBounds(variableName, bounds[0], bounds[1]);
+    }
+
+    private void setBounds(String variableName, float min, float max) {
+        synchronized (this) {
+            mins.put(variableName, min);
+            maxes.put(variableName, max);
+        }
+        settings.setVarRange(fingerprint, variableName, min, max);
     }
 
+    public synchronized VariableStatistics getStatistics(String variableName) {
+        return statistics.get(variableName);
+    }
+
+    /**
+     * @return The lower bound of the variable, 0 if it is unknown because it
+     *         is still being estimated, or because the variable holds no data
+     *         that could be read.
+     */
     public float getMinValue(String variableName) {
-        if (mins.containsKey(variableName)) {
-            return mins.get(variableName);
-        } else {
-            determineMinMax(variableName);
-            return mins.get(variableName);
+        requestStatistics(variableName, null);
+        synchronized (this) {
+            Float min = mins.get(variableName);
+            return min != null ? min : 0f;
         }
     }
 
+    /**
+     * @return The upper bound of the variable, 1 if it is unknown because it
+     *         is still being estimated, or because the variable holds no data
+     *         that could be read.
+     */
     public float getMaxValue(String variableName) {
-        if (mins.containsKey(variableName)) {
-            return mins.get(variableName);
-        } else {
-            determineMinMax(variableName);
-            return mins.get(variableName);
+        requestStatistics(variableName, null);
+        synchronized (this) {
+            Float max = maxes.get(variableName);
+            return max != null ? max : 1f;
         }
     }
 
@@ -345,25 +852,19 @@ public class NetCDFReader {
         return result;
     }
 
-    private NetcdfFile open(File file) {
-        NetcdfFile ncfile = null;
-        try {
-            ncfile = NetcdfFile.open(file.getAbsolutePath());
-        } catch (IOException ioe) {
-            logger.error("trying to open " + file.getAbsolutePath(), ioe);
-        }
-        return ncfile;
+    public void close() {
+        files.close();
     }
 
-    public void close() {
-        try {
-            this.ncfile.close();
-        } catch (IOException ioe) {
-            logger.error("trying to close " + ncfile.toString(), ioe);
-        }
+    public DatasetFingerprint getFingerprint() {
+        return fingerprint;
     }
 
+    /**
+     * @return The fill value of the variable, NaN if it has none.
+     */
     public float getFillValue(String variableName) {
-        return fillValues.get(variableName);
+        Float fillValue = fillValues.get(variableName);
+        return fillValue != null ? fillValue : Float.NaN;
     }
 }
@@ -0,0 +1,29 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+/**
+ * Receives the progress and results of a background statistics scan. The
+ * methods are called from the scanning threads.
+ */
+public interface StatisticsListener {
+    /**
+     * Called whenever another timestep of the scanned file has been processed.
+     *
+     * @param reader
+     *            The reader of the file being scanned.
+     * @param timestepsDone
+     *            The number of timesteps processed so far.
+     * @param timestepsTotal
+     *            The total number of timesteps to process.
+     */
+    void scanProgress(NetCDFReader reader, int timestepsDone, int timestepsTotal);
+
+    /**
+     * Called once for every scanned variable, when the scan has finished.
+     *
+     * @param variableName
+     *            The name of the variable.
+     * @param statistics
+     *            The statistics over all timesteps of the variable.
+     */
+    void statisticsDetermined(String variableName, VariableStatistics statistics);
+}
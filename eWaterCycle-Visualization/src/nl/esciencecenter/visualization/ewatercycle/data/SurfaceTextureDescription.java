@@ -1,6 +1,9 @@
 package nl.esciencecenter.visualization.ewatercycle.data;
 
 public class SurfaceTextureDescription {
+    /** The level of detail of images that show the whole grid. */
+    public static final int WHOLE_GRID = -1;
+
     protected final int frameNumber;
     protected final int depth;
     protected final String varName;
@@ -12,9 +15,22 @@ public class SurfaceTextureDescription {
     protected final float upperBound;
     protected final boolean logScale;
 
+    // The window of a level of the grid pyramid shown by the image, see
+    // GridPyramid.
+    protected final int level;
+    protected final int column;
+    protected final int row;
+
     public SurfaceTextureDescription(int frameNumber, int depth, String varName, String colorMap,
             boolean dynamicDimensions, boolean diff, boolean secondSet, float lowerBound, float upperBound,
             boolean logScale) {
+        this(frameNumber, depth, varName, colorMap, dynamicDimensions, diff, secondSet, lowerBound, upperBound,
+                logScale, WHOLE_GRID, 0, 0);
+    }
+
+    private SurfaceTextureDescription(int frameNumber, int depth, String varName, String colorMap,
+            boolean dynamicDimensions, boolean diff, boolean secondSet, float lowerBound, float upperBound,
+            boolean logScale, int level, int column, int row) {
         this.frameNumber = frameNumber;
         this.depth = depth;
         this.varName = varName;
@@ -25,6 +41,9 @@ public class SurfaceTextureDescription {
         this.lowerBound = lowerBound;
         this.upperBound = upperBound;
         this.logScale = logScale;
+        this.level = level;
+        this.column = column;
+        this.row = row;
     }
 
     public int getFrameNumber() {
@@ -67,6 +86,50 @@ public class SurfaceTextureDescription {
         return logScale;
     }
 
+    public int getLevel() {
+        return level;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * This description, for an image of a window of a level of the grid
+     * pyramid.
+     * 
+     * @param level
+     *            The level, or {@link #WHOLE_GRID}.
+     * @param column
+     *            The first column of the window in the level.
+     * @param row
+     *            The first row of the window in the level.
+     */
+    public SurfaceTextureDescription withRegion(int level, int column, int row) {
+        return new SurfaceTextureDescription(frameNumber, depth, varName, colorMap, dynamicDimensions, diff,
+                secondSet, lowerBound, upperBound, logScale, level, column, row);
+    }
+
+    /**
+     * This description for another timestep, in the same window.
+     */
+    public SurfaceTextureDescription withFrameNumber(int frameNumber) {
+        return new SurfaceTextureDescription(frameNumber, depth, varName, colorMap, dynamicDimensions, diff,
+                secondSet, lowerBound, upperBound, logScale, level, column, row);
+    }
+
+    /**
+     * This description for another depth level, in the same window.
+     */
+    public SurfaceTextureDescription withDepth(int depth) {
+        return new SurfaceTextureDescription(frameNumber, depth, varName, colorMap, dynamicDimensions, diff,
+                secondSet, lowerBound, upperBound, logScale, level, column, row);
+    }
+
     @Override
     public int hashCode() {
         int dataModePrime = (frameNumber + 3) * 23;
@@ -80,9 +143,10 @@ public class SurfaceTextureDescription {
         int lowerBoundPrime = (int) ((lowerBound + 41) * 1543);
         int upperBoundPrime = (int) ((upperBound + 67) * 2957);
         int logScalePrime = (logScale ? 251 : 43) * 7883;
+        int regionPrime = ((level + 3) * 31 + column * 17 + row) * 1543;
 
         int hashCode = frameNumberPrime + dynamicPrime + diffPrime + secondPrime + depthPrime + dataModePrime
-                + variablePrime + colorMapPrime + lowerBoundPrime + upperBoundPrime + logScalePrime;
+                + variablePrime + colorMapPrime + lowerBoundPrime + upperBoundPrime + logScalePrime + regionPrime;
 
         return hashCode;
     }
@@ -101,7 +165,18 @@ public class SurfaceTextureDescription {
         return (dynamicDimensions == that.dynamicDimensions && diff == that.diff && secondSet == that.secondSet
                 && varName.compareTo(that.varName) == 0 && frameNumber == that.frameNumber
                 && lowerBound == that.lowerBound && upperBound == that.upperBound && depth == that.depth
-                && colorMap.compareTo(that.colorMap) == 0 && that.logScale == logScale);
+                && colorMap.compareTo(that.colorMap) == 0 && that.logScale == logScale && level == that.level
+                && column == that.column && row == that.row);
+    }
+
+    /**
+     * The description of the data behind the image, without the colormap,
+     * bounds and scale that are applied to it. Images that only differ in
+     * those share their data when colormapping on the GPU.
+     */
+    public SurfaceTextureDescription getDataDescription() {
+        return new SurfaceTextureDescription(frameNumber, depth, varName, "", dynamicDimensions, diff, secondSet, 0f,
+                0f, false, level, column, row);
     }
 
     public int getDataModeIndex() {
@@ -144,6 +219,9 @@ public class SurfaceTextureDescription {
         result += lowerBound + ", ";
         result += upperBound + ", ";
         result += logScale;
+        if (level != WHOLE_GRID) {
+            result += ", level " + level + " at " + column + "x" + row;
+        }
 
         return result;
     }
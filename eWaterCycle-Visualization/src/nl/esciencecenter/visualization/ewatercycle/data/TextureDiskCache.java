@@ -0,0 +1,305 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import nl.esciencecenter.visualization.ewatercycle.DatasetFingerprint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed cache of colormapped surface images. Every image is stored in
+ * its own file, named after a hash of the dataset fingerprint, the
+ * {@link SurfaceTextureDescription} and the bounds that were actually used
+ * to map it. An index of the files and their sizes is kept in memory in least
+ * recently used order, the oldest files are removed once the total exceeds
+ * the byte budget.
+ */
+public class TextureDiskCache {
+    private final static Logger logger = LoggerFactory.getLogger(TextureDiskCache.class);
+
+    private static final int MAGIC = 0x45575443; // "EWTC"
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".tex";
+
+    private final File directory;
+    private final long byteBudget;
+    private final boolean compress;
+
+    /** File names mapped to their size on disk, in least recently used order. */
+    private final LinkedHashMap<String, Long> index;
+    private long totalBytes;
+
+    public TextureDiskCache(File directory, long byteBudget, boolean compress) {
+        this.directory = directory;
+        this.byteBudget = byteBudget;
+        this.compress = compress;
+
+        index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        totalBytes = 0;
+
+        directory.mkdirs();
+        rebuildIndex();
+    }
+
+    /**
+     * Build the key for an image.
+     *
+     * @param dataset
+     *            The fingerprint of the file the data came from.
+     * @param desc
+     *            The description of the image.
+     * @param min
+     *            The lower bound the colormap was applied with.
+     * @param max
+     *            The upper bound the colormap was applied with.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @return The key.
+     */
+    public static String makeKey(DatasetFingerprint dataset, SurfaceTextureDescription desc, float min, float max,
+            int width, int height) {
+        return dataset.getPath() + "|" + dataset.getSize() + "|" + dataset.getLastModified() + "|"
+                + desc.getVarName() + "|" + desc.getFrameNumber() + "|" + desc.getDepth() + "|" + desc.getColorMap()
+                + "|" + desc.isDynamicDimensions() + "|" + desc.isDiff() + "|" + desc.isSecondSet() + "|"
+                + desc.isLogScale() + "|" + Float.floatToIntBits(min) + "|" + Float.floatToIntBits(max) + "|"
+                + width + "x" + height + "|" + desc.getLevel() + "|" + desc.getColumn() + "x" + desc.getRow();
+    }
+
+    /**
+     * Build the key for an image of the difference between two datasets, see
+     * {@link #makeKey(DatasetFingerprint, SurfaceTextureDescription, float, float, int, int)}.
+     *
+     * @param control
+     *            The fingerprint of the file of the control dataset.
+     * @param experiment
+     *            The fingerprint of the file of the experiment dataset.
+     */
+    public static String makeKey(DatasetFingerprint control, DatasetFingerprint experiment,
+            SurfaceTextureDescription desc, float min, float max, int width, int height) {
+        return makeKey(control, desc, min, max, width, height) + "|" + experiment.getPath() + "|"
+                + experiment.getSize() + "|" + experiment.getLastModified();
+    }
+
+    /**
+     * Read an image from the cache.
+     *
+     * @param key
+     *            The key, as made by {@link #makeKey}.
+     * @param pixels
+     *            The expected number of pixels.
+     * @return The pixels, or null if the image is not in the cache.
+     */
+    public int[] read(String key, int pixels) {
+        String fileName = getFileName(key);
+        synchronized (this) {
+            // A get, unlike containsKey, counts as an access, and moves the
+            // image to the most recently used end.
+            if (index.get(fileName) == null) {
+                return null;
+            }
+        }
+
+        File file = new File(directory, fileName);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readUTF().compareTo(key) != 0
+                        || in.readInt() != pixels) {
+                    // Hash collision or stale format, treat as a miss.
+                    return null;
+                }
+                boolean compressed = in.readBoolean();
+
+                byte[] bytes = new byte[pixels * 4];
+                if (compressed) {
+                    InflaterInputStream inflated = new InflaterInputStream(in);
+                    try {
+                        new DataInputStream(inflated).readFully(bytes);
+                    } finally {
+                        inflated.close();
+                    }
+                } else {
+                    in.readFully(bytes);
+                }
+
+                int[] result = new int[pixels];
+                ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(result);
+
+                // The index of a next session is ordered by modification
+                // time, so record the use there as well.
+                file.setLastModified(System.currentTimeMillis());
+                return result;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to read cached texture " + file + ", dropping it.", e);
+            remove(fileName);
+            return null;
+        }
+    }
+
+    /**
+     * Store an image in the cache, evicting the least recently used images if
+     * the budget is exceeded.
+     *
+     * @param key
+     *            The key, as made by {@link #makeKey}.
+     * @param pixels
+     *            The image.
+     */
+    public void write(String key, int[] pixels) {
+        String fileName = getFileName(key);
+        synchronized (this) {
+            if (index.containsKey(fileName)) {
+                return;
+            }
+        }
+
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory.toPath(), fileName, ".tmp");
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(pixels.length);
+                out.writeBoolean(compress);
+
+                ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                bytes.asIntBuffer().put(pixels);
+
+                if (compress) {
+                    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                    try {
+                        DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 1 << 16);
+                        deflated.write(bytes.array());
+                        deflated.finish();
+                    } finally {
+                        deflater.end();
+                    }
+                } else {
+                    out.write(bytes.array());
+                }
+            } finally {
+                out.close();
+            }
+
+            Path target = new File(directory, fileName).toPath();
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            add(fileName, Files.size(target));
+        } catch (IOException e) {
+            logger.error("Unable to write cached texture for " + key, e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private synchronized void add(String fileName, long size) {
+        index.put(fileName, size);
+        totalBytes += size;
+
+        Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while (totalBytes > byteBudget && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().compareTo(fileName) == 0) {
+                continue;
+            }
+            totalBytes -= entry.getValue();
+            eldest.remove();
+            new File(directory, entry.getKey()).delete();
+        }
+    }
+
+    private synchronized void remove(String fileName) {
+        Long size = index.remove(fileName);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(directory, fileName).delete();
+    }
+
+    /**
+     * Pick up the files left by earlier sessions, oldest first, so they will
+     * be evicted first as well.
+     */
+    private void rebuildIndex() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(EXTENSION);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            add(file.getName(), file.length());
+        }
+
+        logger.debug("Texture disk cache holds " + index.size() + " images, " + totalBytes + " bytes.");
+    }
+
+    private static String getFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(Charset.forName("UTF-8")));
+
+            StringBuilder result = new StringBuilder();
+            for (byte b : hash) {
+                result.append(String.format("%02x", b));
+            }
+            return result.append(EXTENSION).toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.esciencecenter.visualization.ewatercycle.DatasetFingerprint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+/**
+ * The files of a dataset that is split along the time axis, such as the
+ * yearly files of a PCR-GLOBWB run, stitched into a single time axis. The file
+ * of a timestep is found by a binary search on the first timestep of every
+ * file. Files are only opened once one of their timesteps is read, and only a
+ * limited number of them are kept open, the least recently used one is closed
+ * first. A dataset in a single file is an aggregation of one.
+ */
+public class TimeAggregation {
+    private final static Logger logger = LoggerFactory.getLogger(TimeAggregation.class);
+
+    private static final String TIME = "time";
+
+    /**
+     * What the aggregation needs to know of a file, read from its header and
+     * its time coordinate.
+     */
+    public static class FileHeader {
+        private final File file;
+        private final int frames;
+        private final double firstTime;
+        private final double lastTime;
+        private final String timeUnits;
+        private final List<String> variableNames;
+        private final Map<String, Integer> spatialDimensions;
+
+        private FileHeader(File file, int frames, double firstTime, double lastTime, String timeUnits,
+                List<String> variableNames, Map<String, Integer> spatialDimensions) {
+            this.file = file;
+            this.frames = frames;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.timeUnits = timeUnits;
+            this.variableNames = variableNames;
+            this.spatialDimensions = spatialDimensions;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * Whether the given file picks up in time where this one leaves off,
+         * with the same variables on the same grid.
+         */
+        public boolean isContinuedBy(FileHeader next) {
+            if (Double.isNaN(lastTime) || Double.isNaN(next.firstTime) || timeUnits == null) {
+                return false;
+            }
+            return timeUnits.compareTo(next.timeUnits) == 0 && next.firstTime > lastTime
+                    && variableNames.equals(next.variableNames) && spatialDimensions.equals(next.spatialDimensions);
+        }
+    }
+
+    /**
+     * A file that is open, mapped into memory as well where possible. A file
+     * that is dropped from the open files while it is being read is closed
+     * once the last reader releases it. netcdf-java files are not
+     * thread-safe, so reads through them lock the file they read from, not
+     * the aggregation.
+     */
+    public static class OpenFile {
+        private final NetcdfFile ncfile;
+        private final MappedNetCDFSliceReader mappedFile;
+        private int references;
+        private boolean evicted;
+
+        private OpenFile(File file) throws IOException {
+            ncfile = NetcdfFile.open(file.getAbsolutePath());
+            mappedFile = MappedNetCDFSliceReader.open(file);
+        }
+
+        public NetcdfFile getNetcdfFile() {
+            return ncfile;
+        }
+
+        /**
+         * Read a single timestep of a variable through netcdf-java.
+         */
+        public synchronized Array readSlice(String variableName, int localFrame) throws IOException,
+                InvalidRangeException {
+            return ncfile.findVariable(variableName).slice(0, localFrame).read();
+        }
+
+        /**
+         * Read a section of a variable through netcdf-java.
+         */
+        public synchronized Array read(String variableName, int[] origin, int[] shape) throws IOException,
+                InvalidRangeException {
+            return ncfile.findVariable(variableName).read(origin, shape);
+        }
+
+        /**
+         * @return The memory-mapped file, or null if the file can not be
+         *         mapped.
+         */
+        public MappedNetCDFSliceReader getMappedFile() {
+            return mappedFile;
+        }
+
+        private void close() {
+            // Views handed out earlier stay valid, the mapping lives until
+            // they are garbage collected.
+            if (mappedFile != null) {
+                mappedFile.close();
+            }
+            try {
+                ncfile.close();
+            } catch (IOException e) {
+                logger.error("trying to close " + ncfile.getLocation(), e);
+            }
+        }
+    }
+
+    private final File[] files;
+    private final int[] firstFrames;
+    private final int frames;
+    private final DatasetFingerprint fingerprint;
+    private final Map<Integer, OpenFile> openFiles;
+
+    /**
+     * @param headers
+     *            The headers of the files, in order of time.
+     * @param maxOpenFiles
+     *            The number of files to keep open at most.
+     */
+    public TimeAggregation(List<FileHeader> headers, final int maxOpenFiles) {
+        files = new File[headers.size()];
+        firstFrames = new int[headers.size()];
+
+        int frame = 0;
+        for (int i = 0; i < headers.size(); i++) {
+            files[i] = headers.get(i).getFile();
+            firstFrames[i] = frame;
+            frame += headers.get(i).getFrames();
+        }
+        frames = frame;
+        fingerprint = makeFingerprint(files);
+
+        openFiles = new LinkedHashMap<Integer, OpenFile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, OpenFile> eldest) {
+                if (size() > Math.max(1, maxOpenFiles)) {
+                    logger.debug("Closing " + files[eldest.getKey()].getName());
+                    evict(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * A single file, that is not split along the time axis.
+     */
+    public static TimeAggregation of(File file, int maxOpenFiles) throws IOException {
+        return new TimeAggregation(Collections.singletonList(readHeader(file)), maxOpenFiles);
+    }
+
+    /**
+     * Groups files into the datasets they make up. Every file is added to the
+     * first dataset it continues in time, or starts a dataset of its own.
+     * Files that can not be read are left out.
+     *
+     * @param files
+     *            The files, in any order.
+     * @return The headers of the files of every dataset, in order of time.
+     */
+    public static List<List<FileHeader>> groupByTime(File[] files) {
+        List<FileHeader> headers = new ArrayList<FileHeader>();
+        for (File file : files) {
+            try {
+                headers.add(readHeader(file));
+            } catch (IOException e) {
+                logger.error("trying to open " + file.getAbsolutePath(), e);
+            }
+        }
+
+        // In order of time, so that every file follows the one it continues.
+        // Files without a time coordinate go last, by name.
+        Collections.sort(headers, new Comparator<FileHeader>() {
+            @Override
+            public int compare(FileHeader a, FileHeader b) {
+                boolean aTimed = !Double.isNaN(a.firstTime);
+                boolean bTimed = !Double.isNaN(b.firstTime);
+                if (aTimed != bTimed) {
+                    return aTimed ? -1 : 1;
+                }
+                if (aTimed && a.firstTime != b.firstTime) {
+                    return Double.compare(a.firstTime, b.firstTime);
+                }
+                return a.file.getName().compareTo(b.file.getName());
+            }
+        });
+
+        List<List<FileHeader>> datasets = new ArrayList<List<FileHeader>>();
+        for (FileHeader header : headers) {
+            List<FileHeader> continued = null;
+            for (List<FileHeader> dataset : datasets) {
+                if (dataset.get(dataset.size() - 1).isContinuedBy(header)) {
+                    continued = dataset;
+                    break;
+                }
+            }
+
+            if (continued == null) {
+                continued = new ArrayList<FileHeader>();
+                datasets.add(continued);
+            } else {
+                logger.debug(header.file.getName() + " continues " + continued.get(0).file.getName() + " in time");
+            }
+            continued.add(header);
+        }
+        return datasets;
+    }
+
+    /**
+     * Reads what the aggregation needs to know of a file. The file is opened
+     * only for as long as that takes, and only its time coordinate is read.
+     */
+    public static FileHeader readHeader(File file) throws IOException {
+        NetcdfFile ncfile = NetcdfFile.open(file.getAbsolutePath());
+        try {
+            int frames = 0;
+            Map<String, Integer> spatialDimensions = new HashMap<String, Integer>();
+            for (Dimension d : ncfile.getDimensions()) {
+                if (d.getFullName().compareTo(TIME) == 0) {
+                    frames = d.getLength();
+                } else {
+                    spatialDimensions.put(d.getFullName(), d.getLength());
+                }
+            }
+
+            List<String> variableNames = new ArrayList<String>();
+            for (Variable v : ncfile.getVariables()) {
+                if (!spatialDimensions.containsKey(v.getFullName()) && v.getFullName().compareTo(TIME) != 0) {
+                    variableNames.add(v.getFullName());
+                }
+            }
+            Collections.sort(variableNames);
+
+            double firstTime = Double.NaN, lastTime = Double.NaN;
+            String timeUnits = null;
+            Variable time = ncfile.findVariable(TIME);
+            if (time != null && frames > 0) {
+                try {
+                    Array times = time.read();
+                    firstTime = times.getDouble(0);
+                    lastTime = times.getDouble(frames - 1);
+                    timeUnits = time.getUnitsString();
+                } catch (IOException e) {
+                    logger.debug("No time coordinate in " + file.getName(), e);
+                }
+            }
+
+            return new FileHeader(file, frames, firstTime, lastTime, timeUnits, variableNames, spatialDimensions);
+        } finally {
+            ncfile.close();
+        }
+    }
+
+    private static DatasetFingerprint makeFingerprint(File[] files) {
+        DatasetFingerprint first = DatasetFingerprint.of(files[0]);
+        if (files.length == 1) {
+            return first;
+        }
+
+        // Any file that is replaced or changed shows in the total size or the
+        // latest modification.
+        long size = 0, lastModified = 0;
+        for (File file : files) {
+            size += file.length();
+            lastModified = Math.max(lastModified, file.lastModified());
+        }
+        DatasetFingerprint last = DatasetFingerprint.of(files[files.length - 1]);
+        return new DatasetFingerprint(first.getPath() + File.pathSeparator + last.getPath() + "#" + files.length,
+                size, lastModified);
+    }
+
+    /**
+     * @return The number of timesteps of all files together.
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    public DatasetFingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @param frame
+     *            A timestep of the dataset.
+     * @return The index of the file the timestep is in.
+     */
+    public int getFileIndex(int frame) {
+        int index = Arrays.binarySearch(firstFrames, frame);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return Math.max(0, index);
+    }
+
+    /**
+     * @param frame
+     *            A timestep of the dataset.
+     * @return The index of the timestep within its file.
+     */
+    public int getLocalFrame(int frame) {
+        return frame - firstFrames[getFileIndex(frame)];
+    }
+
+    /**
+     * Opens a file, or finds it open already. The file stays open until it is
+     * handed back with {@link #release(OpenFile)}, and should not be used
+     * after that.
+     *
+     * @param fileIndex
+     *            The index of the file.
+     * @return The open file.
+     * @throws IOException
+     *             If the file could not be opened.
+     */
+    public synchronized OpenFile acquire(int fileIndex) throws IOException {
+        OpenFile file = openFiles.get(fileIndex);
+        if (file == null) {
+            logger.debug("Opening " + files[fileIndex].getName());
+            file = new OpenFile(files[fileIndex]);
+            openFiles.put(fileIndex, file);
+        }
+        file.references++;
+        return file;
+    }
+
+    /**
+     * Hands back a file, see {@link #acquire(int)}.
+     *
+     * @param file
+     *            The file.
+     */
+    public synchronized void release(OpenFile file) {
+        file.references--;
+        if (file.references == 0 && file.evicted) {
+            file.close();
+        }
+    }
+
+    private void evict(OpenFile file) {
+        file.evicted = true;
+        if (file.references == 0) {
+            file.close();
+        }
+    }
+
+    public synchronized void close() {
+        for (OpenFile file : openFiles.values()) {
+            evict(file);
+        }
+        openFiles.clear();
+    }
+}
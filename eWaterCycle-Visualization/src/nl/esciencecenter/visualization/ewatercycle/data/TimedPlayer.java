@@ -3,18 +3,20 @@ package nl.esciencecenter.visualization.ewatercycle.data;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 
 import javax.swing.JFormattedTextField;
 import javax.swing.JSlider;
 
 import nl.esciencecenter.neon.math.Float3Vector;
-import nl.esciencecenter.neon.math.Float4Vector;
-import nl.esciencecenter.neon.math.FloatVectorMath;
 import nl.esciencecenter.neon.swing.CustomJSlider;
+import nl.esciencecenter.visualization.ewatercycle.FrameSink;
+import nl.esciencecenter.visualization.ewatercycle.MJPEGAVISink;
+import nl.esciencecenter.visualization.ewatercycle.PNGSequenceSink;
 import nl.esciencecenter.visualization.ewatercycle.WaterCycleInputHandler;
 import nl.esciencecenter.visualization.ewatercycle.WaterCyclePanel.KeyFrame;
 import nl.esciencecenter.visualization.ewatercycle.WaterCycleSettings;
+import nl.esciencecenter.visualization.ewatercycle.data.MovieSchedule.Orientation;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,52 +28,7 @@ public class TimedPlayer implements Runnable {
         UNOPENED, UNINITIALIZED, INITIALIZED, STOPPED, REDRAWING, SNAPSHOTTING, MOVIEMAKING, CLEANUP, WAITINGONFRAME, PLAYING, REVIEW
     }
 
-    private class Orientation {
-        private final int frameNumber;
-        private final Float3Vector rotation;
-        private final float viewDist;
-
-        public Orientation(int frameNumber, Float3Vector rotation, float viewDist) {
-            this.frameNumber = frameNumber;
-            this.rotation = rotation;
-            this.viewDist = viewDist;
-        }
-
-        public int getFrameNumber() {
-            return frameNumber;
-        }
-
-        public Float3Vector getRotation() {
-            return rotation;
-        }
-
-        public float getViewDist() {
-            return viewDist;
-        }
-
-        @Override
-        public String toString() {
-            return "#: " + frameNumber + " " + rotation + " " + viewDist;
-        }
-
-        @Override
-        public int hashCode() {
-            int hash = 1;
-            hash = hash * 17 + frameNumber;
-            return hash;
-        }
-
-        @Override
-        public boolean equals(Object other) {
-            if (other instanceof KeyFrame && ((KeyFrame) other).hashCode() == this.hashCode()) {
-                return true;
-            } else {
-                return false;
-            }
-        }
-    }
-
-    private HashMap<Integer, Orientation> orientationMap;
+    private MovieSchedule schedule;
 
     private final WaterCycleSettings settings = WaterCycleSettings.getInstance();
 
@@ -92,6 +49,11 @@ public class TimedPlayer implements Runnable {
     private final String screenshotDirectory = "";
     private String screenshotFilename = "";
 
+    private final FrameSink pngSink = new PNGSequenceSink();
+    private FrameSink screenshotSink = pngSink;
+    private FrameSink movieSink;
+    private final ArrayList<FrameSink> finishedSinks = new ArrayList<FrameSink>();
+
     private DatasetManager dsManager;
     private EfficientTextureStorage effTexStorage;
 
@@ -175,6 +137,9 @@ public class TimedPlayer implements Runnable {
 
     public synchronized void setScreenshotNeeded(boolean value) {
         needsScreenshot = value;
+        if (!value) {
+            screenshotSink = pngSink;
+        }
         notifyAll();
     }
 
@@ -190,9 +155,30 @@ public class TimedPlayer implements Runnable {
         return screenshotFilename;
     }
 
-    public synchronized void makeScreenShot(String screenshotFilename) {
+    public synchronized FrameSink getScreenshotSink() {
+        return screenshotSink;
+    }
+
+    /**
+     * Asks for a screenshot of the next frame drawn, without waiting for it.
+     * 
+     * @param screenshotFilename
+     *            The name of the screenshot, relative to the screenshot path.
+     * @param sink
+     *            The sink to write the screenshot to.
+     */
+    public synchronized void requestScreenshot(String screenshotFilename, FrameSink sink) {
         this.screenshotFilename = settings.getScreenshotPath() + screenshotFilename;
+        this.screenshotSink = sink;
         this.needsScreenshot = true;
+    }
+
+    public synchronized void makeScreenShot(String screenshotFilename) {
+        makeScreenShot(screenshotFilename, pngSink);
+    }
+
+    public synchronized void makeScreenShot(String screenshotFilename, FrameSink sink) {
+        requestScreenshot(screenshotFilename, sink);
 
         while (this.needsScreenshot) {
             try {
@@ -232,28 +218,28 @@ public class TimedPlayer implements Runnable {
                                 && numberOfFramesPassedBetweenTimesteps < settings.getNumberOfScreenshotsPerTimeStep()) {
                             int movieFrameNumber = (frameNumber * settings.getNumberOfScreenshotsPerTimeStep())
                                     + numberOfFramesPassedBetweenTimesteps;
-                            // Orientation o =
-                            // orientationMap.get(movieFrameNumber);
-
-                            Float3Vector rotation = new Float3Vector(inputHandler.getRotation().getX(), inputHandler
-                                    .getRotation().getY() + 0.1f, 0f);
 
-                            // float viewDist = o.getViewDist();
+                            Orientation o = null;
+                            if (schedule != null) {
+                                o = schedule.getOrientation(movieFrameNumber);
+                            }
 
-                            // System.out.println("Rot: " + movieFrameNumber +
-                            // " = " + rotation);
-                            // System.out.println("Dst: " + movieFrameNumber +
-                            // " = " + viewDist);
+                            if (o != null) {
+                                inputHandler.setRotation(new Float3Vector(o.getRotation()));
+                                inputHandler.setViewDist(o.getViewDist());
+                            } else {
+                                Float3Vector rotation = new Float3Vector(inputHandler.getRotation().getX(),
+                                        inputHandler.getRotation().getY() + 0.1f, 0f);
 
-                            inputHandler.setRotation(rotation);
-                            // inputHandler.setViewDist(viewDist);
+                                inputHandler.setRotation(rotation);
+                            }
 
                             if (currentState == states.MOVIEMAKING) {
-                                String ssFileName = String.format("%06d.png", movieFrameNumber);
+                                String ssFileName = String.format("%06d", movieFrameNumber);
                                 System.out.println("Writing screenshot: " + ssFileName);
                                 // setScreenshotFileName(ssFileName);
                                 // setScreenshotNeeded(true);
-                                makeScreenShot(ssFileName);
+                                makeScreenShot(ssFileName, movieSink);
                             }
                         }
 
@@ -325,6 +311,41 @@ public class TimedPlayer implements Runnable {
 
     public synchronized void stop() {
         currentState = states.STOPPED;
+
+        if (movieSink != null) {
+            finishSink(movieSink);
+            movieSink = null;
+        }
+    }
+
+    /**
+     * Hands a sink to the window to be closed once all frames taken for it
+     * have been written.
+     * 
+     * @param sink
+     *            The sink that will not be given any more frames.
+     */
+    public synchronized void finishSink(FrameSink sink) {
+        if (sink != pngSink) {
+            finishedSinks.add(sink);
+        }
+    }
+
+    public synchronized List<FrameSink> takeFinishedSinks() {
+        ArrayList<FrameSink> result = new ArrayList<FrameSink>(finishedSinks);
+        finishedSinks.clear();
+        return result;
+    }
+
+    /**
+     * @return A new sink for the frames of a movie, in the format given by the
+     *         settings.
+     */
+    public FrameSink createMovieSink() {
+        if (settings.getMovieFormat().compareTo("png") == 0) {
+            return pngSink;
+        }
+        return new MJPEGAVISink(settings.getMovieFramesPerSecond());
     }
 
     private synchronized void updateFrame(int newFrameNumber, boolean overrideUpdate) {
@@ -358,6 +379,10 @@ public class TimedPlayer implements Runnable {
         return dsManager.getVariableUnits(varName);
     }
 
+    public void requestStatistics(String varName) {
+        dsManager.requestStatistics(varName);
+    }
+
     public float getMinValueContainedInDataset(String varName) {
         return dsManager.getMinValueContainedInDataset(varName);
     }
@@ -374,85 +399,50 @@ public class TimedPlayer implements Runnable {
         return dsManager.getImageHeight();
     }
 
-    public synchronized void startSequence(ArrayList<KeyFrame> keyFrames, boolean record) {
-        int startKeyFrameNumber = 0, finalKeyFrameNumber = 0;
-        for (KeyFrame keyFrame : keyFrames) {
-            int frameNumber = keyFrame.getFrameNumber();
-            if (frameNumber > finalKeyFrameNumber) {
-                finalKeyFrameNumber = frameNumber;
-            }
-            if (frameNumber < startKeyFrameNumber) {
-                startKeyFrameNumber = frameNumber;
-            }
-        }
-
-        orientationMap = new HashMap<Integer, Orientation>();
-
-        ArrayList<Integer> intermediateFrameNumbers = new ArrayList<Integer>();
-
-        try {
-            int currentFrameNumber = startKeyFrameNumber;
-            while (currentFrameNumber <= finalKeyFrameNumber) {
-                for (int i = 0; i < settings.getNumberOfScreenshotsPerTimeStep(); i++) {
-                    intermediateFrameNumbers.add((currentFrameNumber * settings.getNumberOfScreenshotsPerTimeStep())
-                            + i);
-                }
-                currentFrameNumber = dsManager.getNextFrameNumber(currentFrameNumber);
-            }
-        } catch (IOException e) {
-            // We're done.
-        }
-
-        // Only do interpolation step if we have a current AND a next keyFrame
-        // available.
-        if (keyFrames.size() > 1) {
-            for (int i = 0; i < keyFrames.size() - 1; i++) {
-                KeyFrame currentKeyFrame = keyFrames.get(i);
-                KeyFrame nextKeyFrame = keyFrames.get(i + 1);
-
-                int startFrameNumber = currentKeyFrame.getFrameNumber() * settings.getNumberOfScreenshotsPerTimeStep();
-                int stopFrameNumber = nextKeyFrame.getFrameNumber() * settings.getNumberOfScreenshotsPerTimeStep();
-                int numberOfInterpolationFrames = 0;
-                for (int currentFrameNumber : intermediateFrameNumbers) {
-                    if (currentFrameNumber >= startFrameNumber && currentFrameNumber < stopFrameNumber) {
-                        numberOfInterpolationFrames++;
-                    }
-                }
-
-                Float3Vector startLocation = new Float3Vector(currentKeyFrame.getRotation().getX(), currentKeyFrame
-                        .getRotation().getY(), 0f);
-                Float3Vector endLocation = new Float3Vector(nextKeyFrame.getRotation().getX(), nextKeyFrame
-                        .getRotation().getY(), 0f);
+    public GridPyramid getGridPyramid() {
+        return dsManager.getGridPyramid();
+    }
 
-                startLocation.setX(startLocation.getX() % 360f);
-                startLocation.setY(startLocation.getY() % 360f);
+    public int getNumFrames() {
+        return dsManager.getNumFrames();
+    }
 
-                endLocation.setX(endLocation.getX() % 360f);
-                endLocation.setY(endLocation.getY() % 360f);
+    public int getFrameNumberOfIndex(int index) {
+        return dsManager.getFrameNumberOfIndex(index);
+    }
 
-                Float3Vector still = new Float3Vector();
+    public int getIndexOfFrameNumber(int frameNumber) {
+        return dsManager.getIndexOfFrameNumber(frameNumber);
+    }
 
-                Float3Vector[] curveSteps = degreesBezierCurve(numberOfInterpolationFrames, startLocation, endLocation);
+    /**
+     * @return The frame numbers of all timesteps in the dataset, in order.
+     */
+    public ArrayList<Integer> getFrameNumbers() {
+        ArrayList<Integer> frameNumbers = new ArrayList<Integer>();
+        for (int i = 0; i < dsManager.getNumFrames(); i++) {
+            frameNumbers.add(dsManager.getFrameNumberOfIndex(i));
+        }
+        return frameNumbers;
+    }
 
-                // Patch for zoom
-                Float4Vector startZoom = new Float4Vector(currentKeyFrame.getViewDist(), 0f, 0f, 1f);
-                Float4Vector endZoom = new Float4Vector(nextKeyFrame.getViewDist(), 0f, 0f, 1f);
+    public synchronized void startSequence(ArrayList<KeyFrame> keyFrames, boolean record) {
+        ArrayList<Orientation> orientations = new ArrayList<Orientation>();
+        for (KeyFrame keyFrame : keyFrames) {
+            orientations.add(new Orientation(keyFrame.getFrameNumber(), keyFrame.getRotation(), keyFrame
+                    .getViewDist()));
+        }
 
-                Float4Vector[] zoomSteps = FloatVectorMath.bezierCurve(numberOfInterpolationFrames, startZoom, still,
-                        still, endZoom);
+        schedule = new MovieSchedule(orientations, getFrameNumbers(), settings.getNumberOfScreenshotsPerTimeStep());
 
-                for (int j = 0; j < numberOfInterpolationFrames; j++) {
-                    int currentMovieFrameNumber = intermediateFrameNumbers.get(currentKeyFrame.getFrameNumber()
-                            * settings.getNumberOfScreenshotsPerTimeStep() + j);
-                    Orientation newOrientation = new Orientation(currentMovieFrameNumber, curveSteps[j],
-                            zoomSteps[j].getX());
-                    orientationMap.put(currentMovieFrameNumber, newOrientation);
-                }
-            }
+        int startIndex = 0;
+        ArrayList<Integer> movieFrameNumbers = schedule.getMovieFrameNumbers();
+        if (!movieFrameNumbers.isEmpty()) {
+            startIndex = dsManager.getIndexOfFrameNumber(schedule.getFrameNumber(movieFrameNumbers.get(0)));
         }
 
         stop();
-        setFrame(startKeyFrameNumber, true);
+        setFrame(startIndex, true);
 
         if (record) {
             movieMode();
@@ -559,6 +549,10 @@ public class TimedPlayer implements Runnable {
 
     public synchronized void movieMode() {
         currentState = states.MOVIEMAKING;
+
+        if (movieSink == null) {
+            movieSink = createMovieSink();
+        }
     }
 
     public synchronized void reviewMode() {
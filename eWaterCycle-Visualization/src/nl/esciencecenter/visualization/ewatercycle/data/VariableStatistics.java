@@ -0,0 +1,212 @@
+package nl.esciencecenter.visualization.ewatercycle.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * Summary statistics of a single variable, gathered over (a part of) its
+ * timesteps. The histogram has a fixed number of equally sized bins over a
+ * range chosen up front, values outside of that range are counted as under-
+ * or overflow. Statistics of disjoint parts can be combined with
+ * {@link #merge(VariableStatistics)}.
+ */
+public class VariableStatistics {
+    public static final int HISTOGRAM_BINS = 256;
+
+    private final float histogramMin;
+    private final float histogramMax;
+    private final long[] histogram;
+    private long underflow;
+    private long overflow;
+
+    private float min;
+    private float max;
+    private double sum;
+    private long count;
+    private long fillCount;
+
+    public VariableStatistics(float histogramMin, float histogramMax) {
+        this.histogramMin = histogramMin;
+        this.histogramMax = histogramMax;
+        this.histogram = new long[HISTOGRAM_BINS];
+
+        this.min = Float.POSITIVE_INFINITY;
+        this.max = Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Add all values of a single timestep.
+     *
+     * @param data
+     *            The data, read from its current position up to its limit.
+     * @param fillValue
+     *            The value that marks missing data, NaN values are treated as
+     *            missing as well.
+     */
+    public void add(FloatBuffer data, float fillValue) {
+        float binScale = histogramMax > histogramMin ? HISTOGRAM_BINS / (histogramMax - histogramMin) : 0f;
+
+        for (int i = data.position(); i < data.limit(); i++) {
+            float value = data.get(i);
+            if (value == fillValue || Float.isNaN(value)) {
+                fillCount++;
+                continue;
+            }
+
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+            sum += value;
+            count++;
+
+            if (value < histogramMin) {
+                underflow++;
+            } else if (value > histogramMax) {
+                overflow++;
+            } else {
+                int bin = (int) ((value - histogramMin) * binScale);
+                histogram[Math.min(bin, HISTOGRAM_BINS - 1)]++;
+            }
+        }
+    }
+
+    /**
+     * Add the statistics of another part of the same variable to these.
+     * Both must have been created with the same histogram range.
+     *
+     * @param other
+     *            The statistics to merge into these.
+     */
+    public void merge(VariableStatistics other) {
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        count += other.count;
+        fillCount += other.fillCount;
+
+        underflow += other.underflow;
+        overflow += other.overflow;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            histogram[i] += other.histogram[i];
+        }
+    }
+
+    /**
+     * Estimate a percentile from the histogram, interpolating linearly within
+     * the bin it falls in. Values counted as under- or overflow are assumed to
+     * lie between the overall minimum (maximum) and the histogram range.
+     *
+     * @param percentile
+     *            The percentile, between 0 and 100.
+     * @return The estimated value, or NaN if no values were added.
+     */
+    public float getPercentile(double percentile) {
+        if (count == 0) {
+            return Float.NaN;
+        }
+
+        double rank = Math.max(0.0, Math.min(1.0, percentile / 100.0)) * count;
+        if (rank <= underflow) {
+            return interpolate(min, histogramMin, underflow == 0 ? 0 : rank / underflow);
+        }
+        rank -= underflow;
+
+        float binWidth = (histogramMax - histogramMin) / HISTOGRAM_BINS;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            if (histogram[i] > 0 && rank <= histogram[i]) {
+                float binStart = histogramMin + i * binWidth;
+                return Math.max(min, Math.min(max, interpolate(binStart, binStart + binWidth, rank / histogram[i])));
+            }
+            rank -= histogram[i];
+        }
+
+        return interpolate(histogramMax, max, overflow == 0 ? 1 : rank / overflow);
+    }
+
+    private static float interpolate(float from, float to, double fraction) {
+        return (float) (from + (to - from) * fraction);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeFloat(histogramMin);
+        out.writeFloat(histogramMax);
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            out.writeLong(histogram[i]);
+        }
+        out.writeLong(underflow);
+        out.writeLong(overflow);
+
+        out.writeFloat(min);
+        out.writeFloat(max);
+        out.writeDouble(sum);
+        out.writeLong(count);
+        out.writeLong(fillCount);
+    }
+
+    public static VariableStatistics readFrom(DataInput in) throws IOException {
+        VariableStatistics result = new VariableStatistics(in.readFloat(), in.readFloat());
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            result.histogram[i] = in.readLong();
+        }
+        result.underflow = in.readLong();
+        result.overflow = in.readLong();
+
+        result.min = in.readFloat();
+        result.max = in.readFloat();
+        result.sum = in.readDouble();
+        result.count = in.readLong();
+        result.fillCount = in.readLong();
+
+        return result;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFillCount() {
+        return fillCount;
+    }
+
+    public float getHistogramMin() {
+        return histogramMin;
+    }
+
+    public float getHistogramMax() {
+        return histogramMax;
+    }
+
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    public long getUnderflow() {
+        return underflow;
+    }
+
+    public long getOverflow() {
+        return overflow;
+    }
+
+    @Override
+    public String toString() {
+        return "min: " + min + " max: " + max + " mean: " + getMean() + " values: " + count + " fill: " + fillCount;
+    }
+}